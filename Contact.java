@@ -17,18 +17,31 @@
 package net.micode.notes.data;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 //导入所需的包
 public class Contact {
-    private static HashMap<String, String> sContactCache;//缓存用于存储联系人信息的 HashMap，键为联系人号码，值为联系人名称
     private static final String TAG = "Contact";//// TAG用于 Log 输出，便于调试
 
+    private static final int CACHE_SIZE = 256;//缓存的最大号码数
+
+    private static final long NEGATIVE_ENTRY_TTL = 5 * 60 * 1000;//未匹配到联系人的号码的缓存有效期
+
+    private static final int MAX_NUMBERS_PER_QUERY = 100;//批量查询时每次查询的最大号码数
+
     private static final String CALLER_ID_SELECTION = "PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
     + ",?) AND " + Data.MIMETYPE + "='" + Phone.CONTENT_ITEM_TYPE + "'"
     + " AND " + Data.RAW_CONTACT_ID + " IN "
@@ -36,17 +49,47 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";// 查询联系人的条件：通过电话号码匹配来查询，其中包含查找电话类型的数据，获取与此电话号码相关联的 raw_contact_id，查询 phone_lookup 表
 
+    private static final String CALLER_ID_BATCH_SELECTION = Data.MIMETYPE + "='"
+            + Phone.CONTENT_ITEM_TYPE + "'"
+            + " AND " + Data.RAW_CONTACT_ID + " IN "
+            + "(SELECT raw_contact_id "
+            + " FROM phone_lookup"
+            + " WHERE min_match IN (+))";// 批量查询联系人的条件，"+" 会被替换为与号码数量相同的占位符
+
+    private static class CacheEntry {
+        final String name;
+        final long time;
+
+        CacheEntry(String name) {
+            this.name = name;
+            this.time = SystemClock.elapsedRealtime();
+        }
+
+        boolean isExpired() {
+            return name == null && SystemClock.elapsedRealtime() - time > NEGATIVE_ENTRY_TTL;
+        }//只有未匹配的结果会过期
+    }//缓存项：号码对应的联系人名称，未匹配到联系人时 name 为 null
+
+    //缓存联系人信息，键为标准化后的号码（min match），值为联系人名称
+    private static final LruCache<String, CacheEntry> sContactCache =
+            new LruCache<String, CacheEntry>(CACHE_SIZE);
+
+    private static final AtomicLong sHitCount = new AtomicLong();//缓存命中次数
+
+    private static final AtomicLong sMissCount = new AtomicLong();//缓存未命中次数
+
+    private static ContentObserver sContactsObserver;//联系人变化时清空缓存
+
     public static String getContact(Context context, String phoneNumber) {
-        if(sContactCache == null) {
-            sContactCache = new HashMap<String, String>();
-        }// 如果联系人缓存为空，则初始化一个新的 HashMap 来存储联系人信息
+        registerContactsObserver(context);
 
-        if(sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
-        }//如果缓存中已经包含该电话号码的联系人信息，则直接返回缓存中的联系人名称
+        String key = PhoneNumberUtils.toCallerIDMinMatch(phoneNumber);
+        CacheEntry entry = getCacheEntry(key);
+        if (entry != null) {
+            return entry.name;
+        }//如果缓存中已经包含该电话号码的联系人信息（包括未匹配的结果），则直接返回
 
-        String selection = CALLER_ID_SELECTION.replace("+",
-                PhoneNumberUtils.toCallerIDMinMatch(phoneNumber));//替换CALLER_ID_SELECTION中的"+"为标准化后的电话号码
+        String selection = CALLER_ID_SELECTION.replace("+", key);//替换CALLER_ID_SELECTION中的"+"为标准化后的电话号码
         Cursor cursor = context.getContentResolver().query(
                 Data.CONTENT_URI,
                 new String [] { Phone.DISPLAY_NAME },
@@ -57,7 +100,7 @@ public class Contact {
         if (cursor != null && cursor.moveToFirst()) {
             try {
                 String name = cursor.getString(0);//获取查询结果中的联系人名称（DISPLAY_NAME字段）
-                sContactCache.put(phoneNumber, name);// 将联系人名称存入缓存
+                sContactCache.put(key, new CacheEntry(name));// 将联系人名称存入缓存
                 return name;
             } catch (IndexOutOfBoundsException e) {
                 Log.e(TAG, " Cursor get string error " + e.toString());// 捕获查询结果索引超出范围异常，输出错误日志
@@ -66,10 +109,142 @@ public class Contact {
                 cursor.close();// 不管是否发生异常，都关闭游标以释放资源
             }
         } else {
+            if (cursor != null) {
+                cursor.close();
+            }
             Log.d(TAG, "No contact matched with number:" + phoneNumber);
+            sContactCache.put(key, new CacheEntry(null));//缓存未匹配的结果，避免重复查询
             return null;
         }
     }//如果查询没有结果，输出日志并返回 null
+
+    public static HashMap<String, String> getContacts(Context context, Collection<String> phoneNumbers) {
+        registerContactsObserver(context);
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        HashMap<String, ArrayList<String>> missing = new HashMap<String, ArrayList<String>>();
+        for (String phoneNumber : phoneNumbers) {
+            if (TextUtils.isEmpty(phoneNumber) || result.containsKey(phoneNumber)) {
+                continue;
+            }
+            String key = PhoneNumberUtils.toCallerIDMinMatch(phoneNumber);
+            CacheEntry entry = getCacheEntry(key);
+            if (entry != null) {
+                result.put(phoneNumber, entry.name);
+                continue;
+            }
+            ArrayList<String> numbers = missing.get(key);
+            if (numbers == null) {
+                numbers = new ArrayList<String>();
+                missing.put(key, numbers);
+            }
+            numbers.add(phoneNumber);
+        }//先从缓存中取，未命中的号码按 min match 分组
+
+        ArrayList<String> keys = new ArrayList<String>(missing.keySet());
+        for (int start = 0; start < keys.size(); start += MAX_NUMBERS_PER_QUERY) {
+            int end = Math.min(start + MAX_NUMBERS_PER_QUERY, keys.size());
+            queryContacts(context, keys.subList(start, end), missing, result);
+        }//分批查询未命中的号码
+        return result;
+    }//批量获取多个号码的联系人名称，缓存未命中的号码每 MAX_NUMBERS_PER_QUERY 个查询一次，未匹配的号码对应 null
+
+    private static void queryContacts(Context context, Collection<String> keys,
+            HashMap<String, ArrayList<String>> missing, HashMap<String, String> result) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        Cursor cursor = context.getContentResolver().query(
+                Data.CONTENT_URI,
+                new String [] { Phone.NUMBER, Phone.DISPLAY_NAME },
+                CALLER_ID_BATCH_SELECTION.replace("+", placeholders.toString()),
+                keys.toArray(new String[keys.size()]),
+                null);
+
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String contactNumber = cursor.getString(0);
+                    String name = cursor.getString(1);
+                    if (TextUtils.isEmpty(contactNumber)) {
+                        continue;
+                    }
+                    ArrayList<String> numbers = missing.get(
+                            PhoneNumberUtils.toCallerIDMinMatch(contactNumber));
+                    if (numbers == null) {
+                        continue;
+                    }
+                    for (String phoneNumber : numbers) {
+                        if (!result.containsKey(phoneNumber)
+                                && PhoneNumberUtils.compare(context, phoneNumber, contactNumber)) {
+                            result.put(phoneNumber, name);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        for (String key : keys) {
+            String name = null;
+            for (String phoneNumber : missing.get(key)) {
+                if (result.get(phoneNumber) != null) {
+                    name = result.get(phoneNumber);
+                } else {
+                    result.put(phoneNumber, null);
+                }
+            }
+            sContactCache.put(key, new CacheEntry(name));
+        }//把查询结果（包括未匹配的号码）存入缓存
+    }//用一次查询获取一批 min match 对应的联系人，逐个比较号码后写入 result
+
+    private static CacheEntry getCacheEntry(String key) {
+        CacheEntry entry = sContactCache.get(key);
+        if (entry != null && entry.isExpired()) {
+            sContactCache.remove(key);
+            entry = null;
+        }//未匹配结果过期后重新查询
+        if (entry != null) {
+            sHitCount.incrementAndGet();
+        } else {
+            sMissCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private static synchronized void registerContactsObserver(Context context) {
+        if (sContactsObserver != null) {
+            return;
+        }
+        sContactsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Log.d(TAG, "Contacts changed, clear the contact cache");
+                sContactCache.evictAll();
+            }
+        };
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                ContactsContract.Contacts.CONTENT_URI, true, sContactsObserver);
+    }//首次使用时注册联系人变化的监听器
+
+    public static long getCacheHitCount() {
+        return sHitCount.get();
+    }
+
+    public static long getCacheMissCount() {
+        return sMissCount.get();
+    }
+
+    public static long getCacheEvictionCount() {
+        return sContactCache.evictionCount();
+    }
+
+    public static String getCacheStats() {
+        return "hits=" + getCacheHitCount() + ",misses=" + getCacheMissCount()
+                + ",evictions=" + getCacheEvictionCount() + ",size=" + sContactCache.size();
+    }
 }
 //本段代码在小米便签中，当用户查看与某个电话号码相关的记录时，使用此代码从联系人数据库中查找该电话号码对应的联系人名称，
-//同时并将结果缓存以提升性能。如果没有找到匹配的联系人，返回 null，并在日志中记录未找到的电话号码。
\ No newline at end of file
+//同时将结果（包括未匹配的结果）缓存在有容量上限的 LRU 缓存中以提升性能；联系人发生变化时缓存会被清空。
@@ -42,6 +42,53 @@ public class Notes {
     public static final String INTENT_EXTRA_FOLDER_ID = "net.micode.notes.folder_id";
     public static final String INTENT_EXTRA_CALL_DATE = "net.micode.notes.call_date";
 //用于 Intent 中传递额外数据的常量
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call} that operate on a set of notes
+     * at once. The ids are passed as a long array in {@link #EXTRA_NOTE_IDS}, the destination
+     * folder in {@link #INTENT_EXTRA_FOLDER_ID} and the color in
+     * {@link #INTENT_EXTRA_BACKGROUND_ID}. The number of affected notes is returned in
+     * {@link #EXTRA_BULK_COUNT}.
+     */
+    public static final String METHOD_BULK_MOVE_TO_FOLDER = "bulk_move_to_folder";
+    public static final String METHOD_BULK_MOVE_TO_TRASH = "bulk_move_to_trash";
+    public static final String METHOD_BULK_DELETE = "bulk_delete";
+    public static final String METHOD_BULK_SET_COLOR = "bulk_set_color";
+    public static final String EXTRA_NOTE_IDS = "net.micode.notes.note_ids";
+    public static final String EXTRA_BULK_COUNT = "net.micode.notes.bulk_count";
+
+    /**
+     * Selects every note of the given folder for a bulk method, the ids in
+     * {@link #EXTRA_NOTE_IDS} are then the notes left out of the selection
+     */
+    public static final String EXTRA_SELECT_ALL_FOLDER_ID = "net.micode.notes.select_all_folder_id";
+
+    /**
+     * Widgets of the notes removed by {@link #METHOD_BULK_MOVE_TO_TRASH} or
+     * {@link #METHOD_BULK_DELETE}, returned as two int arrays of the same length
+     */
+    public static final String EXTRA_WIDGET_IDS = "net.micode.notes.widget_ids";
+    public static final String EXTRA_WIDGET_TYPES = "net.micode.notes.widget_types";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that drops all but the latest
+     * entry of every note from the change journal, the number of dropped entries is returned
+     * in {@link #EXTRA_BULK_COUNT}
+     */
+    public static final String METHOD_COMPACT_CHANGES = "compact_changes";
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call} that own an export snapshot:
+     * opening begins a read transaction on a connection of its own and returns the snapshot
+     * id in {@link #EXTRA_EXPORT_SNAPSHOT_ID}, the rows are then read from
+     * {@link #CONTENT_NOTE_EXPORT_URI} as they were when the snapshot was opened; closing ends
+     * the transaction of the given id. Nothing is copied, but the snapshot belongs to one
+     * thread: open it, read it and close it from the same thread
+     */
+    public static final String METHOD_OPEN_EXPORT_SNAPSHOT = "open_export_snapshot";
+    public static final String METHOD_CLOSE_EXPORT_SNAPSHOT = "close_export_snapshot";
+    public static final String EXTRA_EXPORT_SNAPSHOT_ID = "net.micode.notes.export_snapshot_id";
+//批量操作的方法名及参数
     public static final int TYPE_WIDGET_INVALIDE      = -1;
     public static final int TYPE_WIDGET_2X            = 0;
     public static final int TYPE_WIDGET_4X            = 1;
@@ -49,6 +96,7 @@ public class Notes {
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE;
+        public static final String CHECK_LIST_ITEM = CheckListItem.CONTENT_ITEM_TYPE;
     }//用于定义不同数据类型的常量
 
     /**
@@ -61,6 +109,52 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query notes for the notes list, the rows carry the columns of {@link NoteColumns}
+     * and the phone number of call notes in {@link NoteColumns#CALL_PHONE_NUMBER}
+     */
+    public static final Uri CONTENT_NOTE_LIST_URI = Uri.parse("content://" + AUTHORITY + "/note_list");
+
+    /**
+     * Query parameters of {@link #CONTENT_NOTE_LIST_URI} to read the list one page at a time.
+     * {@link #PARAM_PAGE_LIMIT} is the page size; the rows are then ordered by type and
+     * modified date descending and id ascending, and the three after parameters, the key of
+     * the last row of the previous page, select the rows that follow it.
+     * {@link #PARAM_PAGE_LIMIT} also caps the rows of a {@link #CONTENT_NOTE_URI} query, which
+     * keeps the order given by the caller
+     */
+    public static final String PARAM_PAGE_LIMIT = "limit";
+    public static final String PARAM_AFTER_TYPE = "after_type";
+    public static final String PARAM_AFTER_MODIFIED_DATE = "after_modified_date";
+    public static final String PARAM_AFTER_ID = "after_id";
+
+    /**
+     * Uri to read the change journal, the rows carry the columns of {@link ChangeColumns}
+     * ordered by {@link ChangeColumns#SEQ}. Only the entries after {@link #PARAM_AFTER_SEQ}
+     * are returned, at most {@link #PARAM_PAGE_LIMIT} of them
+     */
+    public static final Uri CONTENT_NOTE_CHANGES_URI = Uri.parse("content://" + AUTHORITY + "/note_changes");
+
+    public static final String PARAM_AFTER_SEQ = "after_seq";
+
+    /**
+     * Uri to read an export snapshot, the snapshot id returned by
+     * {@link #METHOD_OPEN_EXPORT_SNAPSHOT} is appended to it. Every folder comes first
+     * followed by its notes, then the notes of the root folder; a note has one row per data ordered by {@link CheckListItem#ORDER}, a note
+     * without data has one row with null data columns. The rows carry {@link NoteColumns#ID},
+     * {@link NoteColumns#TYPE}, {@link NoteColumns#PARENT_ID}, {@link NoteColumns#SNIPPET},
+     * {@link NoteColumns#MODIFIED_DATE}, {@link DataColumns#MIME_TYPE},
+     * {@link DataColumns#CONTENT} and {@link DataColumns#DATA1} to {@link DataColumns#DATA3}
+     */
+    public static final Uri CONTENT_NOTE_EXPORT_URI = Uri.parse("content://" + AUTHORITY + "/note_export");
+
+    /**
+     * Operations recorded in {@link ChangeColumns#OP}
+     */
+    public static final int CHANGE_OP_INSERT = 1;
+    public static final int CHANGE_OP_UPDATE = 2;
+    public static final int CHANGE_OP_DELETE = 3;
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -165,6 +259,72 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * First line of the note's text with the checklist marks removed, bounded in length
+         * and kept up to date from {@link #SNIPPET} by triggers, for list rendering
+         * <P> Type : TEXT </P>
+         */
+        public static final String DISPLAY_SNIPPET = "display_snippet";
+
+        /**
+         * Length of the note's full text in characters
+         * <P> Type : INTEGER </P>
+         */
+        public static final String CONTENT_LENGTH = "content_length";
+
+        /**
+         * Number of checklist items of the note, kept up to date from the data with type
+         * {@link DataConstants#CHECK_LIST_ITEM} by triggers
+         * <P> Type : INTEGER </P>
+         */
+        public static final String CHECK_LIST_TOTAL = "check_list_total";
+
+        /**
+         * Number of checked checklist items of the note, kept up to date the same way as
+         * {@link #CHECK_LIST_TOTAL}
+         * <P> Type : INTEGER </P>
+         */
+        public static final String CHECK_LIST_DONE = "check_list_done";
+
+        /**
+         * Phone number of a call note, only available through {@link Notes#CONTENT_NOTE_LIST_URI}
+         * <P> Type : TEXT </P>
+         */
+        public static final String CALL_PHONE_NUMBER = "call_phone_number";
+    }
+
+    public interface ChangeColumns {
+        /**
+         * Sequence number of the change, it only ever increases, also across compactions
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String SEQ = "seq";
+
+        /**
+         * The note or folder that has been changed
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * The operation, one of {@link Notes#CHANGE_OP_INSERT}, {@link Notes#CHANGE_OP_UPDATE}
+         * and {@link Notes#CHANGE_OP_DELETE}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String OP = "op";
+
+        /**
+         * The version of the note after the change
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String VERSION = "version";
+
+        /**
+         * When the change has been made
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CHANGED_DATE = "changed_date";
     }
 
     public interface DataColumns {
@@ -276,6 +436,29 @@ public class Notes {
 
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/call_note");// 通话记录笔记的内容 URI
     }
+
+    /**
+     * One item of a note in check list mode, the text of the item is in {@link #CONTENT}.
+     * The text data of such a note only keeps a preview of its first items
+     */
+    public static final class CheckListItem implements DataColumns {
+        /**
+         * Whether the item is checked
+         * <P> Type: INTEGER 1:checked 0:unchecked </P>
+         */
+        public static final String CHECKED = DATA1;
+
+        /**
+         * Position of the item, the items of a note are sorted by it ascending. The keys
+         * leave gaps so that an item can be inserted without moving the others
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ORDER = DATA2;
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/check_list_item";//清单条目集合的 MIME 类型
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/check_list_item";//单个清单条目的 MIME 类型
+    }
 }
 //本代码主要定义了小米便签应用中笔记、文件夹、通话记录等数据结构的管理方法，包括：
 //内容提供者：用于跨应用访问和操作笔记数据。
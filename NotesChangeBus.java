@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process bus of the changes made through {@link NotesProvider}. Unlike a uri notification
+ * every event tells which notes were changed, how they were changed and which note columns
+ * were touched, so that the list, the widgets and the alarms only react to what concerns them.
+ * Changes made inside one transaction are coalesced and published once it has been committed.
+ */
+public class NotesChangeBus {
+    public static final int OP_INSERT = Notes.CHANGE_OP_INSERT;
+    public static final int OP_UPDATE = Notes.CHANGE_OP_UPDATE;
+    public static final int OP_DELETE = Notes.CHANGE_OP_DELETE;
+
+    /**
+     * A coalesced change of some notes
+     */
+    public static final class ChangeEvent {
+        private final int mOp;
+        private HashSet<Long> mNoteIds;   // null when the changed notes are unknown
+        private HashSet<String> mColumns; // null when the touched columns are unknown
+
+        ChangeEvent(int op, HashSet<Long> noteIds, HashSet<String> columns) {
+            mOp = op;
+            mNoteIds = noteIds;
+            mColumns = columns;
+        }
+
+        public int getOp() {
+            return mOp;
+        }
+
+        /**
+         * Whether the changed notes are unknown, the consumers should then assume that
+         * any note may have been changed
+         */
+        public boolean isAnyNote() {
+            return mNoteIds == null;
+        }
+
+        public Set<Long> getNoteIds() {
+            return mNoteIds == null ? Collections.<Long>emptySet()
+                    : Collections.unmodifiableSet(mNoteIds);
+        }
+
+        public boolean containsNote(long noteId) {
+            return mNoteIds == null || mNoteIds.contains(noteId);
+        }
+
+        /**
+         * Selection of the changed notes on the note table, null if they are unknown
+         */
+        public String getNoteIdSelection() {
+            if (mNoteIds == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder(NoteColumns.ID + " IN (");
+            boolean first = true;
+            for (Long id : mNoteIds) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(id);
+                first = false;
+            }
+            return sb.append(')').toString();
+        }
+
+        /**
+         * Whether any of the given note columns may have been changed
+         */
+        public boolean touchesAny(String... columns) {
+            if (mColumns == null) {
+                return true;
+            }
+            for (String column : columns) {
+                if (mColumns.contains(column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void merge(HashSet<Long> noteIds, HashSet<String> columns) {
+            if (mNoteIds != null) {
+                if (noteIds == null) {
+                    mNoteIds = null;
+                } else {
+                    mNoteIds.addAll(noteIds);
+                }
+            }
+            if (mColumns != null) {
+                if (columns == null) {
+                    mColumns = null;
+                } else {
+                    mColumns.addAll(columns);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeEvent{op=" + mOp + ",notes=" + (mNoteIds == null ? "*" : mNoteIds)
+                    + ",columns=" + (mColumns == null ? "*" : mColumns) + "}";
+        }
+    }
+
+    /**
+     * Receives the change events, always on the main thread
+     */
+    public interface OnNotesChangedListener {
+        void onNotesChanged(ChangeEvent event);
+    }
+
+    private static final CopyOnWriteArrayList<OnNotesChangedListener> sListeners =
+            new CopyOnWriteArrayList<OnNotesChangedListener>();
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Events collected by the transaction running on the current thread, indexed by op
+     */
+    private static final ThreadLocal<ChangeEvent[]> sBatch = new ThreadLocal<ChangeEvent[]>();
+
+    public static void register(OnNotesChangedListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void unregister(OnNotesChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * The provider skips collecting the changed ids when nobody listens
+     */
+    static boolean hasListeners() {
+        return !sListeners.isEmpty();
+    }
+
+    /**
+     * Start collecting the events of a transaction on the current thread
+     */
+    static void beginBatch() {
+        sBatch.set(new ChangeEvent[OP_DELETE + 1]);
+    }
+
+    /**
+     * Stop collecting, the coalesced events are published only if the transaction succeeded
+     */
+    static void endBatch(boolean successful) {
+        ChangeEvent[] batch = sBatch.get();
+        sBatch.set(null);
+        if (batch == null || !successful) {
+            return;
+        }
+        for (ChangeEvent event : batch) {
+            if (event != null) {
+                dispatch(event);
+            }
+        }
+    }
+
+    /**
+     * Publish the events collected so far and keep collecting, for a transaction that has
+     * committed its earlier part by yielding
+     */
+    static void flushBatch() {
+        ChangeEvent[] batch = sBatch.get();
+        if (batch == null) {
+            return;
+        }
+        sBatch.set(new ChangeEvent[OP_DELETE + 1]);
+        for (ChangeEvent event : batch) {
+            if (event != null) {
+                dispatch(event);
+            }
+        }
+    }
+
+    /**
+     * @param noteIds the changed notes, null if they are unknown
+     * @param columns the touched note columns, null if they are unknown
+     */
+    static void publish(int op, Collection<Long> noteIds, Collection<String> columns) {
+        if (!hasListeners()) {
+            return;
+        }
+        HashSet<Long> ids = noteIds == null ? null : new HashSet<Long>(noteIds);
+        HashSet<String> touched = columns == null ? null : new HashSet<String>(columns);
+        ChangeEvent[] batch = sBatch.get();
+        if (batch == null) {
+            dispatch(new ChangeEvent(op, ids, touched));
+        } else if (batch[op] == null) {
+            batch[op] = new ChangeEvent(op, ids, touched);
+        } else {
+            batch[op].merge(ids, touched);
+        }
+    }
+
+    private static void dispatch(final ChangeEvent event) {
+        sHandler.post(new Runnable() {
+            public void run() {
+                for (OnNotesChangedListener listener : sListeners) {
+                    listener.onNotesChanged(event);
+                }
+            }
+        });
+    }
+}
@@ -18,28 +18,58 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.ChangeColumns;
+import net.micode.notes.data.Notes.CheckListItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
 
+import java.util.ArrayList;
+import java.util.List;
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 15;
+
+    // gap between the order keys of checklist items, the same as WorkingNote uses
+    private static final long CHECK_LIST_ORDER_STEP = 1L << 16;
+
+    private static final int DISPLAY_SNIPPET_MAX_LEN = 128;
+
+    private static final String CHECKED_MARK = "\u221A";
+
+    private static final String UNCHECKED_MARK = "\u25A1";
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String DATA_FTS = "data_fts";
+
+        public static final String BULK_GUARD = "bulk_guard";
+
+        public static final String NOTE_LIST = "note_list";
+
+        public static final String NOTE_CHANGES = "note_changes";
     }//该接口定义了数据库中两个表的名称：note 表用于存储笔记数据，data 表用于存储与笔记相关的其他数据。
 
     private static final String TAG = "NotesDatabaseHelper";
 
+    /**
+     * Name prefix of the tables an earlier version copied the exported notes into
+     */
+    private static final String EXPORT_SNAPSHOT_PREFIX = "export_snapshot_";
+
     private static NotesDatabaseHelper mInstance;
 
     private static final String CREATE_NOTE_TABLE_SQL =
@@ -60,7 +90,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.DISPLAY_SNIPPET + " TEXT NOT NULL DEFAULT ''," +
+            NoteColumns.CONTENT_LENGTH + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CHECK_LIST_TOTAL + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.CHECK_LIST_DONE + " INTEGER NOT NULL DEFAULT 0" +
         ")";//CREATE_NOTE_TABLE_SQL 定义了 note 表的创建 SQL 语句。每个字段都代表笔记的一个属性：
         //ID：笔记的唯一标识符，主键。
         //PARENT_ID：父文件夹的 ID，表示笔记所在的文件夹。
@@ -77,6 +111,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         //ORIGIN_PARENT_ID：笔记被移动到临时文件夹前的原父文件夹 ID。
         //GTASK_ID：与 Google 任务相关的 ID。
         //VERSION：版本号，控制笔记版本。
+        //DISPLAY_SNIPPET：列表显示用的摘要，只保留第一行并去除清单标记。
+        //CONTENT_LENGTH：笔记正文的长度。
+        //CHECK_LIST_TOTAL 和 CHECK_LIST_DONE：清单条目的总数和已勾选数。
 
     private static final String CREATE_DATA_TABLE_SQL =
         "CREATE TABLE " + TABLE.DATA + "(" +
@@ -99,9 +136,97 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         //CONTENT：数据的具体内容，通常为文本。
         //DATA1、DATA2、DATA3、DATA4、DATA5：用于存储额外的数据字段，支持不同类型的内容。
 
+    /**
+     * While {@link NotesProvider} runs a set-based bulk operation it keeps a row in this table,
+     * the per-row folder count triggers are skipped and the affected folder counts are
+     * recomputed once at the end of the operation instead
+     */
+    private static final String CREATE_BULK_GUARD_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.BULK_GUARD + "(" +
+            "_id INTEGER PRIMARY KEY" +
+        ")";//批量操作标记表，存在记录时跳过逐行的文件夹计数触发器
+
+    /**
+     * Append-only journal of the changes of notes and folders, filled by triggers. AUTOINCREMENT
+     * makes sure that a sequence number is never reused, even after the latest entries have
+     * been compacted away
+     */
+    private static final String CREATE_NOTE_CHANGES_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.NOTE_CHANGES + "(" +
+            ChangeColumns.SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            ChangeColumns.NOTE_ID + " INTEGER NOT NULL," +
+            ChangeColumns.OP + " INTEGER NOT NULL," +
+            ChangeColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            ChangeColumns.CHANGED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)" +
+        ")";//变更日志表，按序号记录笔记的新建、修改和删除
+
+    /**
+     * Serves the compaction, which keeps the latest entry of every note
+     */
+    private static final String CREATE_NOTE_CHANGES_NOTE_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_changes_note_id_index ON " +
+        TABLE.NOTE_CHANGES + "(" + ChangeColumns.NOTE_ID + "," + ChangeColumns.SEQ + ");";//按笔记 ID 和序号建立索引，加速变更日志的压缩
+
+    /**
+     * Notes with the phone number of call notes, so that the notes list does not have to look
+     * the number up for every row it binds
+     */
+    private static final String CREATE_NOTE_LIST_VIEW_SQL =
+        "CREATE VIEW IF NOT EXISTS " + TABLE.NOTE_LIST + " AS" +
+        " SELECT " + TABLE.NOTE + ".*," +
+        " (SELECT " + CallNote.PHONE_NUMBER + " FROM " + TABLE.DATA +
+        "  WHERE " + CallNote.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+        "  AND " + CallNote.MIME_TYPE + "='" + CallNote.CONTENT_ITEM_TYPE + "'" +
+        "  LIMIT 1) AS " + NoteColumns.CALL_PHONE_NUMBER +
+        " FROM " + TABLE.NOTE;//笔记列表视图，附带通话记录笔记的电话号码
+
+    /**
+     * Serves the lookups of the data of a note, the data are read in the order of the checklist
+     * items without a temporary sort. Replaces note_id_index, which only held the note id
+     */
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
-        "CREATE INDEX IF NOT EXISTS note_id_index ON " +
-        TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";//创建一个索引，索引的字段是 DATA 表中的 NOTE_ID 字段。该索引可以加速按 NOTE_ID 查询数据的操作。
+        "CREATE INDEX IF NOT EXISTS data_note_id_order_index ON " +
+        TABLE.DATA + "(" + DataColumns.NOTE_ID + "," + CheckListItem.ORDER + ");";//按笔记 ID 和清单条目顺序建立索引，读取一个笔记的数据时不需要排序
+
+    /**
+     * Serves the folder list query, notes of one folder filtered by type and sorted by
+     * type and modified date, without a temporary sort
+     */
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+        NoteColumns.MODIFIED_DATE + " DESC);";//按父文件夹、类型、修改时间建立索引，加速文件夹列表查询
+
+    /**
+     * Serves the destination folder query, folders sorted by modified date
+     */
+    private static final String CREATE_NOTE_TYPE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_type_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.TYPE + "," + NoteColumns.MODIFIED_DATE + " DESC);";//按类型、修改时间建立索引，加速目标文件夹查询
+
+    private static final String CREATE_NOTE_WIDGET_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.WIDGET_ID + ");";//按小部件 ID 建立索引，加速小部件查找笔记
+
+    private static final String CREATE_NOTE_ALERTED_DATE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_alerted_date_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.ALERTED_DATE + ");";//按提醒时间建立索引，加速未到期提醒的查询
+
+    /**
+     * Types of the data whose content is searchable, the text of notes and the checklist items
+     */
+    static final String SEARCHABLE_MIME_TYPES =
+        "('" + DataConstants.NOTE + "','" + DataConstants.CHECK_LIST_ITEM + "')";//参与全文检索的数据类型
+
+    /**
+     * Full-text index over the content of data with type {@link DataConstants#NOTE} and
+     * {@link DataConstants#CHECK_LIST_ITEM}, the docid
+     * of each row is the {@link DataColumns#ID} of the data it comes from. The provider
+     * writes the content segmented by {@link NotesSearchIndex}, a trigger removes it
+     */
+    private static final String CREATE_DATA_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE.DATA_FTS +
+        " USING fts4(" + DataColumns.CONTENT + ")";//全文检索索引表，docid 与 data 表的 ID 一一对应，用于替代 LIKE '%q%' 的全表扫描
 
     /**
      * Increase folder's note count when move note to the folder
@@ -109,6 +234,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER increase_folder_count_on_update "+
         " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN NOT EXISTS (SELECT 1 FROM " + TABLE.BULK_GUARD + ")" +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
@@ -121,6 +247,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER decrease_folder_count_on_update " +
         " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN NOT EXISTS (SELECT 1 FROM " + TABLE.BULK_GUARD + ")" +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -146,6 +273,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER =
         "CREATE TRIGGER decrease_folder_count_on_delete " +
         " AFTER DELETE ON " + TABLE.NOTE +
+        " WHEN NOT EXISTS (SELECT 1 FROM " + TABLE.BULK_GUARD + ")" +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -153,6 +281,29 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
         " END";//更新父文件夹笔记数（删除时减少）
 
+    /**
+     * Keep note's display snippet and content length in step with its snippet
+     */
+    private static final String NOTE_UPDATE_DISPLAY_SNIPPET_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER update_display_snippet_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.DISPLAY_SNIPPET + "=" + buildDisplaySnippetExpression("new") + "," +
+        "   " + NoteColumns.CONTENT_LENGTH + "=LENGTH(new." + NoteColumns.SNIPPET + ")" +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";//插入笔记时生成显示摘要和正文长度
+
+    private static final String NOTE_UPDATE_DISPLAY_SNIPPET_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_display_snippet_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.DISPLAY_SNIPPET + "=" + buildDisplaySnippetExpression("new") + "," +
+        "   " + NoteColumns.CONTENT_LENGTH + "=LENGTH(new." + NoteColumns.SNIPPET + ")" +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";//摘要更新时重新生成显示摘要和正文长度
+
     /**
      * Update note's content when insert data with type {@link DataConstants#NOTE}
      */
@@ -192,6 +343,66 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";//更新笔记内容（删除数据时）
 
+    /**
+     * Remove data's content from search index when data with type {@link DataConstants#NOTE}
+     * or {@link DataConstants#CHECK_LIST_ITEM} has deleted
+     */
+    private static final String DATA_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_fts_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + " IN " + SEARCHABLE_MIME_TYPES +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.DATA_FTS + " WHERE docid=old." + DataColumns.ID + ";" +
+        " END";//删除文本数据时同步删除全文索引
+
+    /**
+     * Count the checklist item in its note when insert data with type
+     * {@link DataConstants#CHECK_LIST_ITEM}
+     */
+    private static final String DATA_INCREASE_CHECK_LIST_COUNT_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER increase_check_list_count_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_LIST_ITEM + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHECK_LIST_TOTAL + "=" + NoteColumns.CHECK_LIST_TOTAL + "+1," +
+        "   " + NoteColumns.CHECK_LIST_DONE + "=" + NoteColumns.CHECK_LIST_DONE + "+" +
+        buildCheckedExpression("new") +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
+        " END";//插入清单条目时增加笔记的条目数
+
+    /**
+     * Recount the checked items of the note when a checklist item is checked or unchecked
+     */
+    private static final String DATA_UPDATE_CHECK_LIST_COUNT_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_check_list_count_on_update " +
+        " AFTER UPDATE OF " + CheckListItem.CHECKED + " ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_LIST_ITEM + "'" +
+        "  AND " + buildCheckedExpression("new") + "<>" + buildCheckedExpression("old") +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHECK_LIST_DONE + "=" + NoteColumns.CHECK_LIST_DONE + "+" +
+        buildCheckedExpression("new") + "-" + buildCheckedExpression("old") +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
+        " END";//勾选或取消勾选清单条目时更新笔记的已勾选数
+
+    /**
+     * Uncount the checklist item in its note when data with type
+     * {@link DataConstants#CHECK_LIST_ITEM} has deleted
+     */
+    private static final String DATA_DECREASE_CHECK_LIST_COUNT_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER decrease_check_list_count_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_LIST_ITEM + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.CHECK_LIST_TOTAL + "=" + NoteColumns.CHECK_LIST_TOTAL + "-1," +
+        "   " + NoteColumns.CHECK_LIST_DONE + "=" + NoteColumns.CHECK_LIST_DONE + "-" +
+        buildCheckedExpression("old") +
+        "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID +
+        "  AND " + NoteColumns.CHECK_LIST_TOTAL + ">0;" +
+        " END";//删除清单条目时减少笔记的条目数
+
     /**
      * Delete datas belong to note which has been deleted
      */
@@ -214,6 +425,60 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "   WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";// 删除文件夹下的所有笔记
 
+    /**
+     * Record the creation of a note in the change journal
+     */
+    private static final String NOTE_LOG_CHANGE_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER log_change_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_CHANGES + "(" + ChangeColumns.NOTE_ID + "," +
+        ChangeColumns.OP + "," + ChangeColumns.VERSION + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," + Notes.CHANGE_OP_INSERT + ",new." +
+        NoteColumns.VERSION + ");" +
+        " END";//新建笔记时写入变更日志
+
+    /**
+     * Record the change of a note in the change journal. The update which only refreshes the
+     * display snippet and content length of a note follows the update of its snippet, which
+     * has already been recorded, so it is skipped
+     */
+    private static final String NOTE_LOG_CHANGE_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER log_change_on_update " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.DISPLAY_SNIPPET + " IS old." + NoteColumns.DISPLAY_SNIPPET +
+        "  AND new." + NoteColumns.CONTENT_LENGTH + "=old." + NoteColumns.CONTENT_LENGTH +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_CHANGES + "(" + ChangeColumns.NOTE_ID + "," +
+        ChangeColumns.OP + "," + ChangeColumns.VERSION + ")" +
+        "   VALUES(new." + NoteColumns.ID + "," + Notes.CHANGE_OP_UPDATE + ",new." +
+        NoteColumns.VERSION + ");" +
+        " END";//修改笔记时写入变更日志，只刷新显示摘要的修改不重复记录
+
+    /**
+     * Record the deletion of a note in the change journal, this is the only trace a deleted
+     * note leaves
+     */
+    private static final String NOTE_LOG_CHANGE_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER log_change_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_CHANGES + "(" + ChangeColumns.NOTE_ID + "," +
+        ChangeColumns.OP + "," + ChangeColumns.VERSION + ")" +
+        "   VALUES(old." + NoteColumns.ID + "," + Notes.CHANGE_OP_DELETE + ",old." +
+        NoteColumns.VERSION + ");" +
+        " END";//删除笔记时写入变更日志
+
+    /**
+     * Drop every entry of the change journal but the latest one of each note. A reader that
+     * has read up to some sequence number still finds every note changed since then
+     */
+    private static final String COMPACT_NOTE_CHANGES_SQL =
+        "DELETE FROM " + TABLE.NOTE_CHANGES +
+        " WHERE " + ChangeColumns.SEQ + " NOT IN" +
+        " (SELECT MAX(" + ChangeColumns.SEQ + ") FROM " + TABLE.NOTE_CHANGES +
+        "  GROUP BY " + ChangeColumns.NOTE_ID + ")";//压缩变更日志，每个笔记只保留最新的一条
+
     /**
      * Move notes belong to folder which has been moved to trash folder
      */
@@ -227,17 +492,102 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";//将笔记移动到垃圾桶时更新父文件夹 ID
 
+    /**
+     * For notes, the display snippet is the snippet without checklist marks, trimmed, cut at
+     * the first line break and bounded to {@link #DISPLAY_SNIPPET_MAX_LEN}; folder names are
+     * kept as they are
+     */
+    private static String buildDisplaySnippetExpression(String row) {
+        String text = "TRIM(REPLACE(REPLACE(" + row + "." + NoteColumns.SNIPPET + ",'"
+                + CHECKED_MARK + "',''),'" + UNCHECKED_MARK + "',''),' '||x'09'||x'0A'||x'0D')";
+        String firstLine = "CASE WHEN INSTR(" + text + ",x'0A')>0"
+                + " THEN SUBSTR(" + text + ",1,INSTR(" + text + ",x'0A')-1)"
+                + " ELSE " + text + " END";
+        return "CASE WHEN " + row + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                + " THEN SUBSTR(" + firstLine + ",1," + DISPLAY_SNIPPET_MAX_LEN + ")"
+                + " ELSE " + row + "." + NoteColumns.SNIPPET + " END";
+    }//生成显示摘要的 SQL 表达式
+
+    /**
+     * 1 if the checklist item of the given row is checked, 0 otherwise
+     */
+    private static String buildCheckedExpression(String row) {
+        return "(IFNULL(" + row + "." + CheckListItem.CHECKED + ",0)<>0)";
+    }//生成清单条目是否勾选的 SQL 表达式
+
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        // 写前日志模式下读事务不阻塞写入，导出快照依赖这一点；读取也可以并行使用多个连接
+        setWriteAheadLoggingEnabled(true);
     }//构造函数：初始化数据库
 
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
+        db.execSQL(CREATE_BULK_GUARD_TABLE_SQL);
+        createNoteChangesTable(db);
         reCreateNoteTableTriggers(db);
+        createNoteTableIndexes(db);
         createSystemFolder(db);
+        recomputeFolderCounts(db);
         Log.d(TAG, "note table has been created");
     }// 创建笔记表
 
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERTED_DATE_INDEX_SQL);
+    }//创建笔记表的索引
+
+    /**
+     * Count every row of each folder, so that the triggers keep {@link NoteColumns#NOTES_COUNT}
+     * equal to the number of children from then on. The system folders are inserted before
+     * the root folder exists, which the insert trigger does not count
+     */
+    private void recomputeFolderCounts(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.NOTES_COUNT
+                + "=(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child WHERE child."
+                + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + ")"
+                + " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE);
+    }//重新统计每个文件夹的子项数
+
+    private void createNoteChangesTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_CHANGES_TABLE_SQL);
+        db.execSQL(CREATE_NOTE_CHANGES_NOTE_ID_INDEX_SQL);
+    }//创建变更日志表及其索引
+
+    /**
+     * Compact the change journal, returns the number of dropped entries
+     */
+    int compactNoteChanges(SQLiteDatabase db) {
+        SQLiteStatement compact = db.compileStatement(COMPACT_NOTE_CHANGES_SQL);
+        try {
+            return compact.executeUpdateDelete();
+        } finally {
+            compact.close();
+        }
+    }//压缩变更日志
+
+    /**
+     * Drop the export snapshot tables left by an earlier version whose process died before
+     * closing them, exports now read a snapshot connection and leave no table behind
+     */
+    private void dropExportSnapshots(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name LIKE '"
+                + EXPORT_SNAPSHOT_PREFIX + "%'", null);
+        List<String> tables = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                tables.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        for (String table : tables) {
+            db.execSQL("DROP TABLE IF EXISTS " + table);
+        }
+    }//删除上次进程退出时没有关闭的导出快照
+
     private void reCreateNoteTableTriggers(SQLiteDatabase db) {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
@@ -246,6 +596,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS update_display_snippet_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_display_snippet_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS log_change_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS log_change_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS log_change_on_delete");
 
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
@@ -254,6 +609,11 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
         db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        db.execSQL(NOTE_UPDATE_DISPLAY_SNIPPET_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_UPDATE_DISPLAY_SNIPPET_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_LOG_CHANGE_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_LOG_CHANGE_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_LOG_CHANGE_ON_DELETE_TRIGGER);
     }//重建笔记表的触发器，删除旧的触发器（如果存在），然后重新创建笔记表的触发器。
 
     private void createSystemFolder(SQLiteDatabase db) {
@@ -293,8 +653,10 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     public void createDataTable(SQLiteDatabase db) {
         db.execSQL(CREATE_DATA_TABLE_SQL);
+        db.execSQL(CREATE_DATA_FTS_TABLE_SQL);
         reCreateDataTableTriggers(db);
         db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_LIST_VIEW_SQL);
         Log.d(TAG, "data table has been created");
     }//创建数据表，创建 DATA 表，并重新创建相关触发器。
 
@@ -302,10 +664,20 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS increase_check_list_count_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_check_list_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_check_list_count_on_delete");
 
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_DELETE_FTS_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_INCREASE_CHECK_LIST_COUNT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_CHECK_LIST_COUNT_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DECREASE_CHECK_LIST_COUNT_ON_DELETE_TRIGGER);
     }//重建数据表的触发器，删除旧的触发器，并重新创建新的触发器
 
     static synchronized NotesDatabaseHelper getInstance(Context context) {
@@ -321,6 +693,18 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         createDataTable(db);
     }//创建数据库时调用的方法，当数据库首次创建时，调用 onCreate 方法。
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            int count = compactNoteChanges(db);
+            if (count > 0) {
+                Log.d(TAG, "compact " + count + " entries of the change journal");
+            }
+            dropExportSnapshots(db);
+        }
+    }//打开数据库时压缩变更日志，避免日志无限增长，并删除遗留的导出快照
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         boolean reCreateTriggers = false;
@@ -343,6 +727,67 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 10) {
+            upgradeToV11(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 11) {
+            upgradeToV12(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 12) {
+            upgradeToV13(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 13) {
+            upgradeToV14(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 14) {
+            upgradeToV15(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -380,5 +825,119 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }//将数据库升级至版本四
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        // add a full-text index for note content and fill it with existing text data
+        db.execSQL(CREATE_DATA_FTS_TABLE_SQL);
+        db.execSQL("INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")"
+                + " SELECT " + DataColumns.ID + "," + DataColumns.CONTENT + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'");
+    }//将数据库升级至版本五，建立全文索引并回填已有数据
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        // add the guard table checked by the folder count triggers
+        db.execSQL(CREATE_BULK_GUARD_TABLE_SQL);
+    }//将数据库升级至版本六，增加批量操作标记表
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        // add indexes for the list, destination folder, widget and alert queries
+        createNoteTableIndexes(db);
+    }//将数据库升级至版本七，为笔记表建立索引
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        // add the display snippet and content length columns and fill them for existing notes
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.DISPLAY_SNIPPET
+                + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CONTENT_LENGTH
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.DISPLAY_SNIPPET + "="
+                + buildDisplaySnippetExpression(TABLE.NOTE) + "," + NoteColumns.CONTENT_LENGTH
+                + "=LENGTH(" + NoteColumns.SNIPPET + ")");
+    }//将数据库升级至版本八，增加显示摘要和正文长度字段
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        // add the view queried by the notes list
+        db.execSQL(CREATE_NOTE_LIST_VIEW_SQL);
+    }//将数据库升级至版本九，增加笔记列表视图
+
+    private void upgradeToV10(SQLiteDatabase db) {
+        // add the change journal, its triggers are created with the other note triggers
+        createNoteChangesTable(db);
+    }//将数据库升级至版本十，增加变更日志表
+
+    private void upgradeToV11(SQLiteDatabase db) {
+        // add the checklist counters, there are no checklist items yet, their triggers are
+        // created with the other data triggers. Checklists stored as text are converted to
+        // items by upgradeToV13
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CHECK_LIST_TOTAL
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CHECK_LIST_DONE
+                + " INTEGER NOT NULL DEFAULT 0");
+    }//将数据库升级至版本十一，增加清单条目数和已勾选数字段
+
+    private void upgradeToV12(SQLiteDatabase db) {
+        // the notes list reads the note count of a folder from its row instead of counting
+        recomputeFolderCounts(db);
+    }//将数据库升级至版本十二，重新统计文件夹的子项数
+
+    private void upgradeToV13(SQLiteDatabase db) {
+        // convert the checklists still stored as text into items, the data triggers have to
+        // be current so that the items are counted in their notes
+        reCreateDataTableTriggers(db);
+        Cursor cursor = db.rawQuery("SELECT " + DataColumns.NOTE_ID + "," + DataColumns.CONTENT
+                + " FROM " + TABLE.DATA + " AS text"
+                + " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'"
+                + " AND " + TextNote.MODE + "=" + TextNote.MODE_CHECK_LIST
+                + " AND NOT EXISTS (SELECT 1 FROM " + TABLE.DATA + " AS item"
+                + " WHERE item." + DataColumns.NOTE_ID + "=text." + DataColumns.NOTE_ID
+                + " AND item." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_LIST_ITEM
+                + "')", null);
+        if (cursor == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        try {
+            while (cursor.moveToNext()) {
+                String content = cursor.getString(1);
+                if (content == null) {
+                    continue;
+                }
+                long order = 0;
+                for (String line : content.split("\n")) {
+                    boolean checked = line.startsWith(CHECKED_MARK);
+                    if (checked || line.startsWith(UNCHECKED_MARK)) {
+                        line = line.substring(1);
+                    }
+                    line = line.trim();
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    order += CHECK_LIST_ORDER_STEP;
+                    values.clear();
+                    values.put(DataColumns.NOTE_ID, cursor.getLong(0));
+                    values.put(DataColumns.MIME_TYPE, DataConstants.CHECK_LIST_ITEM);
+                    values.put(DataColumns.CONTENT, line);
+                    values.put(CheckListItem.CHECKED, checked ? 1 : 0);
+                    values.put(CheckListItem.ORDER, order);
+                    db.insert(TABLE.DATA, null, values);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }//将数据库升级至版本十三，把以文本保存的清单拆分为清单条目
+
+    private void upgradeToV14(SQLiteDatabase db) {
+        // the index holds segmented text written by the provider instead of the raw content
+        // copied by the triggers, which reCreateDataTableTriggers no longer creates, so that
+        // terms match inside words and inside CJK text
+        NotesSearchIndex.rebuild(db);
+    }//将数据库升级至版本十四，按分词后的文本重建全文索引
+
+    private void upgradeToV15(SQLiteDatabase db) {
+        // the new index starts with the note id too, the old one is no longer used
+        db.execSQL("DROP INDEX IF EXISTS note_id_index");
+        db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
+    }//将数据库升级至版本十五，笔记的数据按清单条目的顺序建立索引
 }
 //这段代码实现了小米便签的数据库创建、更新、触发器管理等功能，确保笔记数据的增删改查操作能够自动同步更新相关的内容和元数据（如笔记数）。它也通过触发器和版本控制确保数据库在更新时能处理好数据的一致性和完整性。
\ No newline at end of file
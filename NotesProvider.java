@@ -18,22 +18,37 @@ package net.micode.notes.data;
 
 
 import android.app.SearchManager;
+import android.appwidget.AppWidgetManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NotesProvider extends ContentProvider {
     private static final UriMatcher mMatcher;// URI匹配器，用于根据URI确定具体操作
@@ -50,35 +65,140 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;//URI表示搜索
     private static final int URI_SEARCH_SUGGEST  = 6;//URI表示搜索建议
 
+    private static final int URI_NOTE_LIST       = 7;//URI表示笔记列表
+
+    private static final int URI_NOTE_CHANGES    = 8;//URI表示变更日志
+
+    private static final int URI_NOTE_EXPORT     = 9;//URI表示某个导出快照
+
+    /**
+     * Yield the transaction of a batch every so many operations, so that readers such as the
+     * notes list are not starved while a large batch is being applied. Only operations built
+     * with {@link ContentProviderOperation.Builder#withYieldAllowed} may start a new
+     * transaction, a batch without them is applied atomically
+     */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+    /**
+     * Order of the paged notes list, it follows the note parent id index so that a page is
+     * read without sorting the folder, the id makes the key of each row unique
+     */
+    private static final String NOTE_LIST_KEYSET_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " ASC";
+
+    /**
+     * The change journal is always read in pages of at most this many entries
+     */
+    private static final int MAX_CHANGES_PER_PAGE = 500;
+
+    /**
+     * Change notifications collected while a batch is being applied on the current thread,
+     * they are sent once the whole batch has been committed
+     */
+    private final ThreadLocal<HashSet<Uri>> mBatchNotifications = new ThreadLocal<HashSet<Uri>>();
+
+    /**
+     * Note columns touched by a change of the data of the note, the triggers keep the snippet
+     * of the note in step with its text data and the checklist counters with its items
+     */
+    private static final List<String> DATA_CHANGE_COLUMNS = Arrays.asList(NoteColumns.SNIPPET,
+            NoteColumns.DISPLAY_SNIPPET, NoteColumns.CONTENT_LENGTH, NoteColumns.CHECK_LIST_TOTAL,
+            NoteColumns.CHECK_LIST_DONE);
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "note_list", URI_NOTE_LIST);
+        mMatcher.addURI(Notes.AUTHORITY, "note_changes", URI_NOTE_CHANGES);
+        mMatcher.addURI(Notes.AUTHORITY, "note_export/#", URI_NOTE_EXPORT);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
     }//// 静态初始化URI匹配器
 
+    /**
+     * Search results only show the beginning of the note, so the snippet is cut before it is
+     * copied into the cursor
+     */
+    private static final int SEARCH_SNIPPET_MAX_LEN = 256;
+
     /**
      * x'0A' represents the '\n' character in sqlite. For title and content in the search result,
      * we will trim '\n' and white space in order to show more information.
      */
     private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
         + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+        + NoteColumns.DISPLAY_SNIPPET + " AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + "TRIM(REPLACE(SUBSTR(" + NoteColumns.SNIPPET + ",1," + SEARCH_SNIPPET_MAX_LEN + "), x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 // /在SQLite中，x'0A'代表'\n'字符。在搜索结果中，为了显示更多信息，我们会去除'\n'和多余的空白字符。
     private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+        + " WHERE (" + NoteColumns.SNIPPET + " LIKE ?"
+        + " OR " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID + " FROM " + TABLE.DATA
+        + " WHERE " + DataColumns.MIME_TYPE + "='" + Notes.DataConstants.CHECK_LIST_ITEM + "'"
+        + " AND " + DataColumns.CONTENT + " LIKE ?))"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
         + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;//定义搜索查询语句
 
+    /**
+     * Search through the full-text index of note content. Each term of the user's query is
+     * matched as a prefix, so results are available while the user is still typing.
+     */
+    private static String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM " + TABLE.NOTE
+        + " WHERE " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID + " FROM " + TABLE.DATA
+        + " WHERE " + DataColumns.ID + " IN (SELECT docid FROM " + TABLE.DATA_FTS
+        + " WHERE " + TABLE.DATA_FTS + " MATCH ?))"
+        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;//基于全文索引的前缀搜索语句
+
+    /**
+     * Folders that are exported, the user folders out of the trash and the call record folder
+     */
+    private static final String EXPORT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "="
+        + Notes.TYPE_FOLDER + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + ") OR " + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER;
+
+    /**
+     * All exported rows in one pass: every folder followed by its notes, then the notes of the
+     * root folder. A note has one row per data, checklist items in their order
+     */
+    private static final String EXPORT_ROWS = "(SELECT " + NoteColumns.ID + " AS export_group,"
+        + NoteColumns.ID + "," + NoteColumns.TYPE + "," + NoteColumns.PARENT_ID + ","
+        + NoteColumns.SNIPPET + "," + NoteColumns.MODIFIED_DATE + ","
+        + "NULL AS " + DataColumns.MIME_TYPE + ",NULL AS " + DataColumns.CONTENT + ","
+        + "NULL AS " + DataColumns.DATA1 + ",NULL AS " + DataColumns.DATA2 + ","
+        + "NULL AS " + DataColumns.DATA3
+        + " FROM " + TABLE.NOTE + " WHERE " + EXPORT_FOLDER_SELECTION
+        + " UNION ALL SELECT n." + NoteColumns.PARENT_ID + ","
+        + "n." + NoteColumns.ID + ",n." + NoteColumns.TYPE + ",n." + NoteColumns.PARENT_ID + ","
+        + "n." + NoteColumns.SNIPPET + ",n." + NoteColumns.MODIFIED_DATE + ","
+        + "d." + DataColumns.MIME_TYPE + ",d." + DataColumns.CONTENT + ","
+        + "d." + DataColumns.DATA1 + ",d." + DataColumns.DATA2 + ",d." + DataColumns.DATA3
+        + " FROM " + TABLE.NOTE + " AS n LEFT JOIN " + TABLE.DATA + " AS d"
+        + " ON d." + DataColumns.NOTE_ID + "=n." + NoteColumns.ID
+        + " WHERE n." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " AND (n." + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER
+        + " OR n." + NoteColumns.PARENT_ID + " IN (SELECT " + NoteColumns.ID
+        + " FROM " + TABLE.NOTE + " WHERE " + EXPORT_FOLDER_SELECTION + ")))";//导出所有文件夹和笔记的语句
+
+    private static final String EXPORT_ORDER = "export_group=" + Notes.ID_ROOT_FOLDER
+        + ",export_group," + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + "," + NoteColumns.ID
+        + "," + Notes.CheckListItem.ORDER;
+
+    /**
+     * Open export snapshots by id. A snapshot is a read-only connection of its own holding a
+     * read transaction, which keeps seeing one state of the database while writers go on
+     */
+    private static final AtomicInteger sExportSequence = new AtomicInteger();
+    private final SparseArray<SQLiteDatabase> mExportSnapshots = new SparseArray<SQLiteDatabase>();
+
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());//初始化数据库助手
@@ -91,24 +211,66 @@ public class NotesProvider extends ContentProvider {
         Cursor c = null;
         SQLiteDatabase db = mHelper.getReadableDatabase();//获取数据库的可读实例
         String id = null;
+        Uri notificationUri = uri;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-            //查询所有笔记
-                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+            //查询所有笔记，可以限制返回的行数
+                c = queryChecked(db, TABLE.NOTE, projection, selection, selectionArgs, null, null,
+                        sortOrder, uri.getQueryParameter(Notes.PARAM_PAGE_LIMIT) != null
+                                ? String.valueOf(parseLongParameter(uri, Notes.PARAM_PAGE_LIMIT))
+                                : null);
                 break;
             case URI_NOTE_ITEM://查询单个笔记
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
+                c = queryChecked(db, TABLE.NOTE, projection, NoteColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
             case URI_DATA:// 查询所有数据
-                c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
+                c = queryChecked(db, TABLE.DATA, projection, selection, selectionArgs, null, null,
                         sortOrder);
                 break;
+            case URI_NOTE_LIST://查询笔记列表，附带通话记录的电话号码
+                String limit = null;
+                if (uri.getQueryParameter(Notes.PARAM_PAGE_LIMIT) != null) {
+                    // read one page after the given key
+                    limit = String.valueOf(parseLongParameter(uri, Notes.PARAM_PAGE_LIMIT));
+                    sortOrder = NOTE_LIST_KEYSET_ORDER;
+                    if (uri.getQueryParameter(Notes.PARAM_AFTER_ID) != null) {
+                        String keyset = buildKeysetSelection(
+                                parseLongParameter(uri, Notes.PARAM_AFTER_TYPE),
+                                parseLongParameter(uri, Notes.PARAM_AFTER_MODIFIED_DATE),
+                                parseLongParameter(uri, Notes.PARAM_AFTER_ID));
+                        selection = TextUtils.isEmpty(selection) ? keyset
+                                : "(" + selection + ") AND " + keyset;
+                    }
+                }
+                c = queryChecked(db, TABLE.NOTE_LIST, projection, selection, selectionArgs,
+                        null, null, sortOrder, limit);
+                // the list changes whenever a note changes
+                notificationUri = Notes.CONTENT_NOTE_URI;
+                break;
+            case URI_NOTE_CHANGES://按序号分页读取变更日志
+                long afterSeq = uri.getQueryParameter(Notes.PARAM_AFTER_SEQ) != null
+                        ? parseLongParameter(uri, Notes.PARAM_AFTER_SEQ) : 0;
+                long pageLimit = uri.getQueryParameter(Notes.PARAM_PAGE_LIMIT) != null
+                        ? parseLongParameter(uri, Notes.PARAM_PAGE_LIMIT) : MAX_CHANGES_PER_PAGE;
+                pageLimit = Math.max(1, Math.min(pageLimit, MAX_CHANGES_PER_PAGE));
+                String after = Notes.ChangeColumns.SEQ + ">" + afterSeq;
+                selection = TextUtils.isEmpty(selection) ? after
+                        : "(" + selection + ") AND " + after;
+                c = queryChecked(db, TABLE.NOTE_CHANGES, projection, selection, selectionArgs,
+                        null, null, Notes.ChangeColumns.SEQ + " ASC", String.valueOf(pageLimit));
+                // the journal grows whenever a note changes
+                notificationUri = Notes.CONTENT_NOTE_URI;
+                break;
+            case URI_NOTE_EXPORT://读取由 call() 创建的导出快照，按导出的顺序排列
+                id = uri.getPathSegments().get(1);
+                c = queryChecked(getExportSnapshot(Integer.parseInt(id)), EXPORT_ROWS, projection,
+                        selection, selectionArgs, null, null, EXPORT_ORDER);
+                break;
             case URI_DATA_ITEM://查询单个数据项
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
+                c = queryChecked(db, TABLE.DATA, projection, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
             case URI_SEARCH:
@@ -132,9 +294,17 @@ public class NotesProvider extends ContentProvider {
                 }
 
                 try {
-                    searchString = String.format("%%%s%%", searchString);//添加通配符进行模糊搜索
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    String matchString = NotesSearchIndex.buildMatch(searchString);
+                    if (matchString != null) {
+                        c = rawQueryChecked(db, NOTES_FTS_SEARCH_QUERY,
+                                new String[] { matchString });
+                    } else {
+                        searchString = String.format("%%%s%%", searchString);//添加通配符进行模糊搜索
+                        // the snippet of a checklist only holds its first items, the items
+                        // themselves are matched too
+                        c = rawQueryChecked(db, NOTES_SNIPPET_SEARCH_QUERY,
+                                new String[] { searchString, searchString });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());//异常处理
                 }
@@ -143,7 +313,7 @@ public class NotesProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);//设置通知URI
+            c.setNotificationUri(getContext().getContentResolver(), notificationUri);//设置通知URI
         }
         return c;
     }
@@ -162,21 +332,37 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                db.beginTransaction();
+                try {
+                    insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                    if (dataId > 0) {
+                        NotesSearchIndex.index(db, dataId,
+                                values.getAsString(DataColumns.MIME_TYPE),
+                                values.getAsString(DataColumns.CONTENT));
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);//通知相关URI更新
         }
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+            if (dataId > 0) {
+                NotesChangeBus.publish(NotesChangeBus.OP_UPDATE,
+                        Collections.singleton(noteId), DATA_CHANGE_COLUMNS);
+            } else if (insertedId > 0) {
+                NotesChangeBus.publish(NotesChangeBus.OP_INSERT,
+                        Collections.singleton(noteId), values == null ? null : values.keySet());
+            }
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);//返回插入记录的URI
@@ -188,8 +374,13 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();//获取数据库的可写实例
         boolean deleteData = false;
+        List<Long> noteIds = null;//被影响的笔记ID，发布变更事件用
+        boolean publish = NotesChangeBus.hasListeners();
         switch (mMatcher.match(uri)) {
             case URI_NOTE://删除笔记
+                if (publish) {
+                    noteIds = queryBoundNoteIds(db, selection, selectionArgs, true);
+                }
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
                 count = db.delete(TABLE.NOTE, selection, selectionArgs);
                 break;
@@ -203,15 +394,24 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {
                     break;
                 }
+                if (publish) {
+                    noteIds = queryItemNoteIds(db, noteId, true);
+                }
                 count = db.delete(TABLE.NOTE,
                         NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 break;
             case URI_DATA://删除数据
+                if (publish) {
+                    noteIds = queryBoundDataNoteIds(selection, selectionArgs);
+                }
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
                 deleteData = true;
                 break;
             case URI_DATA_ITEM://删除单个数据项
                 id = uri.getPathSegments().get(1);
+                if (publish) {
+                    noteIds = queryDataItemNoteIds(db, id, null);
+                }
                 count = db.delete(TABLE.DATA,
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 deleteData = true;
@@ -221,9 +421,12 @@ public class NotesProvider extends ContentProvider {
         }
         if (count > 0) {
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
+                NotesChangeBus.publish(NotesChangeBus.OP_UPDATE, noteIds, DATA_CHANGE_COLUMNS);
+            } else {
+                NotesChangeBus.publish(NotesChangeBus.OP_DELETE, noteIds, null);
             }
-            getContext().getContentResolver().notifyChange(uri, null);//通知URI更新
+            notifyChange(uri);//通知URI更新
         }
         return count;
     }
@@ -234,25 +437,39 @@ public class NotesProvider extends ContentProvider {
         String id = null;//用来存储URI中的ID
         SQLiteDatabase db = mHelper.getWritableDatabase();//获取可写的数据库实例
         boolean updateData = false;//标记是否更新数据
+        List<Long> noteIds = null;//被影响的笔记ID，发布变更事件用
+        boolean publish = NotesChangeBus.hasListeners();
+        // 移动文件夹到回收站时，触发器会同时移动其中的笔记
+        boolean withChildren = values.containsKey(NoteColumns.PARENT_ID);
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                if (publish) {
+                    noteIds = queryBoundNoteIds(db, selection, selectionArgs, withChildren);
+                }
+                count = updateRows(db, TABLE.NOTE, values, selection, selectionArgs, true);
                 break; // 根据URI的匹配情况，执行不同的更新操作
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                if (publish) {
+                    noteIds = queryItemNoteIds(db, Long.valueOf(id), withChildren);
+                }
+                count = updateRow(db, TABLE.NOTE, NoteColumns.ID, id, values, selection,
+                        selectionArgs, true);
                 break;// 更新指定ID的NOTE记录，增加版本号
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
+                if (publish) {
+                    noteIds = queryBoundDataNoteIds(selection, selectionArgs);
+                }
+                count = updateDataRows(db, values, selection, selectionArgs);
                 updateData = true;
                 break;// 更新指定ID的DATA记录
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                if (publish) {
+                    noteIds = queryDataItemNoteIds(db, id, values);
+                }
+                count = updateDataRows(db, values, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArgument(id, selectionArgs));
                 updateData = true;
                 break;//更新指定ID的DATA记录
             default:
@@ -261,41 +478,686 @@ public class NotesProvider extends ContentProvider {
 
         if (count > 0) {
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
+                NotesChangeBus.publish(NotesChangeBus.OP_UPDATE, noteIds, DATA_CHANGE_COLUMNS);
+            } else if (publish) {
+                HashSet<String> columns = new HashSet<String>(values.keySet());
+                columns.add(NoteColumns.VERSION);
+                NotesChangeBus.publish(NotesChangeBus.OP_UPDATE, noteIds, columns);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     } // 如果有记录被更新，发送通知更新
 
+    /**
+     * Update data rows and keep the full-text index in step when their content changes. The
+     * rows are picked before the update, which may change the columns of the selection
+     */
+    private int updateDataRows(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
+        if (!values.containsKey(DataColumns.CONTENT)
+                && !values.containsKey(DataColumns.MIME_TYPE)) {
+            return updateRows(db, TABLE.DATA, values, selection, selectionArgs, false);
+        }
+        db.beginTransaction();
+        try {
+            List<Long> ids = readIds(queryChecked(db, TABLE.DATA, new String[] { DataColumns.ID },
+                    selection, selectionArgs, null, null, null));
+            int count = updateRows(db, TABLE.DATA, values, selection, selectionArgs, false);
+            if (count > 0 && ids != null && !ids.isEmpty()) {
+                NotesSearchIndex.reindex(db, DataColumns.ID + " IN (" + TextUtils.join(",", ids)
+                        + ")", null);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }//更新数据记录，内容变化时同步更新全文索引
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        HashSet<Uri> notifications = new HashSet<Uri>();
+        boolean successful = false;
+        mBatchNotifications.set(notifications);
+        NotesChangeBus.beginBatch();
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                if (i > 0 && i % MAX_OPERATIONS_PER_YIELD_POINT == 0
+                        && operations.get(i).isYieldAllowed()) {
+                    yieldBatch(db, notifications);
+                }
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.set(null);
+            NotesChangeBus.endBatch(successful);
+            if (successful) {
+                sendNotifications(notifications);
+            }
+        }
+    }//在同一个事务中执行整批操作，提交后统一发送变更通知
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        HashSet<Uri> notifications = new HashSet<Uri>();
+        boolean successful = false;
+        int count = 0;
+        mBatchNotifications.set(notifications);
+        NotesChangeBus.beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % MAX_OPERATIONS_PER_YIELD_POINT == 0) {
+                    yieldBatch(db, notifications);
+                }
+                insert(uri, values[i]);
+                count++;
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.set(null);
+            NotesChangeBus.endBatch(successful);
+            if (successful) {
+                sendNotifications(notifications);
+            }
+        }
+        return count;
+    }//在同一个事务中批量插入，提交后统一发送变更通知
+
+    private void yieldBatch(SQLiteDatabase db, HashSet<Uri> notifications) {
+        if (db.yieldIfContendedSafely()) {
+            // the yield committed the operations applied so far, a later failure only
+            // rolls back the rest, so their changes are announced now
+            NotesChangeBus.flushBatch();
+            sendNotifications(notifications);
+            notifications.clear();
+        }
+    }//让出事务时已提交的部分立即发送变更通知
+
+    /**
+     * Open a read-only connection of its own and begin a read transaction on it. The database
+     * is in write-ahead log mode, so the transaction neither copies anything nor blocks the
+     * writers, it just keeps reading the state of its first read: a long export is read in
+     * several cursor windows and is not torn by edits made meanwhile. The transaction belongs
+     * to the calling thread, the snapshot has to be read and closed by the thread opening it
+     */
+    private Bundle openExportSnapshot() {
+        // the helper upgrades the schema and turns on the log before anything is read
+        String path = mHelper.getWritableDatabase().getPath();
+        SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(path, null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            // on a read-only connection the transaction never takes the write lock
+            snapshot.beginTransaction();
+            DatabaseUtils.longForQuery(snapshot, "SELECT COUNT(*) FROM " + TABLE.NOTE, null);
+        } catch (RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+        int id = sExportSequence.incrementAndGet();
+        synchronized (mExportSnapshots) {
+            mExportSnapshots.put(id, snapshot);
+        }
+        Bundle result = new Bundle();
+        result.putInt(Notes.EXTRA_EXPORT_SNAPSHOT_ID, id);
+        return result;
+    }
+
+    private SQLiteDatabase getExportSnapshot(int id) {
+        synchronized (mExportSnapshots) {
+            SQLiteDatabase snapshot = mExportSnapshots.get(id);
+            if (snapshot == null) {
+                throw new IllegalArgumentException("Unknown export snapshot " + id);
+            }
+            return snapshot;
+        }
+    }
+
+    private Bundle closeExportSnapshot(Bundle extras) {
+        if (extras == null || !extras.containsKey(Notes.EXTRA_EXPORT_SNAPSHOT_ID)) {
+            throw new IllegalArgumentException("Export snapshot id is missing");
+        }
+        int id = extras.getInt(Notes.EXTRA_EXPORT_SNAPSHOT_ID);
+        SQLiteDatabase snapshot;
+        synchronized (mExportSnapshots) {
+            snapshot = mExportSnapshots.get(id);
+            mExportSnapshots.remove(id);
+        }
+        if (snapshot != null) {
+            try {
+                snapshot.endTransaction();// 只读事务，结束时没有需要回滚的修改
+            } finally {
+                snapshot.close();
+            }
+        }
+        return new Bundle();
+    }
+
+    /**
+     * Temporary tables holding the ids of a bulk operation and the folders whose count it
+     * affects, they live on the connection of the running transaction only
+     */
+    private static final String BULK_IDS_TABLE = "temp.bulk_ids";
+    private static final String BULK_FOLDERS_TABLE = "temp.bulk_folders";
+
+    /**
+     * Ids of a bulk operation together with the notes of the folders among them, which are
+     * deleted or moved with their folder
+     */
+    private static final String BULK_NOTE_IDS_WITH_CHILDREN = "SELECT _id FROM " + BULK_IDS_TABLE
+            + " UNION SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+            + " WHERE " + NoteColumns.PARENT_ID + " IN (SELECT _id FROM " + BULK_IDS_TABLE + ")";
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_COMPACT_CHANGES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(Notes.EXTRA_BULK_COUNT,
+                    mHelper.compactNoteChanges(mHelper.getWritableDatabase()));
+            return result;
+        }
+        if (Notes.METHOD_OPEN_EXPORT_SNAPSHOT.equals(method)) {
+            return openExportSnapshot();
+        }
+        if (Notes.METHOD_CLOSE_EXPORT_SNAPSHOT.equals(method)) {
+            return closeExportSnapshot(extras);
+        }
+        if (!Notes.METHOD_BULK_MOVE_TO_FOLDER.equals(method)
+                && !Notes.METHOD_BULK_MOVE_TO_TRASH.equals(method)
+                && !Notes.METHOD_BULK_DELETE.equals(method)
+                && !Notes.METHOD_BULK_SET_COLOR.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        long[] ids = extras != null ? extras.getLongArray(Notes.EXTRA_NOTE_IDS) : null;
+        // select-all sends the folder and the ids left out, the ids are resolved here
+        boolean allInFolder = extras != null
+                && extras.containsKey(Notes.EXTRA_SELECT_ALL_FOLDER_ID);
+        int count = 0;
+        int[][] widgets = null;
+        if (allInFolder || (ids != null && ids.length > 0)) {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            boolean publish = NotesChangeBus.hasListeners();
+            boolean successful = false;
+            NotesChangeBus.beginBatch();
+            db.beginTransaction();
+            try {
+                if (allInFolder) {
+                    fillBulkIdsOfFolder(db, extras.getLong(Notes.EXTRA_SELECT_ALL_FOLDER_ID), ids);
+                } else {
+                    fillBulkIds(db, ids);
+                }
+                if (Notes.METHOD_BULK_SET_COLOR.equals(method)) {
+                    List<Long> noteIds = publish ? queryBulkNoteIds(db, false) : null;
+                    count = bulkSetColor(db,
+                            extras.getInt(Notes.INTENT_EXTRA_BACKGROUND_ID, 0));
+                    NotesChangeBus.publish(NotesChangeBus.OP_UPDATE, noteIds,
+                            Arrays.asList(NoteColumns.BG_COLOR_ID, NoteColumns.LOCAL_MODIFIED,
+                                    NoteColumns.MODIFIED_DATE, NoteColumns.VERSION));
+                } else {
+                    // the notes in the folders are deleted or moved to trash with them
+                    List<Long> noteIds = publish ? queryBulkNoteIds(db, true) : null;
+                    if (!Notes.METHOD_BULK_MOVE_TO_FOLDER.equals(method)) {
+                        widgets = queryBulkWidgets(db);
+                    }
+                    db.execSQL("INSERT INTO " + TABLE.BULK_GUARD + " VALUES(1)");
+                    if (Notes.METHOD_BULK_DELETE.equals(method)) {
+                        count = bulkDelete(db);
+                        NotesChangeBus.publish(NotesChangeBus.OP_DELETE, noteIds, null);
+                    } else {
+                        long folderId = Notes.METHOD_BULK_MOVE_TO_TRASH.equals(method)
+                                ? Notes.ID_TRASH_FOLER
+                                : extras.getLong(Notes.INTENT_EXTRA_FOLDER_ID, Notes.ID_ROOT_FOLDER);
+                        count = bulkMove(db, folderId);
+                        NotesChangeBus.publish(NotesChangeBus.OP_UPDATE, noteIds,
+                                Arrays.asList(NoteColumns.PARENT_ID, NoteColumns.ORIGIN_PARENT_ID,
+                                        NoteColumns.NOTES_COUNT, NoteColumns.LOCAL_MODIFIED,
+                                        NoteColumns.VERSION));
+                    }
+                    recomputeBulkFolderCounts(db);
+                    db.execSQL("DELETE FROM " + TABLE.BULK_GUARD);
+                }
+                db.execSQL("DELETE FROM " + BULK_IDS_TABLE);
+                db.setTransactionSuccessful();
+                successful = count > 0;
+            } finally {
+                db.endTransaction();
+                NotesChangeBus.endBatch(successful);
+            }
+        }
+
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(Notes.EXTRA_BULK_COUNT, count);
+        if (widgets != null && count > 0) {
+            result.putIntArray(Notes.EXTRA_WIDGET_IDS, widgets[0]);
+            result.putIntArray(Notes.EXTRA_WIDGET_TYPES, widgets[1]);
+        }
+        return result;
+    }//基于集合的批量操作：移动、移入回收站、删除、设置颜色
+
+    private void fillBulkIds(SQLiteDatabase db, long[] ids) {
+        clearBulkTables(db);
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT OR IGNORE INTO " + BULK_IDS_TABLE + " VALUES(?)");
+        try {
+            for (long id : ids) {
+                // ID that smaller than or equal to 0 is system folder which is not allowed to
+                // move or delete
+                if (id > 0) {
+                    insert.bindLong(1, id);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }//把待操作的ID写入临时表，系统文件夹不参与批量操作
+
+    private void fillBulkIdsOfFolder(SQLiteDatabase db, long folderId, long[] excludedIds) {
+        clearBulkTables(db);
+        db.execSQL("INSERT INTO " + BULK_IDS_TABLE + " SELECT " + NoteColumns.ID
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID + "=?"
+                + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                + " AND " + NoteColumns.ID + ">0", new Object[] { folderId });
+        if (excludedIds == null || excludedIds.length == 0) {
+            return;
+        }
+        SQLiteStatement delete = db.compileStatement(
+                "DELETE FROM " + BULK_IDS_TABLE + " WHERE _id=?");
+        try {
+            for (long id : excludedIds) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+            }
+        } finally {
+            delete.close();
+        }
+    }//全选时把文件夹中除 excludedIds 以外的笔记写入临时表，不必由界面读取整个文件夹
+
+    private void clearBulkTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS bulk_ids(_id INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS bulk_folders(_id INTEGER PRIMARY KEY)");
+        db.execSQL("DELETE FROM " + BULK_IDS_TABLE);
+        db.execSQL("DELETE FROM " + BULK_FOLDERS_TABLE);
+    }
+
+    private int[][] queryBulkWidgets(SQLiteDatabase db) {
+        Cursor c = rawQueryChecked(db, "SELECT " + NoteColumns.WIDGET_ID + ","
+                + NoteColumns.WIDGET_TYPE
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + " IN ("
+                + BULK_NOTE_IDS_WITH_CHILDREN + ")"
+                + " AND " + NoteColumns.WIDGET_ID + "<>" + AppWidgetManager.INVALID_APPWIDGET_ID
+                + " AND " + NoteColumns.WIDGET_TYPE + "<>" + Notes.TYPE_WIDGET_INVALIDE, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            int[][] widgets = new int[2][c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                widgets[0][i] = c.getInt(0);
+                widgets[1][i] = c.getInt(1);
+            }
+            return widgets;
+        } finally {
+            c.close();
+        }
+    }//被删除或移入回收站的笔记的小部件，由调用者刷新
+
+    private List<Long> queryBulkNoteIds(SQLiteDatabase db, boolean withChildren) {
+        String sql = withChildren ? BULK_NOTE_IDS_WITH_CHILDREN : "SELECT _id FROM " + BULK_IDS_TABLE;
+        return readIds(rawQueryChecked(db, sql, null));
+    }//批量操作涉及的笔记ID，包括文件夹中随之删除或移动的笔记
+
+    /**
+     * Ids of the note and, if {@code withChildren} is set, of the notes in it when it is a
+     * folder. Read before the change so that deleted notes are known too. Only the parent
+     * index is looked up, no table is scanned
+     */
+    private List<Long> queryItemNoteIds(SQLiteDatabase db, long noteId, boolean withChildren) {
+        if (!withChildren) {
+            return Collections.singletonList(noteId);
+        }
+        List<Long> ids = readIds(rawQueryChecked(db, "SELECT " + NoteColumns.ID + " FROM "
+                + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID + "=?",
+                new String[] { String.valueOf(noteId) }));
+        if (ids != null) {
+            ids.add(noteId);
+        }
+        return ids;
+    }
+
+    /**
+     * Ids of the notes changed by a write to the note table. Only a selection bound to one
+     * note is resolved, any other selection may touch every note and returns null, which is
+     * published as a change of unknown notes instead of reading all the ids first
+     */
+    private List<Long> queryBoundNoteIds(SQLiteDatabase db, String selection,
+            String[] selectionArgs, boolean withChildren) {
+        long noteId = getBoundId(selection, selectionArgs, NoteColumns.ID);
+        return noteId != 0 ? queryItemNoteIds(db, noteId, withChildren) : null;
+    }
+
+    /**
+     * Id of the note owning the data changed by a write to the data table, when the selection
+     * is bound to one note, otherwise null for unknown notes
+     */
+    private static List<Long> queryBoundDataNoteIds(String selection, String[] selectionArgs) {
+        long noteId = getBoundId(selection, selectionArgs, DataColumns.NOTE_ID);
+        return noteId != 0 ? Collections.singletonList(noteId) : null;
+    }
+
+    /**
+     * Id of the note owning one data row, looked up by the primary key, and the note the new
+     * values move the row to
+     */
+    private static List<Long> queryDataItemNoteIds(SQLiteDatabase db, String dataId,
+            ContentValues values) {
+        List<Long> ids = readIds(rawQueryChecked(db, "SELECT " + DataColumns.NOTE_ID + " FROM "
+                + TABLE.DATA + " WHERE " + DataColumns.ID + "=?", new String[] { dataId }));
+        Long newNoteId = values != null ? values.getAsLong(DataColumns.NOTE_ID) : null;
+        if (ids != null && newNoteId != null) {
+            ids.add(newNoteId);// 数据移到另一个笔记时，新旧两个笔记都有变化
+        }
+        return ids;
+    }
+
+    /**
+     * The id a selection of the form {@code column=? [AND ...]} is bound to, 0 for any other
+     * selection. A selection with OR is never bound since its terms may match other rows
+     */
+    private static long getBoundId(String selection, String[] selectionArgs, String column) {
+        if (TextUtils.isEmpty(selection) || selectionArgs == null || selectionArgs.length == 0) {
+            return 0;
+        }
+        String where = selection.trim().toUpperCase();
+        String prefix = column.toUpperCase();
+        if (!where.startsWith(prefix) || where.contains(" OR ")) {
+            return 0;
+        }
+        where = where.substring(prefix.length()).trim();
+        if (!where.startsWith("=")) {
+            return 0;
+        }
+        where = where.substring(1).trim();
+        if (!where.startsWith("?")) {
+            return 0;
+        }
+        where = where.substring(1).trim();
+        if (where.length() > 0 && !where.startsWith("AND ")) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(selectionArgs[0]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static List<Long> readIds(Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            ArrayList<Long> ids = new ArrayList<Long>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }//读取游标第一列的ID，读取失败时返回null表示受影响的笔记未知
+
+    private void collectBulkFolders(SQLiteDatabase db) {
+        // old parents of the notes and the notes which are folders themselves
+        db.execSQL("INSERT OR IGNORE INTO " + BULK_FOLDERS_TABLE
+                + " SELECT " + NoteColumns.PARENT_ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + " IN (SELECT _id FROM " + BULK_IDS_TABLE + ")");
+        db.execSQL("INSERT OR IGNORE INTO " + BULK_FOLDERS_TABLE
+                + " SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + " IN (SELECT _id FROM " + BULK_IDS_TABLE + ")"
+                + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER);
+    }//记录批量操作会影响笔记数的文件夹
+
+    private int bulkMove(SQLiteDatabase db, long folderId) {
+        collectBulkFolders(db);
+        db.execSQL("INSERT OR IGNORE INTO " + BULK_FOLDERS_TABLE + " VALUES(?)",
+                new Object[] { folderId });
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE.NOTE
+                + " SET " + NoteColumns.ORIGIN_PARENT_ID + "=" + NoteColumns.PARENT_ID + ","
+                + NoteColumns.PARENT_ID + "=?,"
+                + NoteColumns.LOCAL_MODIFIED + "=1,"
+                + NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1"
+                + " WHERE " + NoteColumns.ID + " IN (SELECT _id FROM " + BULK_IDS_TABLE + ")"
+                + " AND " + NoteColumns.PARENT_ID + "<>?");
+        try {
+            update.bindLong(1, folderId);
+            update.bindLong(2, folderId);
+            return update.executeUpdateDelete();
+        } finally {
+            update.close();
+        }
+    }//一条语句移动所有选中的笔记
+
+    private int bulkDelete(SQLiteDatabase db) {
+        collectBulkFolders(db);
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + " IN (SELECT _id FROM " + BULK_IDS_TABLE + ")");
+        try {
+            return delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+    }//一条语句删除所有选中的笔记，数据和子笔记由触发器级联删除
+
+    private int bulkSetColor(SQLiteDatabase db, int colorId) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE.NOTE
+                + " SET " + NoteColumns.BG_COLOR_ID + "=?,"
+                + NoteColumns.LOCAL_MODIFIED + "=1,"
+                + NoteColumns.MODIFIED_DATE + "=?,"
+                + NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1"
+                + " WHERE " + NoteColumns.ID + " IN (SELECT _id FROM " + BULK_IDS_TABLE + ")"
+                + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE);
+        try {
+            update.bindLong(1, colorId);
+            update.bindLong(2, System.currentTimeMillis());
+            return update.executeUpdateDelete();
+        } finally {
+            update.close();
+        }
+    }//一条语句设置所有选中笔记的背景颜色
+
+    private void recomputeBulkFolderCounts(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + TABLE.NOTE
+                + " SET " + NoteColumns.NOTES_COUNT + "=(SELECT COUNT(*) FROM " + TABLE.NOTE
+                + " AS child WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "."
+                + NoteColumns.ID + ")"
+                + " WHERE " + NoteColumns.ID + " IN (SELECT _id FROM " + BULK_FOLDERS_TABLE + ")");
+        db.execSQL("DELETE FROM " + BULK_FOLDERS_TABLE);
+    }//批量操作结束后一次性重新统计受影响文件夹的笔记数
+
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> notifications = mBatchNotifications.get();
+        if (notifications == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+        // observers of the whole table are also notified of its items, so a batch only
+        // has to tell the table uri once instead of every single item
+        switch (mMatcher.match(uri)) {
+            case URI_NOTE_ITEM:
+                notifications.add(Notes.CONTENT_NOTE_URI);
+                break;
+            case URI_DATA_ITEM:
+                notifications.add(Notes.CONTENT_DATA_URI);
+                break;
+            default:
+                notifications.add(uri);
+                break;
+        }
+    }//发送变更通知，批量操作期间先收集起来
+
+    private void sendNotifications(HashSet<Uri> notifications) {
+        for (Uri uri : notifications) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }//批量操作提交后发送收集到的通知
+
+    /**
+     * Rows of {@link Notes#CONTENT_NOTE_LIST_URI} that come after the given key in
+     * {@link #NOTE_LIST_KEYSET_ORDER}
+     */
+    private static String buildKeysetSelection(long type, long modifiedDate, long id) {
+        return "(" + NoteColumns.TYPE + "<" + type
+                + " OR (" + NoteColumns.TYPE + "=" + type
+                + " AND (" + NoteColumns.MODIFIED_DATE + "<" + modifiedDate
+                + " OR (" + NoteColumns.MODIFIED_DATE + "=" + modifiedDate
+                + " AND " + NoteColumns.ID + ">" + id + "))))";
+    }//构建键集分页的查询条件
+
+    /**
+     * {@link SQLiteDatabase#query} with its plan checked first when plans are checked, see
+     * {@link NotesQueryPlan}
+     */
+    private static Cursor queryChecked(SQLiteDatabase db, String table, String[] columns,
+            String selection, String[] selectionArgs, String groupBy, String having,
+            String orderBy, String limit) {
+        NotesQueryPlan.check(db, SQLiteQueryBuilder.buildQueryString(false, table, columns,
+                selection, groupBy, having, orderBy, limit), selectionArgs);
+        return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy,
+                limit);
+    }
+
+    private static Cursor queryChecked(SQLiteDatabase db, String table, String[] columns,
+            String selection, String[] selectionArgs, String groupBy, String having,
+            String orderBy) {
+        return queryChecked(db, table, columns, selection, selectionArgs, groupBy, having,
+                orderBy, null);
+    }
+
+    private static Cursor rawQueryChecked(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        NotesQueryPlan.check(db, sql, selectionArgs);
+        return db.rawQuery(sql, selectionArgs);
+    }//执行查询，检查查询计划时先解释查询
+
+    private static long parseLongParameter(Uri uri, String name) {
+        try {
+            return Long.parseLong(uri.getQueryParameter(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+        }
+    }//解析 URI 中的数字参数
+
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }//解析选择条件，构建出带有括号的selection子句
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
-        StringBuilder sql = new StringBuilder(120);//用于构建SQL语句
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");//增加版本号
-
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
-        }//如果id大于0或selection不为空，则需要添加WHERE子句
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
-        }//如果id大于0，则按照ID进行更新
+    /**
+     * Update one row by its id. The values and the id are bound as arguments, so the sql only
+     * depends on the set of updated columns and is found in the prepared statement cache of
+     * the connection
+     */
+    private int updateRow(SQLiteDatabase db, String table, String idColumn, String id,
+            ContentValues values, String selection, String[] selectionArgs,
+            boolean increaseVersion) {
+        return updateRows(db, table, values, idColumn + "=?" + parseSelection(selection),
+                prependArgument(id, selectionArgs), increaseVersion);
+    }
+
+    private static String[] prependArgument(String arg, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return new String[] { arg };
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = arg;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }//把ID放在查询参数的最前面
+
+    /**
+     * Update the rows matching the selection in a single statement with bound arguments, the
+     * version of the notes is increased by the same statement unless it is set explicitly
+     */
+    private int updateRows(SQLiteDatabase db, String table, ContentValues values,
+            String selection, String[] selectionArgs, boolean increaseVersion) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        // sorted so that the same set of columns always gives the same sql
+        ArrayList<String> columns = new ArrayList<String>(values.keySet());
+        Collections.sort(columns);
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(columns.get(i)).append("=?");
+        }
+        if (increaseVersion && !values.containsKey(NoteColumns.VERSION)) {
+            sql.append(',').append(NoteColumns.VERSION).append('=')
+                    .append(NoteColumns.VERSION).append("+1");
+        }
         if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+            sql.append(" WHERE ").append(selection);
+        }
+
+        // every connection keeps its own prepared statements, compiling the same sql again
+        // reuses them; a statement shared between threads would need a lock held while it runs
+        SQLiteStatement update = db.compileStatement(sql.toString());
+        try {
+            return executeUpdate(update, columns, values, selectionArgs);
+        } finally {
+            update.close();
+        }
+    }//一条带绑定参数的UPDATE语句更新记录，同时增加NOTE版本号
+
+    private static int executeUpdate(SQLiteStatement update, List<String> columns,
+            ContentValues values, String[] selectionArgs) {
+        int index = 1;
+        for (String column : columns) {
+            bindValue(update, index++, values.get(column));
+        }
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                bindValue(update, index++, arg);
             }
-            sql.append(selectString);
-        }//如果selection不为空，构建出WHERE子句
+        }
+        return update.executeUpdateDelete();
+    }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());// 执行SQL语句
-    }//增加NOTE版本号的方法
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }//按值的类型绑定参数，与 SQLiteDatabase.update 的绑定方式一致
 
     @Override
     public String getType(Uri uri) {
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Explains the queries of the provider before they run. It is off unless
+ * {@code adb shell setprop log.tag.NotesQueryPlan DEBUG} is set or a listener is installed;
+ * then every query the provider runs is passed through EXPLAIN QUERY PLAN, and a plan that
+ * scans a whole table or sorts in a temporary b-tree is logged as a warning. Using the app
+ * with the property set lists the queries that miss their index, tests install a listener
+ * to collect the plans instead
+ */
+final class NotesQueryPlan {
+    private static final String TAG = "NotesQueryPlan";
+
+    /**
+     * Receives the plan of every query, one line per step of the plan
+     */
+    interface OnPlanListener {
+        void onPlan(String sql, String plan, boolean indexed);
+    }
+
+    private static volatile OnPlanListener sListener;
+
+    private NotesQueryPlan() {
+    }
+
+    static void setListener(OnPlanListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Explain the query if plans are checked, the query itself is not run
+     */
+    static void check(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        OnPlanListener listener = sListener;
+        if (listener == null && !Log.isLoggable(TAG, Log.DEBUG)) {
+            return;
+        }
+        StringBuilder plan = new StringBuilder();
+        boolean indexed = true;
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            while (c.moveToNext()) {
+                // the detail is the fourth column in the old and the new format of the plan
+                String detail = c.getString(3);
+                plan.append(detail).append('\n');
+                indexed &= !isFullPass(detail);
+            }
+        } finally {
+            c.close();
+        }
+        if (listener != null) {
+            listener.onPlan(sql, plan.toString(), indexed);
+        } else if (!indexed) {
+            Log.w(TAG, sql + "\n" + plan);
+        } else {
+            Log.d(TAG, sql + "\n" + plan);
+        }
+    }
+
+    /**
+     * Whether a step of the plan reads a whole table or index, or sorts the rows. A full-text
+     * lookup is reported as a scan of the virtual table but uses its index
+     */
+    static boolean isFullPass(String detail) {
+        if (detail.startsWith("USE TEMP B-TREE")) {
+            return true;
+        }
+        return detail.startsWith("SCAN ") && !detail.contains("VIRTUAL TABLE")
+                && !detail.startsWith("SCAN CONSTANT");
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+/**
+ * Maintains the full-text index of the searchable data and builds the MATCH expressions that
+ * query it. The default tokenizer of fts only splits text at ASCII separators and matches a
+ * term as the prefix of a token, so the text is segmented here before it is indexed:
+ * <ul>
+ * <li>every word is indexed together with its suffixes, so a term matches anywhere inside a
+ * word as the old LIKE search did</li>
+ * <li>a run of CJK characters, which has no separators, is indexed as its overlapping
+ * character bigrams followed by its last character, a CJK term is matched as the phrase of
+ * its bigrams</li>
+ * </ul>
+ * The index is written by the provider whenever the content of a data row is written, rows
+ * are removed from it by a trigger when their data is deleted.
+ */
+final class NotesSearchIndex {
+    // a word longer than this only has the suffixes starting in its first characters indexed
+    private static final int MAX_WORD_SUFFIXES = 32;
+
+    private NotesSearchIndex() {
+    }
+
+    /**
+     * Whether data of the given type is indexed
+     */
+    static boolean isSearchable(String mimeType) {
+        return DataConstants.NOTE.equals(mimeType)
+                || DataConstants.CHECK_LIST_ITEM.equals(mimeType);
+    }
+
+    /**
+     * Replace the index entry of one data row, data that is not searchable is only removed
+     */
+    static void index(SQLiteDatabase db, long dataId, String mimeType, String content) {
+        SQLiteStatement delete = db.compileStatement(
+                "DELETE FROM " + TABLE.DATA_FTS + " WHERE docid=?");
+        try {
+            delete.bindLong(1, dataId);
+            delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+        if (!isSearchable(mimeType) || content == null) {
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE.DATA_FTS
+                + "(docid," + DataColumns.CONTENT + ") VALUES(?,?)");
+        try {
+            insert.bindLong(1, dataId);
+            insert.bindString(2, buildIndexText(content));
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Index again the data rows matching the selection, after their content has been updated
+     */
+    static void reindex(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(TABLE.DATA, new String[] {
+                DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT
+        }, selection, selectionArgs, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                index(db, cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drop the whole index and build it again from the searchable data
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE.DATA_FTS);
+        reindex(db, DataColumns.MIME_TYPE + " IN " + NotesDatabaseHelper.SEARCHABLE_MIME_TYPES,
+                null);
+    }
+
+    /**
+     * The text stored in the index for the given content
+     */
+    static String buildIndexText(String content) {
+        StringBuilder sb = new StringBuilder(content.length() * 2);
+        int length = content.length();
+        int start = 0;
+        while (start < length) {
+            char c = content.charAt(start);
+            if (!Character.isLetterOrDigit(c)) {
+                start++;
+                continue;
+            }
+            boolean cjk = isCjk(c);
+            int end = findRunEnd(content, start, cjk);
+            if (cjk) {
+                for (int i = start; i + 1 < end; i++) {
+                    sb.append(content, i, i + 2).append(' ');
+                }
+                sb.append(content.charAt(end - 1)).append(' ');
+            } else {
+                for (int i = start; i < end && i - start < MAX_WORD_SUFFIXES; i++) {
+                    sb.append(content, i, end).append(' ');
+                }
+            }
+            start = end;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Build the MATCH expression of a search, every term has to be found in the note. A term
+     * matches inside a word, a CJK term anywhere in a run of CJK characters. Returns null if
+     * the search has no letters or digits
+     */
+    static String buildMatch(String searchString) {
+        StringBuilder sb = new StringBuilder(searchString.length() * 3);
+        int length = searchString.length();
+        int start = 0;
+        while (start < length) {
+            char c = searchString.charAt(start);
+            if (!Character.isLetterOrDigit(c)) {
+                start++;
+                continue;
+            }
+            boolean cjk = isCjk(c);
+            int end = findRunEnd(searchString, start, cjk);
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"');
+            if (cjk && end - start > 1) {
+                // the phrase of the bigrams, they are consecutive tokens of the index
+                for (int i = start; i + 1 < end; i++) {
+                    if (i > start) {
+                        sb.append(' ');
+                    }
+                    sb.append(searchString, i, i + 2);
+                }
+            } else {
+                // the star has to be inside the quotes, outside them fts4 matches the whole token
+                sb.append(searchString, start, end).append('*');
+            }
+            sb.append('"');
+            start = end;
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static int findRunEnd(String text, int start, boolean cjk) {
+        int end = start + 1;
+        while (end < text.length()) {
+            char c = text.charAt(end);
+            if (!Character.isLetterOrDigit(c) || isCjk(c) != cjk) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isCjk(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+}
@@ -12,14 +12,19 @@ import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.CheckListItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * 笔记实体类，用于管理笔记的创建、更新和同步操作
+ * 修改在界面线程进行，同步可以在后台线程进行，两者以本对象为锁
  */
 public class Note {
     private ContentValues mNoteDiffValues; // 存储笔记差异值的ContentValues
@@ -34,14 +39,8 @@ public class Note {
      */
     public static synchronized long getNewNoteId(Context context, long folderId) {
         // 在数据库中创建一个新笔记
-        ContentValues values = new ContentValues();
-        long createdTime = System.currentTimeMillis();
-        values.put(NoteColumns.CREATED_DATE, createdTime);    // 设置创建时间
-        values.put(NoteColumns.MODIFIED_DATE, createdTime);   // 设置修改时间
-        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);       // 设置笔记类型
-        values.put(NoteColumns.LOCAL_MODIFIED, 1);            // 标记为本地已修改
-        values.put(NoteColumns.PARENT_ID, folderId);          // 设置父文件夹ID
-        Uri uri = context.getContentResolver().insert(Notes.CONTENT_NOTE_URI, values);
+        Uri uri = context.getContentResolver().insert(Notes.CONTENT_NOTE_URI,
+                newNoteValues(folderId));
 
         long noteId = 0;
         try {
@@ -57,6 +56,21 @@ public class Note {
         return noteId;
     }
 
+    /**
+     * 新笔记的初始值
+     * @param folderId 文件夹ID
+     */
+    private static ContentValues newNoteValues(long folderId) {
+        ContentValues values = new ContentValues();
+        long createdTime = System.currentTimeMillis();
+        values.put(NoteColumns.CREATED_DATE, createdTime);    // 设置创建时间
+        values.put(NoteColumns.MODIFIED_DATE, createdTime);   // 设置修改时间
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);       // 设置笔记类型
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);            // 标记为本地已修改
+        values.put(NoteColumns.PARENT_ID, folderId);          // 设置父文件夹ID
+        return values;
+    }
+
     public Note() {
         mNoteDiffValues = new ContentValues();
         mNoteData = new NoteData();
@@ -67,7 +81,7 @@ public class Note {
      * @param key 键
      * @param value 值
      */
-    public void setNoteValue(String key, String value) {
+    public synchronized void setNoteValue(String key, String value) {
         mNoteDiffValues.put(key, value);
         mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);       // 标记为本地已修改
         mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis()); // 更新修改时间
@@ -78,7 +92,7 @@ public class Note {
      * @param key 键
      * @param value 值
      */
-    public void setTextData(String key, String value) {
+    public synchronized void setTextData(String key, String value) {
         mNoteData.setTextData(key, value);
     }
 
@@ -86,7 +100,7 @@ public class Note {
      * 设置文本数据ID
      * @param id 文本数据ID
      */
-    public void setTextDataId(long id) {
+    public synchronized void setTextDataId(long id) {
         mNoteData.setTextDataId(id);
     }
 
@@ -94,7 +108,7 @@ public class Note {
      * 获取文本数据ID
      * @return 文本数据ID
      */
-    public long getTextDataId() {
+    public synchronized long getTextDataId() {
         return mNoteData.mTextDataId;
     }
 
@@ -102,7 +116,7 @@ public class Note {
      * 设置通话数据ID
      * @param id 通话数据ID
      */
-    public void setCallDataId(long id) {
+    public synchronized void setCallDataId(long id) {
         mNoteData.setCallDataId(id);
     }
 
@@ -111,20 +125,45 @@ public class Note {
      * @param key 键
      * @param value 值
      */
-    public void setCallData(String key, String value) {
+    public synchronized void setCallData(String key, String value) {
         mNoteData.setCallData(key, value);
     }
 
+    /**
+     * 设置需要写入的清单条目，即新增或修改过的条目，替换之前设置的条目
+     * @param items 新增或修改过的清单条目
+     */
+    public synchronized void setCheckListItems(List<WorkingNote.ListItem> items) {
+        mNoteData.setCheckListItems(items);
+    }
+
+    /**
+     * 删除清单条目
+     * @param ids 要删除的清单条目的数据ID
+     */
+    public synchronized void deleteCheckListItems(Collection<Long> ids) {
+        mNoteData.deleteCheckListItems(ids);
+    }
+
+    /**
+     * 删除笔记的所有清单条目，用于从清单模式切换回普通模式
+     */
+    public synchronized void clearCheckListItems() {
+        mNoteData.clearCheckListItems();
+    }
+
     /**
      * 检查笔记是否在本地被修改过
      * @return 如果被修改过返回true，否则返回false
      */
-    public boolean isLocalModified() {
+    public synchronized boolean isLocalModified() {
         return mNoteDiffValues.size() > 0 || mNoteData.isLocalModified();
     }
 
     /**
-     * 同步笔记到数据库
+     * 同步笔记到数据库，可以在后台线程调用
+     * 先在锁内取出当前的所有改动，写入期间的新修改记在新的对象中，不会被这次写入清除；
+     * 笔记和所有数据的改动在同一个事务中写入，写入失败时取出的改动放回，下次同步时重试
      * @param context 上下文对象
      * @param noteId 笔记ID
      * @return 同步是否成功
@@ -133,30 +172,83 @@ public class Note {
         if (noteId <= 0) {
             throw new IllegalArgumentException("错误的笔记ID:" + noteId);
         }
+        return sync(context, noteId, 0) > 0;
+    }
+
+    /**
+     * 创建新笔记并写入所有改动，笔记和数据在同一个事务中插入
+     * @param context 上下文对象
+     * @param folderId 文件夹ID
+     * @return 新创建的笔记ID，失败时返回0
+     */
+    public long syncNewNote(Context context, long folderId) {
+        return sync(context, 0, folderId);
+    }
 
-        if (!isLocalModified()) {
-            return true;
+    /**
+     * noteId 为0时插入新笔记，数据通过反向引用取得新笔记的ID
+     * @return 笔记ID，失败时返回0
+     */
+    private long sync(Context context, long noteId, long folderId) {
+        ContentValues noteDiffValues;
+        NoteData noteData;
+        synchronized (this) {
+            if (noteId > 0 && !isLocalModified()) {
+                return noteId;
+            }
+            noteDiffValues = mNoteDiffValues;
+            mNoteDiffValues = new ContentValues();
+            noteData = mNoteData;
+            mNoteData = noteData.detach();
         }
 
-        /**
-         * 理论上，一旦数据改变，笔记应该在{@link NoteColumns#LOCAL_MODIFIED}和
-         * {@link NoteColumns#MODIFIED_DATE}上更新。为了数据安全，即使更新笔记失败，
-         * 我们也会更新笔记数据信息
-         */
-        if (context.getContentResolver().update(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), mNoteDiffValues, null,
-                null) == 0) {
-            Log.e(TAG, "更新笔记错误，不应该发生");
-            // 不返回，继续执行
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        if (noteId == 0) {
+            ContentValues values = newNoteValues(folderId);
+            values.putAll(noteDiffValues);
+            operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(values).build());
+        } else if (noteDiffValues.size() > 0) {
+            // 只改动了清单条目时笔记本身没有需要更新的值
+            operationList.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                    .withValues(noteDiffValues).build());
         }
-        mNoteDiffValues.clear();
+        int noteIndex = operationList.isEmpty() ? -1 : 0;
+        noteData.addOperations(operationList, noteId, noteIndex);
 
-        if (mNoteData.isLocalModified()
-                && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
-            return false;
+        long syncedId = 0;
+        try {
+            ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                    Notes.AUTHORITY, operationList);
+            if (results != null && results.length == operationList.size()) {
+                syncedId = noteId > 0 ? noteId : ContentUris.parseId(results[noteIndex].uri);
+                // 为了数据安全，即使没有更新到笔记，数据的改动也照常写入
+                if (noteId > 0 && noteIndex == 0 && results[0].count != null
+                        && results[0].count == 0) {
+                    Log.e(TAG, "更新笔记错误，不应该发生");
+                }
+                noteData.onApplied(results);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        if (syncedId <= 0) {
+            Log.e(TAG, "同步笔记失败，笔记ID:" + noteId);
+            syncedId = 0;
         }
 
-        return true;
+        synchronized (this) {
+            mNoteData.onPushed(noteData);
+            if (syncedId == 0) {
+                noteDiffValues.putAll(mNoteDiffValues);
+                mNoteDiffValues = noteDiffValues;
+                mNoteData.restore(noteData);
+            }
+        }
+        return syncedId;
     }
 
     /**
@@ -167,11 +259,22 @@ public class Note {
         private ContentValues mTextDataValues;  // 文本数据值
         private long mCallDataId;              // 通话数据ID
         private ContentValues mCallDataValues; // 通话数据值
+        private ArrayList<WorkingNote.ListItem> mListItems; // 新增或修改过的清单条目
+        private ArrayList<ContentValues> mListItemValues;   // 设置清单条目时取出的要写入的值
+        private long[] mListItemIds;                        // 写入后各清单条目的数据ID
+        private int mTextDataIndex;                         // 插入文本数据的操作的位置，-1表示没有
+        private int mCallDataIndex;                         // 插入通话数据的操作的位置，-1表示没有
+        private int mListItemIndex;                         // 第一个清单条目操作的位置
+        private HashSet<Long> mDeletedListItemIds;          // 待删除的清单条目ID
+        private boolean mClearListItems;                    // 是否先删除笔记的所有清单条目
         private static final String TAG = "NoteData"; // 日志标签
 
         public NoteData() {
             mTextDataValues = new ContentValues();
             mCallDataValues = new ContentValues();
+            mListItems = new ArrayList<WorkingNote.ListItem>();
+            mListItemValues = new ArrayList<ContentValues>();
+            mDeletedListItemIds = new HashSet<Long>();
             mTextDataId = 0;
             mCallDataId = 0;
         }
@@ -181,7 +284,78 @@ public class Note {
          * @return 如果被修改过返回true，否则返回false
          */
         boolean isLocalModified() {
-            return mTextDataValues.size() > 0 || mCallDataValues.size() > 0;
+            return mTextDataValues.size() > 0 || mCallDataValues.size() > 0
+                    || mListItems.size() > 0 || mDeletedListItemIds.size() > 0 || mClearListItems;
+        }
+
+        void setCheckListItems(List<WorkingNote.ListItem> items) {
+            mListItems.clear();
+            mListItemValues.clear();
+            for (WorkingNote.ListItem item : items) {
+                mListItems.add(item);
+                mListItemValues.add(item.getValues());
+            }
+        }
+
+        void deleteCheckListItems(Collection<Long> ids) {
+            mDeletedListItemIds.addAll(ids);
+        }
+
+        void clearCheckListItems() {
+            mClearListItems = true;
+            mListItems.clear();
+            mListItemValues.clear();
+            mDeletedListItemIds.clear();
+        }
+
+        /**
+         * 取出当前的改动时调用，返回一个只有数据ID、没有改动的对象接替本对象
+         */
+        NoteData detach() {
+            NoteData next = new NoteData();
+            next.mTextDataId = mTextDataId;
+            next.mCallDataId = mCallDataId;
+            return next;
+        }
+
+        /**
+         * 取出的改动写入后调用，记下新插入的数据ID，并告诉清单条目已经写入的值
+         */
+        void onPushed(NoteData pushed) {
+            if (mTextDataId == 0) {
+                mTextDataId = pushed.mTextDataId;
+            }
+            if (mCallDataId == 0) {
+                mCallDataId = pushed.mCallDataId;
+            }
+            if (pushed.mListItemIds != null) {
+                for (int i = 0; i < pushed.mListItemIds.length; i++) {
+                    pushed.mListItems.get(i).onSaved(pushed.mListItemIds[i],
+                            pushed.mListItemValues.get(i));
+                }
+            }
+        }
+
+        /**
+         * 取出的改动写入失败时调用，放回这些改动，之后的修改优先
+         */
+        void restore(NoteData failed) {
+            failed.mTextDataValues.putAll(mTextDataValues);
+            mTextDataValues = failed.mTextDataValues;
+            failed.mCallDataValues.putAll(mCallDataValues);
+            mCallDataValues = failed.mCallDataValues;
+            if (!mClearListItems && failed.mListItemIds == null) {
+                // 之后又设置过的条目以之后的值为准
+                HashSet<WorkingNote.ListItem> pending = new HashSet<WorkingNote.ListItem>(mListItems);
+                for (int i = 0; i < failed.mListItems.size(); i++) {
+                    if (!pending.contains(failed.mListItems.get(i))) {
+                        mListItems.add(failed.mListItems.get(i));
+                        mListItemValues.add(failed.mListItemValues.get(i));
+                    }
+                }
+                mDeletedListItemIds.addAll(failed.mDeletedListItemIds);
+                mClearListItems = failed.mClearListItems;
+            }
         }
 
         /**
@@ -229,86 +403,105 @@ public class Note {
         }
 
         /**
-         * 将数据推送到ContentResolver
-         * @param context 上下文对象
-         * @param noteId 笔记ID
-         * @return 操作结果的URI，如果失败返回null
+         * 把数据的改动加入批量操作
+         * @param operationList 批量操作列表
+         * @param noteId 笔记ID，新笔记为0
+         * @param noteIndex 插入新笔记的操作在列表中的位置，noteId 为0时用于反向引用笔记ID
          */
-        Uri pushIntoContentResolver(Context context, long noteId) {
-            // 安全检查
-            if (noteId <= 0) {
-                throw new IllegalArgumentException("错误的笔记ID:" + noteId);
-            }
-
-            ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-            ContentProviderOperation.Builder builder = null;
-
+        void addOperations(ArrayList<ContentProviderOperation> operationList, long noteId,
+                int noteIndex) {
             // 处理文本数据
-            if(mTextDataValues.size() > 0) {
-                mTextDataValues.put(DataColumns.NOTE_ID, noteId);
+            mTextDataIndex = -1;
+            if (mTextDataValues.size() > 0) {
                 if (mTextDataId == 0) {
                     // 如果是新文本数据，则插入
-                    mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mTextDataValues);
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "插入新文本数据失败，笔记ID:" + noteId);
-                        mTextDataValues.clear();
-                        return null;
-                    }
+                    mTextDataIndex = operationList.size();
+                    operationList.add(newDataInsert(noteId, noteIndex, TextNote.CONTENT_ITEM_TYPE)
+                            .withValues(mTextDataValues).build());
                 } else {
                     // 如果是现有文本数据，则更新
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mTextDataId));
-                    builder.withValues(mTextDataValues);
-                    operationList.add(builder.build());
+                    operationList.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                            Notes.CONTENT_DATA_URI, mTextDataId))
+                            .withValues(mTextDataValues).build());
                 }
-                mTextDataValues.clear();
             }
 
             // 处理通话数据
-            if(mCallDataValues.size() > 0) {
-                mCallDataValues.put(DataColumns.NOTE_ID, noteId);
+            mCallDataIndex = -1;
+            if (mCallDataValues.size() > 0) {
                 if (mCallDataId == 0) {
                     // 如果是新通话数据，则插入
-                    mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mCallDataValues);
-                    try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "插入新通话数据失败，笔记ID:" + noteId);
-                        mCallDataValues.clear();
-                        return null;
-                    }
+                    mCallDataIndex = operationList.size();
+                    operationList.add(newDataInsert(noteId, noteIndex, CallNote.CONTENT_ITEM_TYPE)
+                            .withValues(mCallDataValues).build());
                 } else {
                     // 如果是现有通话数据，则更新
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mCallDataId));
-                    builder.withValues(mCallDataValues);
-                    operationList.add(builder.build());
+                    operationList.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                            Notes.CONTENT_DATA_URI, mCallDataId))
+                            .withValues(mCallDataValues).build());
                 }
-                mCallDataValues.clear();
             }
 
-            // 执行批量操作
-            if (operationList.size() > 0) {
-                try {
-                    ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                            Notes.AUTHORITY, operationList);
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                } catch (RemoteException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                } catch (OperationApplicationException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
+            // 处理清单条目，每个条目一行，只写入新增、修改和删除的条目
+            if (mClearListItems && noteId > 0) {
+                operationList.add(ContentProviderOperation.newDelete(Notes.CONTENT_DATA_URI)
+                        .withSelection(DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE
+                                + "=?", new String[] {
+                                    String.valueOf(noteId), CheckListItem.CONTENT_ITEM_TYPE
+                                })
+                        .build());
+            }
+            for (Long id : mDeletedListItemIds) {
+                operationList.add(ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, id)).build());
+            }
+            mListItemIndex = operationList.size();
+            for (int i = 0; i < mListItems.size(); i++) {
+                WorkingNote.ListItem item = mListItems.get(i);
+                ContentProviderOperation.Builder builder;
+                if (item.getDataId() == 0) {
+                    builder = newDataInsert(noteId, noteIndex, CheckListItem.CONTENT_ITEM_TYPE);
+                } else {
+                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                            Notes.CONTENT_DATA_URI, item.getDataId()));
                 }
+                builder.withValues(mListItemValues.get(i));
+                operationList.add(builder.build());
+            }
+        }
+
+        /**
+         * 插入数据的操作，新笔记的ID取自同一批中插入笔记的操作
+         */
+        private ContentProviderOperation.Builder newDataInsert(long noteId, int noteIndex,
+                String mimeType) {
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI);
+            if (noteId > 0) {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            } else {
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteIndex);
+            }
+            return builder.withValue(DataColumns.MIME_TYPE, mimeType);
+        }
+
+        /**
+         * 批量操作成功后调用，记下新插入的数据ID，
+         * 之后由 {@link #onPushed} 告诉清单条目已经写入，只有再次改动的条目才需要写入
+         */
+        void onApplied(ContentProviderResult[] results) {
+            if (mTextDataIndex >= 0) {
+                setTextDataId(ContentUris.parseId(results[mTextDataIndex].uri));
+            }
+            if (mCallDataIndex >= 0) {
+                setCallDataId(ContentUris.parseId(results[mCallDataIndex].uri));
+            }
+            mListItemIds = new long[mListItems.size()];
+            for (int i = 0; i < mListItemIds.length; i++) {
+                WorkingNote.ListItem item = mListItems.get(i);
+                mListItemIds[i] = item.getDataId() == 0
+                        ? ContentUris.parseId(results[mListItemIndex + i].uri) : item.getDataId();
             }
-            return null;
         }
     }
 }
@@ -2,6 +2,7 @@ package net.micode.notes.model;
 
 import android.appwidget.AppWidgetManager;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
@@ -9,24 +10,31 @@ import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.CheckListItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
 /**
  * 工作笔记类，用于管理当前正在编辑的笔记
  */
 public class WorkingNote {
     // 笔记对象
     private Note mNote;
-    // 笔记ID
-    private long mNoteId;
+    // 笔记ID，可能在后台保存时创建
+    private volatile long mNoteId;
     // 笔记内容
-    private String mContent;
+    private volatile String mContent;
     // 笔记模式（普通模式或清单模式）
     private int mMode;
+    // 清单模式下的清单条目，普通模式下为null
+    private ArrayList<ListItem> mListItems;
 
     private long mAlertDate;       // 提醒日期
     private long mModifiedDate;    // 修改日期
@@ -37,8 +45,18 @@ public class WorkingNote {
     private Context mContext;  // 上下文对象
 
     private static final String TAG = "WorkingNote"; // 日志标签
-    private boolean mIsDeleted; // 是否已删除标记
+    private volatile boolean mIsDeleted; // 是否已删除标记
     private NoteSettingChangedListener mNoteSettingStatusListener; // 笔记设置变更监听器
+    private boolean mConvertingCheckList; // 以文本保存的清单已被修改，需要逐条写入清单条目
+
+    // 清单条目的文本形式所用的标记，与以前以文本保存的清单兼容
+    public static final String TAG_CHECKED = String.valueOf('\u221A');
+    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+
+    // 清单模式下文本数据只保存前若干个条目，供摘要和小部件使用，搜索同时匹配各个清单条目
+    private static final int CHECK_LIST_PREVIEW_ITEMS = 20;
+    // 新条目排序键的间隔，在两个条目之间插入时不必移动其他条目
+    private static final long ORDER_STEP = 1L << 16;
 
     // 数据表查询列
     public static final String[] DATA_PROJECTION = new String[] {
@@ -66,6 +84,8 @@ public class WorkingNote {
     private static final int DATA_CONTENT_COLUMN = 1;
     private static final int DATA_MIME_TYPE_COLUMN = 2;
     private static final int DATA_MODE_COLUMN = 3;
+    private static final int DATA_CHECKED_COLUMN = 3;
+    private static final int DATA_ORDER_COLUMN = 4;
 
     // 笔记表列索引
     private static final int NOTE_PARENT_ID_COLUMN = 0;
@@ -139,8 +159,9 @@ public class WorkingNote {
         Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
                 DataColumns.NOTE_ID + "=?", new String[] {
                     String.valueOf(mNoteId)
-                }, null);
+                }, CheckListItem.ORDER + " ASC");
 
+        ArrayList<ListItem> items = new ArrayList<ListItem>();
         if (cursor != null) {
             if (cursor.moveToFirst()) {
                 do {
@@ -151,6 +172,11 @@ public class WorkingNote {
                         mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
                     } else if (DataConstants.CALL_NOTE.equals(type)) {
                         mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
+                    } else if (DataConstants.CHECK_LIST_ITEM.equals(type)) {
+                        items.add(new ListItem(cursor.getLong(DATA_ID_COLUMN),
+                                cursor.getString(DATA_CONTENT_COLUMN),
+                                cursor.getInt(DATA_CHECKED_COLUMN) != 0,
+                                cursor.getLong(DATA_ORDER_COLUMN)));
                     } else {
                         Log.d(TAG, "错误的笔记类型:" + type);
                     }
@@ -161,6 +187,19 @@ public class WorkingNote {
             Log.e(TAG, "找不到ID为:" + mNoteId + "的笔记数据");
             throw new IllegalArgumentException("无法找到ID为 " + mNoteId + " 的笔记数据");
         }
+
+        if (mMode == TextNote.MODE_CHECK_LIST) {
+            if (items.isEmpty()) {
+                // 以前以文本保存的清单，内容不变，只打开不修改时不写入，
+                // 第一次修改时再逐条写入清单条目
+                items = parseCheckList(mContent);
+                assignOrders(items);
+                for (ListItem item : items) {
+                    item.onSaved(0, item.getValues());
+                }
+            }
+            mListItems = items;
+        }
     }
 
     /**
@@ -192,20 +231,21 @@ public class WorkingNote {
     }
 
     /**
-     * 保存笔记
+     * 保存笔记，可以在后台线程调用，此时小部件变更的回调也在后台线程
      * @return 是否保存成功
      */
     public synchronized boolean saveNote() {
         if (isWorthSaving()) {
             if (!existInDatabase()) {
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
+                // 新笔记和它的数据在同一个事务中插入
+                if ((mNoteId = mNote.syncNewNote(mContext, mFolderId)) == 0) {
                     Log.e(TAG, "创建新笔记失败，ID:" + mNoteId);
                     return false;
                 }
+            } else {
+                mNote.syncNote(mContext, mNoteId);
             }
 
-            mNote.syncNote(mContext, mNoteId);
-
             /**
              * 如果存在该笔记的小部件，则更新小部件内容
              */
@@ -232,7 +272,7 @@ public class WorkingNote {
      * 检查笔记是否值得保存
      * @return 是否值得保存
      */
-    private boolean isWorthSaving() {
+    public boolean isWorthSaving() {
         if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent))
                 || (existInDatabase() && !mNote.isLocalModified())) {
             return false;
@@ -299,6 +339,20 @@ public class WorkingNote {
             if (mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onCheckListModeChanged(mMode, mode);
             }
+            if (mode == TextNote.MODE_CHECK_LIST) {
+                // 界面会把当前文本拆成清单条目，再通过 setCheckListItems 交回
+                mListItems = new ArrayList<ListItem>();
+                if (mNoteSettingStatusListener == null) {
+                    setCheckListItems(parseCheckList(mContent));
+                }
+            } else if (mListItems != null) {
+                // 转回普通模式，界面已经把清单条目转换为文本，这里删除所有清单条目
+                if (mNoteSettingStatusListener == null) {
+                    setWorkingText(buildCheckListText(mListItems, mListItems.size()));
+                }
+                mListItems = null;
+                mNote.clearCheckListItems();
+            }
             mMode = mode;
             mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
         }
@@ -337,6 +391,138 @@ public class WorkingNote {
         }
     }
 
+    /**
+     * 清单模式下设置所有清单条目，只有新增、修改和删除的条目在保存时写入数据库，
+     * 文本数据只保存前 {@link #CHECK_LIST_PREVIEW_ITEMS} 个条目的文本形式
+     * @param items 按顺序排列的清单条目，可以包含之前通过 {@link #getCheckListItems} 取得的条目
+     */
+    public void setCheckListItems(List<ListItem> items) {
+        // 后台保存取出改动时不会看到只设置了一半的条目
+        synchronized (mNote) {
+            setCheckListItemsLocked(items);
+        }
+    }
+
+    private void setCheckListItemsLocked(List<ListItem> items) {
+        ArrayList<ListItem> newItems = new ArrayList<ListItem>(items);
+        assignOrders(newItems);
+
+        boolean touched = false;
+        HashSet<ListItem> kept = new HashSet<ListItem>(newItems);
+        ArrayList<Long> removedIds = new ArrayList<Long>();
+        if (mListItems != null) {
+            for (ListItem item : mListItems) {
+                if (!kept.contains(item)) {
+                    touched = true;
+                    if (item.getDataId() > 0) {
+                        removedIds.add(item.getDataId());
+                    }
+                }
+            }
+        }
+        ArrayList<ListItem> changed = new ArrayList<ListItem>();
+        ArrayList<ListItem> unsaved = new ArrayList<ListItem>();
+        for (ListItem item : newItems) {
+            if (item.isModified()) {
+                touched = true;
+                changed.add(item);
+            } else if (item.getDataId() == 0) {
+                // 从文本形式转换来的条目，内容没有变化，但还没有写入
+                unsaved.add(item);
+            }
+        }
+
+        mListItems = newItems;
+        if (touched) {
+            // 以文本保存的清单在第一次修改时整体转换，没有修改时不写入
+            mConvertingCheckList = true;
+        }
+        if (mConvertingCheckList) {
+            changed.addAll(unsaved);
+        }
+        mNote.setCheckListItems(changed);
+        if (!removedIds.isEmpty()) {
+            mNote.deleteCheckListItems(removedIds);
+        }
+        if (touched) {
+            setWorkingText(buildCheckListText(newItems, CHECK_LIST_PREVIEW_ITEMS));
+            mNote.setNoteValue(NoteColumns.LOCAL_MODIFIED, "1");
+        }
+    }
+
+    /**
+     * 获取清单条目，普通模式下返回null
+     */
+    public List<ListItem> getCheckListItems() {
+        return mListItems;
+    }
+
+    /**
+     * 把文本形式的清单拆分为清单条目，每行一个条目，以 {@link #TAG_CHECKED} 开头的为已勾选
+     */
+    public static ArrayList<ListItem> parseCheckList(String text) {
+        ArrayList<ListItem> items = new ArrayList<ListItem>();
+        if (text == null) {
+            return items;
+        }
+        for (String line : text.split("\n")) {
+            boolean checked = false;
+            if (line.startsWith(TAG_CHECKED)) {
+                checked = true;
+                line = line.substring(TAG_CHECKED.length()).trim();
+            } else if (line.startsWith(TAG_UNCHECKED)) {
+                line = line.substring(TAG_UNCHECKED.length()).trim();
+            }
+            if (!TextUtils.isEmpty(line)) {
+                items.add(new ListItem(line, checked));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * 生成前 count 个清单条目的文本形式
+     */
+    private static String buildCheckListText(List<ListItem> items, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count && i < items.size(); i++) {
+            ListItem item = items.get(i);
+            sb.append(item.isChecked() ? TAG_CHECKED : TAG_UNCHECKED).append(" ")
+                    .append(item.getText()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 为排序键不再递增的条目分配新的排序键，新条目均匀地放进前后两个条目之间的空隙，
+     * 空隙不够时才顺延后面的条目
+     */
+    private static void assignOrders(List<ListItem> items) {
+        long prev = 0;
+        int i = 0;
+        while (i < items.size()) {
+            if (items.get(i).mOrder > prev) {
+                prev = items.get(i).mOrder;
+                i++;
+                continue;
+            }
+            // 找出连续的需要新排序键的条目
+            int end = i + 1;
+            while (end < items.size() && items.get(end).mOrder <= prev) {
+                end++;
+            }
+            long step = end < items.size() ? (items.get(end).mOrder - prev) / (end - i + 1)
+                    : ORDER_STEP;
+            if (step == 0) {
+                step = ORDER_STEP;
+            }
+            for (; i < end; i++) {
+                prev += step;
+                items.get(i).mOrder = prev;
+            }
+        }
+    }
+
     /**
      * 将笔记转换为通话笔记
      * @param phoneNumber 电话号码
@@ -358,6 +544,10 @@ public class WorkingNote {
 
     // 以下是一系列获取方法
     public String getContent() {
+        if (mListItems != null) {
+            // 清单模式下文本数据只是预览，完整的文本由清单条目生成
+            return buildCheckListText(mListItems, mListItems.size());
+        }
         return mContent;
     }
 
@@ -401,6 +591,81 @@ public class WorkingNote {
         return mWidgetType;
     }
 
+    /**
+     * 清单条目，对应一行 {@link CheckListItem} 数据。记录上次保存的内容，
+     * 保存笔记时只写入新增或改动过的条目
+     */
+    public static class ListItem {
+        private long mDataId;          // 数据ID，尚未写入时为0
+        private String mText;          // 条目文本
+        private boolean mChecked;      // 是否已勾选
+        private long mOrder;           // 排序键，尚未分配时为0
+        private String mSavedText;     // 上次保存的文本，新条目为null
+        private boolean mSavedChecked; // 上次保存的勾选状态
+        private long mSavedOrder;      // 上次保存的排序键
+
+        public ListItem(String text, boolean checked) {
+            mText = text;
+            mChecked = checked;
+        }
+
+        private ListItem(long dataId, String text, boolean checked, long order) {
+            mDataId = dataId;
+            mText = mSavedText = text;
+            mChecked = mSavedChecked = checked;
+            mOrder = mSavedOrder = order;
+        }
+
+        public long getDataId() {
+            return mDataId;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public void setText(String text) {
+            mText = text;
+        }
+
+        public boolean isChecked() {
+            return mChecked;
+        }
+
+        public void setChecked(boolean checked) {
+            mChecked = checked;
+        }
+
+        /**
+         * 是否与上次保存的内容不同
+         */
+        boolean isModified() {
+            return mSavedText == null || !mSavedText.equals(mText)
+                    || mSavedChecked != mChecked || mSavedOrder != mOrder;
+        }
+
+        /**
+         * 需要写入数据库的值
+         */
+        ContentValues getValues() {
+            ContentValues values = new ContentValues();
+            values.put(DataColumns.CONTENT, mText);
+            values.put(CheckListItem.CHECKED, mChecked ? 1 : 0);
+            values.put(CheckListItem.ORDER, mOrder);
+            return values;
+        }
+
+        /**
+         * 写入数据库后调用，记下数据ID和写入的值
+         */
+        void onSaved(long dataId, ContentValues values) {
+            mDataId = dataId;
+            mSavedText = values.getAsString(DataColumns.CONTENT);
+            mSavedChecked = values.getAsInteger(CheckListItem.CHECKED) != 0;
+            mSavedOrder = values.getAsLong(CheckListItem.ORDER);
+        }
+    }
+
     /**
      * 笔记设置变更监听器接口
      */
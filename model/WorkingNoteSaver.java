@@ -0,0 +1,157 @@
+package net.micode.notes.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 工作笔记的自动保存器
+ * 编辑时调用 {@link #requestSave()}，停止输入 DEBOUNCE_DELAY 毫秒后才保存；
+ * 保存时先在主线程取出界面上的内容，再交给所有笔记共用的后台线程写入数据库。
+ * 后台已有一次等待执行的保存时不再排队，那次保存执行时会写入最新的内容。
+ * 写入线程不随界面销毁，界面关闭后已提交的保存仍会写完；界面不可见时调用 {@link #flush(long)}
+ * 有限地等待未完成的写入，避免进程随后被杀死时丢失内容。
+ * 需要新笔记ID的操作通过 {@link #saveAndThen(Runnable)} 在写入完成后执行，不阻塞主线程
+ */
+public class WorkingNoteSaver {
+    private static final String TAG = "WorkingNoteSaver";
+
+    // 停止输入多久后保存
+    public static final long DEBOUNCE_DELAY = 2000;
+
+    // 所有笔记共用的写入线程，保存按提交的顺序执行
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 保存前的回调，在主线程调用，用于把界面上的内容写入工作笔记
+     */
+    public interface Callback {
+        void onPrepareSave();
+    }
+
+    private final WorkingNote mWorkingNote;
+    private final Callback mCallback;
+    private final Handler mHandler;
+    private final AtomicBoolean mQueued;   // 是否已有一次等待执行的保存
+    private volatile Future<Boolean> mLastSave;
+
+    private final Runnable mDebouncedSave = new Runnable() {
+        public void run() {
+            save();
+        }
+    };
+
+    private final Callable<Boolean> mSaveTask = new Callable<Boolean>() {
+        public Boolean call() {
+            // 在写入之前清除标记，写入期间的修改会再排一次保存
+            mQueued.set(false);
+            try {
+                return mWorkingNote.saveNote();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Save note failed", e);
+                return false;
+            }
+        }
+    };
+
+    public WorkingNoteSaver(WorkingNote note, Callback callback) {
+        mWorkingNote = note;
+        mCallback = callback;
+        mHandler = new Handler(Looper.getMainLooper());
+        mQueued = new AtomicBoolean(false);
+    }
+
+    /**
+     * 内容有修改时调用，连续修改时只在最后一次修改 DEBOUNCE_DELAY 毫秒后保存一次
+     */
+    public void requestSave() {
+        mHandler.removeCallbacks(mDebouncedSave);
+        if (mLastSave == null && !mWorkingNote.existInDatabase()) {
+            // 新笔记第一次修改时立即保存，尽早得到笔记ID，保存界面状态时不必等待
+            save();
+            return;
+        }
+        mHandler.postDelayed(mDebouncedSave, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * 立即取出界面上的内容并在后台保存，不等待写入完成，需在主线程调用
+     */
+    public void save() {
+        mHandler.removeCallbacks(mDebouncedSave);
+        if (mCallback != null) {
+            mCallback.onPrepareSave();
+        }
+        if (mQueued.compareAndSet(false, true)) {
+            mLastSave = sSaveExecutor.submit(mSaveTask);
+        }
+    }
+
+    /**
+     * 保存后在主线程执行 task，此时之前提交的保存都已写完，新笔记已经有了ID
+     */
+    public void saveAndThen(final Runnable task) {
+        save();
+        sSaveExecutor.execute(new Runnable() {
+            public void run() {
+                mHandler.post(task);
+            }
+        });
+    }
+
+    /**
+     * 是否还有已提交但没有写完的保存
+     */
+    public boolean isSavePending() {
+        Future<Boolean> lastSave = mLastSave;
+        return lastSave != null && !lastSave.isDone();
+    }
+
+    /**
+     * 等待已提交的保存写完，不再提交新的保存
+     * @param timeout 最多等待的毫秒数
+     * @return 写入是否在超时前完成
+     */
+    public boolean flush(long timeout) {
+        Future<Boolean> lastSave = mLastSave;
+        if (lastSave == null) {
+            return true;
+        }
+        try {
+            lastSave.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Save note failed", e);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Save note not finished in " + timeout + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * 取消还没有开始的延迟保存，在写入线程中排在已提交的保存之后执行 task，不等待执行完成。
+     * 用于删除笔记：调用前先把笔记标记为已删除，还没执行的保存不会再写入
+     */
+    public void runAfterSaves(Runnable task) {
+        mHandler.removeCallbacks(mDebouncedSave);
+        sSaveExecutor.execute(task);
+    }
+
+    /**
+     * 取消还没有开始的延迟保存
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mDebouncedSave);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+/**
+ * Export snapshots of {@link NotesProvider}: the rows are read as they were when the snapshot
+ * was opened, while writes made meanwhile go through. The benchmark logs the read throughput
+ * of a snapshot in notes per second
+ */
+public class NotesProviderExportTest extends ProviderTestCase2<NotesProvider> {
+    private static final String TAG = "NotesProviderExportTest";
+
+    private static final int BENCHMARK_NOTES = 5000;
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns.ID, DataColumns.CONTENT
+    };
+
+    public NotesProviderExportTest() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    private long insertTextNote(String content) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        long noteId = ContentUris.parseId(
+                getMockContentResolver().insert(Notes.CONTENT_NOTE_URI, values));
+
+        values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        values.put(DataColumns.CONTENT, content);
+        getMockContentResolver().insert(Notes.CONTENT_DATA_URI, values);
+        return noteId;
+    }
+
+    private Bundle openSnapshot() {
+        Bundle snapshot = getMockContentResolver().call(Notes.CONTENT_NOTE_URI,
+                Notes.METHOD_OPEN_EXPORT_SNAPSHOT, null, null);
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    private Cursor querySnapshot(Bundle snapshot) {
+        Cursor c = getMockContentResolver().query(ContentUris.withAppendedId(
+                Notes.CONTENT_NOTE_EXPORT_URI, snapshot.getInt(Notes.EXTRA_EXPORT_SNAPSHOT_ID)),
+                PROJECTION, null, null, null);
+        assertNotNull(c);
+        return c;
+    }
+
+    private void closeSnapshot(Bundle snapshot) {
+        getMockContentResolver().call(Notes.CONTENT_NOTE_URI,
+                Notes.METHOD_CLOSE_EXPORT_SNAPSHOT, null, snapshot);
+    }
+
+    public void testSnapshotIgnoresLaterWrites() {
+        long noteId = insertTextNote("before export");
+        Bundle snapshot = openSnapshot();
+        try {
+            // writes are not blocked by the snapshot
+            insertTextNote("added during export");
+            ContentValues values = new ContentValues();
+            values.put(DataColumns.CONTENT, "edited during export");
+            assertEquals(1, getMockContentResolver().update(Notes.CONTENT_DATA_URI, values,
+                    DataColumns.NOTE_ID + "=?", new String[] { String.valueOf(noteId) }));
+
+            Cursor c = querySnapshot(snapshot);
+            try {
+                assertEquals(1, c.getCount());
+                assertTrue(c.moveToFirst());
+                assertEquals(noteId, c.getLong(0));
+                assertEquals("before export", c.getString(1));
+            } finally {
+                c.close();
+            }
+        } finally {
+            closeSnapshot(snapshot);
+        }
+    }
+
+    public void testClosedSnapshotIsUnknown() {
+        Bundle snapshot = openSnapshot();
+        closeSnapshot(snapshot);
+        try {
+            querySnapshot(snapshot).close();
+            fail("a closed snapshot can not be read");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testExportThroughput() {
+        for (int i = 0; i < BENCHMARK_NOTES; i++) {
+            insertTextNote("note " + i + " lorem ipsum dolor sit amet");
+        }
+        long start = SystemClock.elapsedRealtime();
+        Bundle snapshot = openSnapshot();
+        int notes = 0;
+        try {
+            Cursor c = querySnapshot(snapshot);
+            try {
+                long lastId = 0;
+                while (c.moveToNext()) {
+                    if (c.getLong(0) != lastId) {
+                        lastId = c.getLong(0);
+                        notes++;
+                    }
+                    c.getString(1);
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            closeSnapshot(snapshot);
+        }
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - start, 1);
+        assertEquals(BENCHMARK_NOTES, notes);
+        Log.i(TAG, "export snapshot read " + notes + " notes in " + elapsed + "ms, "
+                + (notes * 1000L / elapsed) + " notes/s");
+    }
+}
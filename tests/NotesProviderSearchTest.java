@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+/**
+ * Full-text search of {@link NotesProvider}, every term typed so far is matched anywhere
+ * inside a word of the note, CJK terms anywhere inside the text
+ */
+public class NotesProviderSearchTest extends ProviderTestCase2<NotesProvider> {
+    private static final Uri SEARCH_URI = Uri.parse("content://" + Notes.AUTHORITY + "/search");
+
+    public NotesProviderSearchTest() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    private long insertTextNote(String content) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        long noteId = ContentUris.parseId(
+                getMockContentResolver().insert(Notes.CONTENT_NOTE_URI, values));
+
+        values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        values.put(DataColumns.CONTENT, content);
+        getMockContentResolver().insert(Notes.CONTENT_DATA_URI, values);
+        return noteId;
+    }
+
+    private Cursor search(String pattern) {
+        Uri uri = SEARCH_URI.buildUpon().appendQueryParameter("pattern", pattern).build();
+        return getMockContentResolver().query(uri, null, null, null, null);
+    }
+
+    private void assertFound(String pattern, long noteId) {
+        Cursor c = search(pattern);
+        assertNotNull(c);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(noteId, c.getLong(c.getColumnIndexOrThrow(NoteColumns.ID)));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testPartialWordMatches() {
+        long noteId = insertTextNote("go shopping after work");
+        assertFound("shop", noteId);
+    }
+
+    public void testEveryTermIsMatchedAsPrefix() {
+        long noteId = insertTextNote("go shopping after work");
+        insertTextNote("go home");
+        assertFound("sho aft", noteId);
+    }
+
+    public void testWholeWordStillMatches() {
+        long noteId = insertTextNote("go shopping after work");
+        assertFound("shopping", noteId);
+    }
+
+    public void testMiddleOfWordMatches() {
+        long noteId = insertTextNote("go shopping after work");
+        assertFound("hopping", noteId);
+    }
+
+    public void testTermsInOtherWordsDoNotMatch() {
+        insertTextNote("go shopping after work");
+        Cursor c = search("shopwork");
+        assertNotNull(c);
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testChineseMatchesInsideText() {
+        long noteId = insertTextNote("周末去超市购物清单");
+        insertTextNote("牛奶和面包");
+        assertFound("购物", noteId);
+        assertFound("物清单", noteId);
+        assertFound("单", noteId);
+    }
+
+    public void testChineseAndLatinTerms() {
+        long noteId = insertTextNote("明天 meeting 会议室");
+        insertTextNote("明天 shopping");
+        assertFound("会议 meet", noteId);
+    }
+
+    public void testUpdatedContentIsSearchable() {
+        long noteId = insertTextNote("go shopping");
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, "去超市");
+        getMockContentResolver().update(Notes.CONTENT_DATA_URI, values,
+                DataColumns.NOTE_ID + "=?", new String[] { String.valueOf(noteId) });
+        assertFound("超市", noteId);
+        Cursor c = search("shop");
+        assertNotNull(c);
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+}
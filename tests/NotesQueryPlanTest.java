@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.ui.NotesListActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plans of the queries the app runs through {@link NotesProvider}, checked by
+ * {@link NotesQueryPlan}: none of them may scan a whole table or sort in a temporary b-tree
+ */
+public class NotesQueryPlanTest extends ProviderTestCase2<NotesProvider> {
+    private static final Uri SEARCH_URI = Uri.parse("content://" + Notes.AUTHORITY + "/search");
+
+    private static final String PAGE_SIZE = "50";
+
+    private final List<String> mPlans = new ArrayList<String>();
+    private final List<String> mFullPasses = new ArrayList<String>();
+
+    public NotesQueryPlanTest() {
+        super(NotesProvider.class, Notes.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        NotesQueryPlan.setListener(new NotesQueryPlan.OnPlanListener() {
+            public void onPlan(String sql, String plan, boolean indexed) {
+                mPlans.add(sql);
+                if (!indexed) {
+                    mFullPasses.add(sql + "\n" + plan);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        NotesQueryPlan.setListener(null);
+        super.tearDown();
+    }
+
+    private long insertTextNote(long folderId, String content) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        long noteId = ContentUris.parseId(
+                getMockContentResolver().insert(Notes.CONTENT_NOTE_URI, values));
+
+        values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        values.put(DataColumns.CONTENT, content);
+        getMockContentResolver().insert(Notes.CONTENT_DATA_URI, values);
+        return noteId;
+    }
+
+    private void query(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+        Cursor c = getMockContentResolver().query(uri, null, selection, selectionArgs, sortOrder);
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    private void assertIndexed() {
+        assertFalse("no query was explained", mPlans.isEmpty());
+        assertTrue(mFullPasses.toString(), mFullPasses.isEmpty());
+    }
+
+    private static Uri pageUri(long[] after) {
+        Uri.Builder builder = Notes.CONTENT_NOTE_LIST_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_PAGE_LIMIT, PAGE_SIZE);
+        if (after != null) {
+            builder.appendQueryParameter(Notes.PARAM_AFTER_TYPE, String.valueOf(after[0]))
+                    .appendQueryParameter(Notes.PARAM_AFTER_MODIFIED_DATE, String.valueOf(after[1]))
+                    .appendQueryParameter(Notes.PARAM_AFTER_ID, String.valueOf(after[2]));
+        }
+        return builder.build();
+    }
+
+    public void testRootFolderPagesFollowParentIndex() {
+        insertTextNote(Notes.ID_ROOT_FOLDER, "root note");
+        String[] args = new String[] { String.valueOf(Notes.ID_ROOT_FOLDER) };
+        query(pageUri(null), NotesListActivity.ROOT_FOLDER_SELECTION, args, null);
+        query(pageUri(new long[] { Notes.TYPE_NOTE, System.currentTimeMillis(), 1 }),
+                NotesListActivity.ROOT_FOLDER_SELECTION, args, null);
+        assertIndexed();
+    }
+
+    public void testFolderPagesFollowParentIndex() {
+        insertTextNote(Notes.ID_ROOT_FOLDER, "root note");
+        String[] args = new String[] { String.valueOf(Notes.ID_CALL_RECORD_FOLDER) };
+        query(pageUri(null), NotesListActivity.NORMAL_SELECTION, args, null);
+        query(pageUri(new long[] { Notes.TYPE_NOTE, System.currentTimeMillis(), 1 }),
+                NotesListActivity.NORMAL_SELECTION, args, null);
+        assertIndexed();
+    }
+
+    public void testSearchUsesFullTextIndex() {
+        insertTextNote(Notes.ID_ROOT_FOLDER, "go shopping after work");
+        query(SEARCH_URI.buildUpon().appendQueryParameter("pattern", "shop").build(),
+                null, null, null);
+        assertIndexed();
+    }
+
+    public void testNoteAndDataLookupsUseIndex() {
+        long noteId = insertTextNote(Notes.ID_ROOT_FOLDER, "note");
+        query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null, null, null);
+        query(Notes.CONTENT_DATA_URI, DataColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(noteId) }, Notes.CheckListItem.ORDER + " ASC");
+        assertIndexed();
+    }
+
+    public void testChangeJournalPagesUseIndex() {
+        insertTextNote(Notes.ID_ROOT_FOLDER, "note");
+        query(Notes.CONTENT_NOTE_CHANGES_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_AFTER_SEQ, "1").build(), null, null, null);
+        assertIndexed();
+    }
+
+    public void testFullPassDetection() {
+        assertTrue(NotesQueryPlan.isFullPass("SCAN note USING INDEX note_type_index"));
+        assertTrue(NotesQueryPlan.isFullPass("SCAN TABLE note"));
+        assertTrue(NotesQueryPlan.isFullPass("USE TEMP B-TREE FOR ORDER BY"));
+        assertFalse(NotesQueryPlan.isFullPass(
+                "SEARCH note USING INDEX note_parent_id_index (parent_id=?)"));
+        assertFalse(NotesQueryPlan.isFullPass("SCAN data_fts VIRTUAL TABLE INDEX 3:"));
+    }
+}
@@ -17,6 +17,7 @@ public class BackupUtils {
     public static final int STATE_DATA_DESTROIED = 2;           // 数据损坏或格式异常
     public static final int STATE_SYSTEM_ERROR = 3;             // 系统错误
     public static final int STATE_SUCCESS = 4;                  // 成功
+    public static final int STATE_CANCELLED = 5;                // 已取消
 
     private TextExport mTextExport;
 
@@ -29,9 +30,25 @@ public class BackupUtils {
         return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
     }
 
+    // 导出进度的回调，在执行导出的线程调用
+    public interface ExportListener {
+        // exported 为已导出的行数，total 为快照中的总行数
+        void onProgress(int exported, int total);
+    }
+
     // 导出笔记为文本
     public int exportToText() {
-        return mTextExport.exportToText();
+        return mTextExport.exportToText(null);
+    }
+
+    // 导出笔记为文本，导出过程中通过 listener 报告进度
+    public int exportToText(ExportListener listener) {
+        return mTextExport.exportToText(listener);
+    }
+
+    // 取消正在进行的导出，导出返回 STATE_CANCELLED 并删除写了一半的文件
+    public void cancelExport() {
+        mTextExport.cancel();
     }
 
     // 获取导出文本文件的文件名
@@ -45,36 +62,41 @@ public class BackupUtils {
     }
 
     // 内部类，处理文本导出功能
+    // 从导出快照中按顺序读取所有文件夹、笔记及其数据，一次遍历写入带缓冲的文件
     private static class TextExport {
-        // 笔记字段：ID、修改时间、预览文本、类型
-        private static final String[] NOTE_PROJECTION = {
+        // 快照字段：笔记ID、类型、预览文本、修改时间，以及数据的类型、内容、通话时间、号码等
+        private static final String[] EXPORT_PROJECTION = {
             NoteColumns.ID,
-            NoteColumns.MODIFIED_DATE,
+            NoteColumns.TYPE,
             NoteColumns.SNIPPET,
-            NoteColumns.TYPE
-        };
-
-        private static final int NOTE_COLUMN_ID = 0;
-        private static final int NOTE_COLUMN_MODIFIED_DATE = 1;
-        private static final int NOTE_COLUMN_SNIPPET = 2;
-
-        // 数据字段：内容、类型、通话时间、号码等
-        private static final String[] DATA_PROJECTION = {
-            DataColumns.CONTENT,
+            NoteColumns.MODIFIED_DATE,
             DataColumns.MIME_TYPE,
+            DataColumns.CONTENT,
             DataColumns.DATA1,
-            DataColumns.DATA2,
             DataColumns.DATA3,
-            DataColumns.DATA4,
         };
 
-        private static final int DATA_COLUMN_CONTENT = 0;
-        private static final int DATA_COLUMN_MIME_TYPE = 1;
-        private static final int DATA_COLUMN_CALL_DATE = 2;
-        private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+        private static final int COLUMN_NOTE_ID = 0;
+        private static final int COLUMN_TYPE = 1;
+        private static final int COLUMN_SNIPPET = 2;
+        private static final int COLUMN_MODIFIED_DATE = 3;
+        private static final int COLUMN_MIME_TYPE = 4;
+        private static final int COLUMN_CONTENT = 5;
+        private static final int COLUMN_CALL_DATE = 6;
+        private static final int COLUMN_CHECKED = 6;
+        private static final int COLUMN_PHONE_NUMBER = 7;
 
-        // 文本导出格式的字符串数组（如文件夹名格式、时间格式等）
-        private final String[] TEXT_FORMAT;
+        // 写文件的缓冲区大小
+        private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+        // 每读取这么多行报告一次进度
+        private static final int PROGRESS_INTERVAL = 64;
+
+        // 每个笔记后写一行空行分隔
+        private static final String NOTE_SEPARATOR = "\r\n";
+
+        // 文本导出格式（如文件夹名格式、时间格式等），构造时预先拆分好
+        private final LineFormat[] mFormats;
         private static final int FORMAT_FOLDER_NAME = 0;
         private static final int FORMAT_NOTE_DATE = 1;
         private static final int FORMAT_NOTE_CONTENT = 2;
@@ -82,155 +104,208 @@ public class BackupUtils {
         private Context mContext;
         private String mFileName;
         private String mFileDirectory;
+        private final String mDateFormat;             // 时间的格式，精确到分钟
+        private final String mCallRecordFolderName;
+        private long mLastDateMinute;                 // 上次格式化的时间所在的分钟及其结果
+        private CharSequence mLastDate;
+        private volatile boolean mCancelled;
 
         public TextExport(Context context) {
-            TEXT_FORMAT = context.getResources().getStringArray(R.array.format_for_exported_note);
+            String[] formats = context.getResources().getStringArray(R.array.format_for_exported_note);
+            mFormats = new LineFormat[formats.length];
+            for (int i = 0; i < formats.length; i++) {
+                mFormats[i] = new LineFormat(formats[i]);
+            }
+            mDateFormat = context.getString(R.string.format_datetime_mdhm);
+            mCallRecordFolderName = context.getString(R.string.call_record_folder_name);
             mContext = context;
             mFileName = "";
             mFileDirectory = "";
         }
 
-        // 获取格式字符串
-        private String getFormat(int id) {
-            return TEXT_FORMAT[id];
+        // 按格式写入一行
+        private void writeLine(BufferedWriter writer, int formatId, CharSequence text)
+                throws IOException {
+            mFormats[formatId].write(writer, text);
+            writer.newLine();
         }
 
-        // 导出指定文件夹下的所有笔记
-        private void exportFolderToText(String folderId, PrintStream ps) {
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[] { folderId }, null);
-
-            if (notesCursor != null) {
-                if (notesCursor.moveToFirst()) {
-                    do {
-                        // 写入笔记最后修改时间
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                            mContext.getString(R.string.format_datetime_mdhm),
-                            notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-
-                        // 写入笔记内容
-                        String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (notesCursor.moveToNext());
-                }
-                notesCursor.close();
+        // 格式化时间，同一分钟内的时间共用上次的结果
+        private CharSequence formatDate(long time) {
+            long minute = time / DateUtils.MINUTE_IN_MILLIS;
+            if (mLastDate == null || minute != mLastDateMinute) {
+                mLastDate = DateFormat.format(mDateFormat, time);
+                mLastDateMinute = minute;
             }
+            return mLastDate;
         }
 
-        // 导出指定 ID 的笔记内容
-        private void exportNoteToText(String noteId, PrintStream ps) {
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] { noteId }, null);
-
-            if (dataCursor != null) {
-                if (dataCursor.moveToFirst()) {
-                    do {
-                        String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                        if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                            // 通话记录笔记
-                            String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                            long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                            String location = dataCursor.getString(DATA_COLUMN_CONTENT);
-
-                            if (!TextUtils.isEmpty(phoneNumber)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), phoneNumber));
-                            }
-                            ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                    DateFormat.format(mContext.getString(R.string.format_datetime_mdhm), callDate)));
-
-                            if (!TextUtils.isEmpty(location)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), location));
-                            }
-                        } else if (DataConstants.NOTE.equals(mimeType)) {
-                            // 普通文本笔记
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), content));
-                            }
-                        }
-                    } while (dataCursor.moveToNext());
-                }
-                dataCursor.close();
+        // 写入笔记的正文，清单笔记的文本数据只是预览，写入按顺序读到的清单条目
+        private void writeNoteContent(BufferedWriter writer, String textContent,
+                StringBuilder checkList) throws IOException {
+            String content = checkList.length() > 0 ? checkList.toString() : textContent;
+            if (!TextUtils.isEmpty(content)) {
+                writeLine(writer, FORMAT_NOTE_CONTENT, content);
             }
+            checkList.setLength(0);
+            writer.write(NOTE_SEPARATOR);
+        }
 
-            // 每个笔记后写一行空行分隔
-            try {
-                ps.write(new byte[] { Character.LINE_SEPARATOR, Character.LETTER_NUMBER });
-            } catch (IOException e) {
-                Log.e(TAG, e.toString());
-            }
+        // 取消正在进行的导出
+        public void cancel() {
+            mCancelled = true;
         }
 
         // 开始导出整个笔记本为文本
-        public int exportToText() {
+        public int exportToText(ExportListener listener) {
+            mCancelled = false;
             if (!externalStorageAvailable()) {
                 Log.d(TAG, "Media was not mounted");
                 return STATE_SD_CARD_UNMOUONTED;
             }
 
-            PrintStream ps = getExportToTextPrintStream();
-            if (ps == null) {
-                Log.e(TAG, "get print stream error");
+            File file = getExportToTextFile();
+            if (file == null) {
+                Log.e(TAG, "get export file error");
                 return STATE_SYSTEM_ERROR;
             }
 
-            // 导出所有文件夹及其笔记
-            Cursor folderCursor = mContext.getContentResolver().query(
-                Notes.CONTENT_NOTE_URI,
-                NOTE_PROJECTION,
-                "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND " +
-                NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR " +
-                NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER,
-                null, null);
-
-            if (folderCursor != null) {
-                if (folderCursor.moveToFirst()) {
-                    do {
-                        // 写入文件夹名
-                        String folderName = "";
-                        if (folderCursor.getLong(NOTE_COLUMN_ID) == Notes.ID_CALL_RECORD_FOLDER) {
-                            folderName = mContext.getString(R.string.call_record_folder_name);
-                        } else {
-                            folderName = folderCursor.getString(NOTE_COLUMN_SNIPPET);
-                        }
-                        if (!TextUtils.isEmpty(folderName)) {
-                            ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
-                        }
-
-                        String folderId = folderCursor.getString(NOTE_COLUMN_ID);
-                        exportFolderToText(folderId, ps);
-                    } while (folderCursor.moveToNext());
-                }
-                folderCursor.close();
+            // 先由 NotesProvider 生成快照，导出期间对笔记的修改不会写入一半，导出结束后删除快照
+            ContentResolver resolver = mContext.getContentResolver();
+            Bundle snapshot = resolver.call(Notes.CONTENT_NOTE_URI,
+                    Notes.METHOD_OPEN_EXPORT_SNAPSHOT, null, null);
+            if (snapshot == null) {
+                Log.e(TAG, "open export snapshot error");
+                file.delete();
+                return STATE_SYSTEM_ERROR;
+            }
+            Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_EXPORT_URI,
+                    snapshot.getInt(Notes.EXTRA_EXPORT_SNAPSHOT_ID)), EXPORT_PROJECTION,
+                    null, null, null);
+            if (cursor == null) {
+                Log.e(TAG, "query export snapshot error");
+                resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_CLOSE_EXPORT_SNAPSHOT, null,
+                        snapshot);
+                file.delete();
+                return STATE_SYSTEM_ERROR;
             }
 
-            // 导出根目录下的笔记（未归类的笔记）
-            Cursor noteCursor = mContext.getContentResolver().query(
-                Notes.CONTENT_NOTE_URI,
-                NOTE_PROJECTION,
-                NoteColumns.TYPE + "=" + +Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID + "=0",
-                null, null);
-
-            if (noteCursor != null) {
-                if (noteCursor.moveToFirst()) {
-                    do {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                            mContext.getString(R.string.format_datetime_mdhm),
-                            noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-
-                        String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (noteCursor.moveToNext());
+            int state = STATE_SYSTEM_ERROR;
+            BufferedWriter writer = null;
+            try {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)),
+                        WRITE_BUFFER_SIZE);
+                state = exportRows(cursor, writer, listener) ? STATE_SUCCESS : STATE_CANCELLED;
+                writer.close();
+                writer = null;
+            } catch (IOException e) {
+                Log.e(TAG, "export to text failed", e);
+                state = STATE_SYSTEM_ERROR;
+            } finally {
+                cursor.close();
+                resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_CLOSE_EXPORT_SNAPSHOT, null,
+                        snapshot);
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, e.toString());
+                    }
+                }
+                // 取消或失败时删除写了一半的文件
+                if (state != STATE_SUCCESS && !file.delete()) {
+                    Log.w(TAG, "delete unfinished export file failed");
                 }
-                noteCursor.close();
             }
+            return state;
+        }
+
+        /**
+         * 按快照的顺序写入所有行：文件夹行写入文件夹名，笔记的第一行写入修改时间，
+         * 之后的行写入笔记的数据
+         * @return 是否全部写完，被取消时返回 false
+         */
+        private boolean exportRows(Cursor cursor, BufferedWriter writer, ExportListener listener)
+                throws IOException {
+            int total = cursor.getCount();
+            boolean inNote = false;
+            long noteId = 0;
+            String textContent = null;
+            StringBuilder checkList = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (mCancelled) {
+                    Log.d(TAG, "export cancelled");
+                    return false;
+                }
+                int position = cursor.getPosition();
+                if (listener != null && position % PROGRESS_INTERVAL == 0) {
+                    listener.onProgress(position, total);
+                }
+
+                long id = cursor.getLong(COLUMN_NOTE_ID);
+                if (cursor.getInt(COLUMN_TYPE) != Notes.TYPE_NOTE) {
+                    if (inNote) {
+                        writeNoteContent(writer, textContent, checkList);
+                        inNote = false;
+                    }
+                    // 写入文件夹名
+                    String folderName = id == Notes.ID_CALL_RECORD_FOLDER
+                            ? mCallRecordFolderName : cursor.getString(COLUMN_SNIPPET);
+                    if (!TextUtils.isEmpty(folderName)) {
+                        writeLine(writer, FORMAT_FOLDER_NAME, folderName);
+                    }
+                    continue;
+                }
+
+                if (!inNote || id != noteId) {
+                    if (inNote) {
+                        writeNoteContent(writer, textContent, checkList);
+                    }
+                    inNote = true;
+                    noteId = id;
+                    textContent = null;
+                    // 写入笔记最后修改时间
+                    writeLine(writer, FORMAT_NOTE_DATE,
+                            formatDate(cursor.getLong(COLUMN_MODIFIED_DATE)));
+                }
 
-            ps.close();
-            return STATE_SUCCESS;
+                String mimeType = cursor.getString(COLUMN_MIME_TYPE);
+                if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                    // 通话记录笔记
+                    String phoneNumber = cursor.getString(COLUMN_PHONE_NUMBER);
+                    long callDate = cursor.getLong(COLUMN_CALL_DATE);
+                    String location = cursor.getString(COLUMN_CONTENT);
+
+                    if (!TextUtils.isEmpty(phoneNumber)) {
+                        writeLine(writer, FORMAT_NOTE_CONTENT, phoneNumber);
+                    }
+                    writeLine(writer, FORMAT_NOTE_CONTENT, formatDate(callDate));
+
+                    if (!TextUtils.isEmpty(location)) {
+                        writeLine(writer, FORMAT_NOTE_CONTENT, location);
+                    }
+                } else if (DataConstants.NOTE.equals(mimeType)) {
+                    // 普通文本笔记
+                    textContent = cursor.getString(COLUMN_CONTENT);
+                } else if (DataConstants.CHECK_LIST_ITEM.equals(mimeType)) {
+                    // 清单条目，按文本形式的清单导出
+                    checkList.append(cursor.getInt(COLUMN_CHECKED) != 0
+                            ? WorkingNote.TAG_CHECKED : WorkingNote.TAG_UNCHECKED)
+                            .append(" ").append(cursor.getString(COLUMN_CONTENT))
+                            .append("\n");
+                }
+            }
+            if (inNote) {
+                writeNoteContent(writer, textContent, checkList);
+            }
+            if (listener != null) {
+                listener.onProgress(total, total);
+            }
+            return true;
         }
 
-        // 获取文本输出流（指向导出文件）
-        private PrintStream getExportToTextPrintStream() {
+        // 获取导出的文本文件
+        private File getExportToTextFile() {
             File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
                     R.string.file_name_txt_format);
             if (file == null) {
@@ -239,13 +314,39 @@ public class BackupUtils {
             }
             mFileName = file.getName();
             mFileDirectory = mContext.getString(R.string.file_path);
+            return file;
+        }
 
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                return new PrintStream(fos);
-            } catch (FileNotFoundException | NullPointerException e) {
-                e.printStackTrace();
-                return null;
+        /**
+         * 预先拆分的导出格式。格式中只有一个 %s 时直接拼接前后两段，
+         * 不必每写一行都解析一次格式，其他格式仍交给 String.format
+         */
+        private static final class LineFormat {
+            private final String mFormat;
+            private final String mPrefix;
+            private final String mSuffix;
+
+            LineFormat(String format) {
+                mFormat = format;
+                int index = format.indexOf("%s");
+                if (index >= 0 && format.indexOf('%') == index
+                        && format.indexOf('%', index + 2) < 0) {
+                    mPrefix = format.substring(0, index);
+                    mSuffix = format.substring(index + 2);
+                } else {
+                    mPrefix = null;
+                    mSuffix = null;
+                }
+            }
+
+            void write(Writer writer, CharSequence text) throws IOException {
+                if (mPrefix == null) {
+                    writer.write(String.format(mFormat, text));
+                    return;
+                }
+                writer.write(mPrefix);
+                writer.append(text);
+                writer.write(mSuffix);
             }
         }
     }
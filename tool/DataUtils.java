@@ -22,6 +22,7 @@ public class DataUtils {
             // 构建删除操作
             ContentProviderOperation.Builder builder = ContentProviderOperation
                     .newDelete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
+            builder.withYieldAllowed(true); // 各笔记互不相关，大批量时可以分段提交
             operationList.add(builder.build());
         }
 
@@ -61,6 +62,7 @@ public class DataUtils {
                     .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
             builder.withValue(NoteColumns.PARENT_ID, folderId); // 更新父文件夹ID
             builder.withValue(NoteColumns.LOCAL_MODIFIED, 1); // 标记为本地修改
+            builder.withYieldAllowed(true); // 各笔记互不相关，大批量时可以分段提交
             operationList.add(builder.build());
         }
 
@@ -78,6 +80,144 @@ public class DataUtils {
         return false;
     }
 
+    // 通过 ContentProvider.call() 一次性删除一组笔记，返回受影响的小部件，失败时返回 null
+    public static HashSet<AppWidgetAttribute> bulkDeleteNotes(ContentResolver resolver,
+            HashSet<Long> ids) {
+        return bulkDeleteNotes(resolver, toIdArray(ids));
+    }
+
+    public static HashSet<AppWidgetAttribute> bulkDeleteNotes(ContentResolver resolver, long[] ids) {
+        return getBulkWidgets(callBulkOperation(resolver, Notes.METHOD_BULK_DELETE, ids, null));
+    }
+
+    // 通过 ContentProvider.call() 一次性把一组笔记移动到指定文件夹
+    public static boolean bulkMoveToFolder(ContentResolver resolver, HashSet<Long> ids, long folderId) {
+        return bulkMoveToFolder(resolver, toIdArray(ids), folderId);
+    }
+
+    public static boolean bulkMoveToFolder(ContentResolver resolver, long[] ids, long folderId) {
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.INTENT_EXTRA_FOLDER_ID, folderId);
+        return callBulkOperation(resolver, Notes.METHOD_BULK_MOVE_TO_FOLDER, ids, extras) != null;
+    }
+
+    // 通过 ContentProvider.call() 一次性把一组笔记移入回收站，返回受影响的小部件，失败时返回 null
+    public static HashSet<AppWidgetAttribute> bulkMoveToTrash(ContentResolver resolver,
+            HashSet<Long> ids) {
+        return bulkMoveToTrash(resolver, toIdArray(ids));
+    }
+
+    public static HashSet<AppWidgetAttribute> bulkMoveToTrash(ContentResolver resolver, long[] ids) {
+        return getBulkWidgets(callBulkOperation(resolver, Notes.METHOD_BULK_MOVE_TO_TRASH, ids,
+                null));
+    }
+
+    // 通过 ContentProvider.call() 一次性设置一组笔记的背景颜色
+    public static boolean bulkSetColor(ContentResolver resolver, HashSet<Long> ids, int colorId) {
+        return bulkSetColor(resolver, toIdArray(ids), colorId);
+    }
+
+    public static boolean bulkSetColor(ContentResolver resolver, long[] ids, int colorId) {
+        Bundle extras = new Bundle();
+        extras.putInt(Notes.INTENT_EXTRA_BACKGROUND_ID, colorId);
+        return callBulkOperation(resolver, Notes.METHOD_BULK_SET_COLOR, ids, extras) != null;
+    }
+
+    // 全选时只把文件夹和取消选中的笔记交给 NotesProvider，由它解析要删除的笔记，返回受影响的小部件
+    public static HashSet<AppWidgetAttribute> bulkDeleteAllInFolder(ContentResolver resolver,
+            long folderId, long[] excludedIds) {
+        return getBulkWidgets(callSelectAllOperation(resolver, Notes.METHOD_BULK_DELETE,
+                folderId, excludedIds, null));
+    }
+
+    // 全选时把文件夹中除 excludedIds 以外的笔记移入回收站，返回受影响的小部件
+    public static HashSet<AppWidgetAttribute> bulkMoveAllToTrash(ContentResolver resolver,
+            long folderId, long[] excludedIds) {
+        return getBulkWidgets(callSelectAllOperation(resolver, Notes.METHOD_BULK_MOVE_TO_TRASH,
+                folderId, excludedIds, null));
+    }
+
+    // 全选时把文件夹中除 excludedIds 以外的笔记移动到 desFolderId
+    public static boolean bulkMoveAllToFolder(ContentResolver resolver, long folderId,
+            long[] excludedIds, long desFolderId) {
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.INTENT_EXTRA_FOLDER_ID, desFolderId);
+        return callSelectAllOperation(resolver, Notes.METHOD_BULK_MOVE_TO_FOLDER,
+                folderId, excludedIds, extras) != null;
+    }
+
+    // 把 ID 集合转换为数组
+    private static long[] toIdArray(HashSet<Long> ids) {
+        if (ids == null) {
+            return null;
+        }
+        long[] idArray = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            idArray[i++] = id;
+        }
+        return idArray;
+    }
+
+    // 把 ID 数组交给 NotesProvider 执行批量操作，返回操作的结果，失败时返回 null
+    private static Bundle callBulkOperation(ContentResolver resolver, String method,
+            long[] ids, Bundle extras) {
+        if (ids == null) {
+            Log.d(TAG, "the ids is null");
+            return new Bundle();
+        }
+        if (ids.length == 0) {
+            Log.d(TAG, "no id is in the array");
+            return new Bundle();
+        }
+
+        if (extras == null) {
+            extras = new Bundle();
+        }
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, ids);
+
+        Bundle result = resolver.call(Notes.CONTENT_NOTE_URI, method, null, extras);
+        if (result == null) {
+            Log.d(TAG, method + " failed, count:" + ids.length);
+        }
+        return result;
+    }
+
+    // 全选时传递文件夹ID和取消选中的ID，不需要在调用者一侧读取整个文件夹
+    private static Bundle callSelectAllOperation(ContentResolver resolver, String method,
+            long folderId, long[] excludedIds, Bundle extras) {
+        if (extras == null) {
+            extras = new Bundle();
+        }
+        extras.putLong(Notes.EXTRA_SELECT_ALL_FOLDER_ID, folderId);
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, excludedIds);
+
+        Bundle result = resolver.call(Notes.CONTENT_NOTE_URI, method, null, extras);
+        if (result == null) {
+            Log.d(TAG, method + " failed, folder:" + folderId);
+        }
+        return result;
+    }
+
+    // 从批量操作的结果中取出受影响的小部件，操作失败时返回 null
+    private static HashSet<AppWidgetAttribute> getBulkWidgets(Bundle result) {
+        if (result == null) {
+            return null;
+        }
+        HashSet<AppWidgetAttribute> set = new HashSet<AppWidgetAttribute>();
+        int[] widgetIds = result.getIntArray(Notes.EXTRA_WIDGET_IDS);
+        int[] widgetTypes = result.getIntArray(Notes.EXTRA_WIDGET_TYPES);
+        if (widgetIds != null && widgetTypes != null) {
+            for (int i = 0; i < widgetIds.length && i < widgetTypes.length; i++) {
+                AppWidgetAttribute widget = new AppWidgetAttribute();
+                widget.widgetId = widgetIds[i];
+                widget.widgetType = widgetTypes[i];
+                set.add(widget);
+            }
+        }
+        return set;
+    }
+
     // 获取用户创建的文件夹数量（不包括系统文件夹）
     public static int getUserFolderCount(ContentResolver resolver) {
         Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI,
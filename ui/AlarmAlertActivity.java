@@ -7,6 +7,7 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.Intent;
+import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.RingtoneManager;
@@ -19,17 +20,18 @@ import android.view.WindowManager;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
-import net.micode.notes.tool.DataUtils;
+import net.micode.notes.data.Notes.NoteColumns;
 
 import java.io.IOException;
 
 /**
  * 闹钟提醒活动界面
  * 处理笔记提醒触发时的显示和交互逻辑
+ * 同一个提醒窗口内到期的笔记一次查询读出，只播放一次提醒音，在一个对话框中一起显示
  */
 public class AlarmAlertActivity extends Activity implements OnClickListener, OnDismissListener {
-    private long mNoteId; // 当前提醒关联的笔记ID
-    private String mSnippet; // 笔记内容摘要
+    private long[] mNoteIds; // 提醒关联的笔记ID
+    private String[] mSnippets; // 笔记内容摘要
     private static final int SNIPPET_PREW_MAX_LEN = 60; // 摘要最大显示长度
     MediaPlayer mPlayer; // 媒体播放器，用于播放提醒音
 
@@ -54,21 +56,16 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
         Intent intent = getIntent();
 
         try {
-            // 解析笔记ID和内容
-            mNoteId = Long.valueOf(intent.getData().getPathSegments().get(1));
-            mSnippet = DataUtils.getSnippetById(this.getContentResolver(), mNoteId);
-            // 截取过长内容
-            mSnippet = mSnippet.length() > SNIPPET_PREW_MAX_LEN ? mSnippet.substring(0,
-                    SNIPPET_PREW_MAX_LEN) + getResources().getString(R.string.notelist_string_info)
-                    : mSnippet;
+            // 一次查询读出所有仍然存在的笔记及其摘要
+            loadAlerts(intent);
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
+            finish();
             return;
         }
 
-        mPlayer = new MediaPlayer(); // 初始化媒体播放器
-        // 检查笔记是否仍然存在
-        if (DataUtils.visibleInNoteDatabase(getContentResolver(), mNoteId, Notes.TYPE_NOTE)) {
+        if (mNoteIds.length > 0) {
+            mPlayer = new MediaPlayer(); // 初始化媒体播放器
             showActionDialog(); // 显示提醒对话框
             playAlarmSound(); // 播放提醒音
         } else {
@@ -76,6 +73,48 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
         }
     }
 
+    /**
+     * 读取提醒窗口内到期的笔记，以前的版本注册的闹钟只提醒Intent中的一个笔记
+     */
+    private void loadAlerts(Intent intent) {
+        String selection;
+        String[] selectionArgs;
+        if (intent.hasExtra(ReminderScheduler.EXTRA_WINDOW_START)) {
+            selection = NoteColumns.ALERTED_DATE + ">=? AND " + NoteColumns.ALERTED_DATE + "<?";
+            selectionArgs = new String[] {
+                    String.valueOf(intent.getLongExtra(ReminderScheduler.EXTRA_WINDOW_START, 0)),
+                    String.valueOf(intent.getLongExtra(ReminderScheduler.EXTRA_WINDOW_END, 0))
+            };
+        } else {
+            selection = NoteColumns.ID + "=?";
+            selectionArgs = new String[] {
+                    intent.getData().getPathSegments().get(1)
+            };
+        }
+        Cursor c = getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                new String[] { NoteColumns.ID, NoteColumns.SNIPPET },
+                selection + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+                        + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER,
+                selectionArgs, NoteColumns.ALERTED_DATE + " ASC," + NoteColumns.ID + " ASC");
+        if (c == null) {
+            throw new IllegalArgumentException("Query alerts failed");
+        }
+        try {
+            mNoteIds = new long[c.getCount()];
+            mSnippets = new String[c.getCount()];
+            String more = getResources().getString(R.string.notelist_string_info);
+            for (int i = 0; c.moveToNext(); i++) {
+                mNoteIds[i] = c.getLong(0);
+                String snippet = c.getString(1) == null ? "" : c.getString(1);
+                // 截取过长内容
+                mSnippets[i] = snippet.length() > SNIPPET_PREW_MAX_LEN
+                        ? snippet.substring(0, SNIPPET_PREW_MAX_LEN) + more : snippet;
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * 检查屏幕是否亮着
      */
@@ -119,12 +158,17 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
     private void showActionDialog() {
         AlertDialog.Builder dialog = new AlertDialog.Builder(this);
         dialog.setTitle(R.string.app_name); // 设置标题为应用名称
-        dialog.setMessage(mSnippet); // 显示笔记摘要
         dialog.setPositiveButton(R.string.notealert_ok, this); // 确定按钮
-        
-        // 如果屏幕亮着，显示进入笔记按钮
-        if (isScreenOn()) {
-            dialog.setNegativeButton(R.string.notealert_enter, this);
+        if (mNoteIds.length == 1) {
+            dialog.setMessage(mSnippets[0]); // 显示笔记摘要
+
+            // 如果屏幕亮着，显示进入笔记按钮
+            if (isScreenOn()) {
+                dialog.setNegativeButton(R.string.notealert_enter, this);
+            }
+        } else {
+            // 多个笔记逐条列出摘要，屏幕亮着时点击进入对应的笔记
+            dialog.setItems(mSnippets, isScreenOn() ? this : null);
         }
         
         dialog.show().setOnDismissListener(this); // 设置对话框关闭监听
@@ -138,16 +182,24 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
         switch (which) {
             case DialogInterface.BUTTON_NEGATIVE:
                 // 点击进入笔记按钮，跳转到笔记编辑界面
-                Intent intent = new Intent(this, NoteEditActivity.class);
-                intent.setAction(Intent.ACTION_VIEW);
-                intent.putExtra(Intent.EXTRA_UID, mNoteId);
-                startActivity(intent);
+                openNote(mNoteIds[0]);
                 break;
             default:
+                // 点击了列表中的一条提醒
+                if (which >= 0 && which < mNoteIds.length) {
+                    openNote(mNoteIds[which]);
+                }
                 break;
         }
     }
 
+    private void openNote(long noteId) {
+        Intent intent = new Intent(this, NoteEditActivity.class);
+        intent.setAction(Intent.ACTION_VIEW);
+        intent.putExtra(Intent.EXTRA_UID, noteId);
+        startActivity(intent);
+    }
+
     /**
      * 对话框关闭事件处理
      */
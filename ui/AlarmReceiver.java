@@ -1,29 +1,156 @@
 package net.micode.notes.ui;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesChangeBus;
+import net.micode.notes.data.NotesChangeBus.ChangeEvent;
+
+import java.util.Set;
 
 /**
  * 闹钟提醒接收器
  * 负责接收闹钟触发广播并启动提醒活动界面
  */
 public class AlarmReceiver extends BroadcastReceiver {
+    private static final String TAG = "AlarmReceiver";
+
+    private static NotesChangeBus.OnNotesChangedListener sChangeListener;
 
     /**
      * 当接收到闹钟触发广播时调用
      * @param context 上下文环境
-     * @param intent 接收到的Intent，包含笔记数据URI
+     * @param intent 接收到的Intent，包含提醒窗口（以前的版本注册的闹钟包含笔记数据URI）
      */
     @Override
     public void onReceive(Context context, Intent intent) {
+        long noteId = 0;
+        long windowEnd = 0;
+        if (intent.hasExtra(ReminderScheduler.EXTRA_WINDOW_START)) {
+            // 窗口到闹钟触发的时间为止，只包含已经到期的提醒
+            windowEnd = System.currentTimeMillis() + 1;
+            intent.putExtra(ReminderScheduler.EXTRA_WINDOW_END, windowEnd);
+        } else if (intent.getData() != null) {
+            try {
+                noteId = ContentUris.parseId(intent.getData());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Wrong alarm data:" + intent.getData());
+                return;
+            }
+        }
+
+        // 调度器会读取数据库，在后台注册下一个窗口，完成前保持广播有效
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        final long firedEnd = windowEnd;
+        final long alertNoteId = noteId;
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                try {
+                    if (firedEnd > 0) {
+                        ReminderScheduler.onAlarmFired(appContext, firedEnd);
+                    } else if (alertNoteId > 0) {
+                        ReminderScheduler.onAlertChanged(appContext, alertNoteId, 0);
+                    }
+                } finally {
+                    result.finish();
+                }
+                return null;
+            }
+        }.execute();
+
+        // 窗口内的提醒由提醒界面自己查询，不必等待调度器
         // 将Intent的目标类设置为AlarmAlertActivity
         intent.setClass(context, AlarmAlertActivity.class);
-        
+
         // 添加NEW_TASK标志，因为从广播接收器启动Activity需要新任务栈
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        
+
         // 启动提醒活动界面
         context.startActivity(intent);
     }
+
+    /**
+     * 订阅笔记变更事件，笔记被删除或移入回收站时取消其闹钟，可重复调用
+     * @param context 上下文环境
+     */
+    public static synchronized void registerChangeListener(Context context) {
+        if (sChangeListener != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        sChangeListener = new NotesChangeBus.OnNotesChangedListener() {
+            public void onNotesChanged(ChangeEvent event) {
+                if (event.getOp() == NotesChangeBus.OP_DELETE) {
+                    // 已删除的笔记查不到了，按调度器中的提醒取消
+                    cancelAlarms(appContext, event.getNoteIds());
+                } else if (event.getOp() == NotesChangeBus.OP_UPDATE
+                        && event.touchesAny(NoteColumns.PARENT_ID)) {
+                    cancelTrashedAlarms(appContext, event.getNoteIdSelection());
+                }
+            }
+        };
+        NotesChangeBus.register(sChangeListener);
+    }
+
+    /**
+     * 在后台查询 noteSelection 所选笔记中已移入回收站且设置了提醒的笔记，取消它们的闹钟
+     */
+    private static void cancelTrashedAlarms(final Context context, final String noteSelection) {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                String selection = NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER
+                        + " AND " + NoteColumns.ALERTED_DATE + ">0";
+                if (noteSelection != null) {
+                    selection += " AND " + noteSelection;
+                }
+                Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                        new String[]{NoteColumns.ID}, selection, null, null);
+                if (c != null) {
+                    try {
+                        long[] noteIds = new long[c.getCount()];
+                        for (int i = 0; c.moveToNext(); i++) {
+                            noteIds[i] = c.getLong(0);
+                        }
+                        if (noteIds.length > 0) {
+                            ReminderScheduler.onNotesRemoved(context, noteIds);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * 在后台把一批笔记的提醒从调度器中删除，只重新注册一次闹钟
+     */
+    private static void cancelAlarms(final Context context, Set<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final long[] noteIds = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            noteIds[i++] = id;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                ReminderScheduler.onNotesRemoved(context, noteIds);
+                return null;
+            }
+        }.execute();
+    }
 }
@@ -1,24 +1,24 @@
 package net.micode.notes.ui;
 
 import android.app.Activity;
-import android.app.AlarmManager;
 import android.app.AlertDialog;
-import android.app.PendingIntent;
 import android.app.SearchManager;
 import android.appwidget.AppWidgetManager;
-import android.content.ContentUris;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Paint;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
-import android.text.style.BackgroundColorSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -26,13 +26,16 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -41,19 +44,20 @@ import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
+import net.micode.notes.model.WorkingNoteSaver;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
 import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
-import net.micode.notes.widget.NoteWidgetProvider_2x;
-import net.micode.notes.widget.NoteWidgetProvider_4x;
+import net.micode.notes.widget.NoteWidgetProvider;
+import net.micode.notes.widget.NoteWidgetUpdateScheduler;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * 笔记编辑Activity，实现点击监听、笔记设置改变监听和文本变化监听
@@ -115,23 +119,45 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     private EditText mNoteEditor;                  // 笔记编辑器
     private View mNoteEditorPanel;                 // 笔记编辑面板
     private WorkingNote mWorkingNote;              // 当前工作笔记对象
+    private WorkingNoteSaver mSaver;               // 在后台保存当前笔记
     private SharedPreferences mSharedPrefs;        // 共享首选项
     private int mFontSizeId;                       // 当前字体大小ID
     private static final String PREFERENCE_FONT_SIZE = "pref_font_size"; // 字体大小首选项键
     private static final int SHORTCUT_ICON_TITLE_MAX_LEN = 10; // 快捷图标标题最大长度
+    private static final long SAVE_FLUSH_TIMEOUT = 3000;       // 界面不可见时最多等待未写完的保存的毫秒数
 
     // 复选框标记
-    public static final String TAG_CHECKED = String.valueOf('\u221A');
-    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+    public static final String TAG_CHECKED = WorkingNote.TAG_CHECKED;
+    public static final String TAG_UNCHECKED = WorkingNote.TAG_UNCHECKED;
 
-    private LinearLayout mEditTextList;            // 编辑文本列表布局
+    // 清单条目放在代码中创建的列表里，只为可见的条目创建视图，滚动时复用
+    private View mNoteScrollView;                  // 正文所在的滚动视图，清单模式下隐藏
+    private ListView mCheckList;                   // 清单条目列表
+    private CheckListAdapter mCheckListAdapter;    // 清单条目列表的适配器
+    private ArrayList<WorkingNote.ListItem> mListItems; // 清单条目，最后一个是用于输入的空条目
+    private int mFocusPosition = -1;               // 列表刷新后获得焦点的条目位置，-1表示没有
+    private int mFocusSelection;                   // 获得焦点的条目的光标位置
+
+    /**
+     * 清单条目视图的控件，创建时查找一次，视图复用时只改变绑定的条目
+     */
+    private static final class ListItemHolder {
+        NoteEditText edit;
+        CheckBox checkBox;
+        WorkingNote.ListItem item;  // 视图当前绑定的清单条目，编辑和勾选直接写回条目
+        int fontSizeId = -1;        // 视图当前使用的字体大小
+        boolean binding;            // 正在绑定条目，此时的文本和勾选变化不是用户的编辑
+    }
     private String mUserQuery;                     // 用户查询字符串
-    private Pattern mPattern;                      // 正则表达式模式
+    private QueryHighlighter mHighlighter;         // 查询关键词的高亮器，正文和清单条目共用
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         this.setContentView(R.layout.note_edit);  // 设置布局
+        // 从小部件直接打开时列表界面可能没有启动过，在这里同样订阅笔记变更事件
+        NoteWidgetProvider.registerChangeListener(this);
+        AlarmReceiver.registerChangeListener(this);
 
         // 初始化Activity状态，如果失败则结束
         if (savedInstanceState == null && !initActivityState(getIntent())) {
@@ -244,6 +270,14 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return false;
         }
         mWorkingNote.setOnSettingStatusChangedListener(this);
+        if (mSaver != null) {
+            mSaver.cancel();
+        }
+        mSaver = new WorkingNoteSaver(mWorkingNote, new WorkingNoteSaver.Callback() {
+            public void onPrepareSave() {
+                getWorkingText();
+            }
+        });
         return true;
     }
 
@@ -263,7 +297,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         
         // 根据笔记模式设置编辑器内容
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mWorkingNote.getContent());
+            switchToListMode(mWorkingNote.getCheckListItems());
         } else {
             mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
             mNoteEditor.setSelection(mNoteEditor.getText().length());
@@ -318,12 +352,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         /**
-         * 对于没有ID的新笔记，我们应该先保存它以生成ID。
-         * 如果编辑的笔记不值得保存，则没有ID，相当于创建新笔记
+         * 不在这里等待保存。新笔记第一次修改时已经立即保存，通常已有ID；
+         * 没有ID时笔记不值得保存，或者第一次写入还没有完成，相当于创建新笔记，内容由 onStop 保证写入
          */
-        if (!mWorkingNote.existInDatabase()) {
-            saveNote();
-        }
         outState.putLong(Intent.EXTRA_UID, mWorkingNote.getNoteId());
         Log.d(TAG, "保存工作笔记ID: " + mWorkingNote.getNoteId() + " 在onSaveInstanceState中");
     }
@@ -378,6 +409,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         
         // 初始化编辑器
         mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        mNoteEditor.addTextChangedListener(mAutoSaveWatcher);
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         
         // 初始化背景颜色选择器
@@ -406,41 +438,59 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
         
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        initCheckList();
+    }
+
+    /**
+     * 在代码中创建清单条目列表，替换布局中逐条添加视图的 note_edit_list。
+     * 列表需要自己滚动，不能放进正文的滚动视图，因此放在滚动视图旁边，和正文轮流显示
+     */
+    private void initCheckList() {
+        findViewById(R.id.note_edit_list).setVisibility(View.GONE);
+        mNoteScrollView = mNoteEditor;
+        while (!(mNoteScrollView instanceof ScrollView) && mNoteScrollView != mNoteEditorPanel
+                && mNoteScrollView.getParent() instanceof View) {
+            mNoteScrollView = (View) mNoteScrollView.getParent();
+        }
+        mCheckList = new ListView(this);
+        mCheckList.setItemsCanFocus(true);
+        mCheckList.setDescendantFocusability(ViewGroup.FOCUS_AFTER_DESCENDANTS);
+        mCheckList.setDivider(null);
+        mCheckList.setCacheColorHint(0);  // 背景由外层面板绘制
+        mCheckList.setVisibility(View.GONE);
+        mCheckListAdapter = new CheckListAdapter();
+        mCheckList.setAdapter(mCheckListAdapter);
+        ViewGroup parent = (ViewGroup) mNoteScrollView.getParent();
+        parent.addView(mCheckList, parent.indexOfChild(mNoteScrollView) + 1,
+                mNoteScrollView.getLayoutParams());
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // 保存笔记
+        // 在后台保存笔记，不等待写入完成；写入线程不属于界面，界面关闭后仍会写完
         if(saveNote()) {
-            Log.d(TAG, "笔记数据已保存，长度:" + mWorkingNote.getContent().length());
+            Log.d(TAG, "笔记数据已提交保存，长度:" + mWorkingNote.getContent().length());
         }
         clearSettingState();  // 清除设置状态
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // 界面不可见后进程随时可能被杀死，有限地等待 onPause 提交的保存写完
+        if (mSaver != null && mSaver.isSavePending() && !mSaver.flush(SAVE_FLUSH_TIMEOUT)) {
+            Log.w(TAG, "笔记保存未在" + SAVE_FLUSH_TIMEOUT + "毫秒内完成");
+        }
+    }
+
     /**
-     * 更新小部件
+     * 更新小部件，由调度器与其他更新合并后发送广播
      */
     private void updateWidget() {
-        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-        // 根据小部件类型设置不同的广播接收器
-        if (mWorkingNote.getWidgetType() == Notes.TYPE_WIDGET_2X) {
-            intent.setClass(this, NoteWidgetProvider_2x.class);
-        } else if (mWorkingNote.getWidgetType() == Notes.TYPE_WIDGET_4X) {
-            intent.setClass(this, NoteWidgetProvider_4x.class);
-        } else {
-            Log.e(TAG, "不支持的小部件类型");
-            return;
-        }
-
-        // 发送广播更新小部件
-        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[] {
-            mWorkingNote.getWidgetId()
-        });
-
-        sendBroadcast(intent);
-        setResult(RESULT_OK, intent);
+        NoteWidgetUpdateScheduler.markDirty(this, mWorkingNote.getWidgetId(),
+                mWorkingNote.getWidgetType());
+        setResult(RESULT_OK);
     }
 }
 // 点击事件处理
@@ -468,7 +518,7 @@ public void onClick(View v) {
         // 根据当前模式更新文本显示
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
             getWorkingText();
-            switchToListMode(mWorkingNote.getContent());
+            switchToListMode(mWorkingNote.getCheckListItems());
         } else {
             mNoteEditor.setTextAppearance(this,
                     TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
@@ -610,7 +660,7 @@ private void sendTo(Context context, String info) {
 
 // 创建新笔记
 private void createNewNote() {
-    saveNote();  // 先保存当前笔记
+    saveNote();  // 先在后台保存当前笔记
     finish();  // 结束当前Activity
     // 启动新的NoteEditActivity
     Intent intent = new Intent(this, NoteEditActivity.class);
@@ -620,27 +670,37 @@ private void createNewNote() {
 }
 
 // 删除当前笔记
+// 先标记为已删除，之后执行的保存都不再写入；删除排在正在写入的保存之后执行，
+// 避免保存在删除之后又插入笔记或写回数据
 private void deleteCurrentNote() {
-    if (mWorkingNote.existInDatabase()) {
-        HashSet<Long> ids = new HashSet<Long>();
-        long id = mWorkingNote.getNoteId();
-        if (id != Notes.ID_ROOT_FOLDER) {
-            ids.add(id);
-        } else {
-            Log.d(TAG, "错误的笔记ID，不应该发生");
-        }
-        // 根据同步模式选择删除方式
-        if (!isSyncMode()) {
-            if (!DataUtils.batchDeleteNotes(getContentResolver(), ids)) {
-                Log.e(TAG, "删除笔记错误");
+    final WorkingNote note = mWorkingNote;
+    final ContentResolver resolver = getContentResolver();
+    final boolean syncMode = isSyncMode();
+    note.markDeleted(true);
+    mSaver.runAfterSaves(new Runnable() {
+        public void run() {
+            if (!note.existInDatabase()) {
+                return;
             }
-        } else {
-            if (!DataUtils.batchMoveToFolder(getContentResolver(), ids, Notes.ID_TRASH_FOLER)) {
-                Log.e(TAG, "移动笔记到回收站错误，不应该发生");
+            HashSet<Long> ids = new HashSet<Long>();
+            long id = note.getNoteId();
+            if (id != Notes.ID_ROOT_FOLDER) {
+                ids.add(id);
+            } else {
+                Log.d(TAG, "错误的笔记ID，不应该发生");
+            }
+            // 根据同步模式选择删除方式
+            if (!syncMode) {
+                if (!DataUtils.batchDeleteNotes(resolver, ids)) {
+                    Log.e(TAG, "删除笔记错误");
+                }
+            } else {
+                if (!DataUtils.batchMoveToFolder(resolver, ids, Notes.ID_TRASH_FOLER)) {
+                    Log.e(TAG, "移动笔记到回收站错误，不应该发生");
+                }
             }
         }
-    }
-    mWorkingNote.markDeleted(true);
+    });
 }
 
 // 检查是否处于同步模式
@@ -649,23 +709,34 @@ private boolean isSyncMode() {
 }
 
 // 提醒时间改变回调
-public void onClockAlertChanged(long date, boolean set) {
-    // 对于未保存的笔记，设置提醒前先保存
+public void onClockAlertChanged(final long date, final boolean set) {
+    // 对于未保存的笔记，在后台保存完成、得到ID之后再设置提醒，不等待写入
     if (!mWorkingNote.existInDatabase()) {
-        saveNote();
+        mSaver.saveAndThen(new Runnable() {
+            public void run() {
+                applyClockAlert(date, set);
+            }
+        });
+        return;
     }
+    applyClockAlert(date, set);
+}
+
+private void applyClockAlert(long date, boolean set) {
     if (mWorkingNote.getNoteId() > 0) {
-        // 设置或取消闹钟提醒
-        Intent intent = new Intent(this, AlarmReceiver.class);
-        intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mWorkingNote.getNoteId()));
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent, 0);
-        AlarmManager alarmManager = ((AlarmManager) getSystemService(ALARM_SERVICE));
+        // 设置或取消闹钟提醒，由调度器决定何时注册闹钟
         showAlertHeader();
-        if(!set) {
-            alarmManager.cancel(pendingIntent);
-        } else {
-            alarmManager.set(AlarmManager.RTC_WAKEUP, date, pendingIntent);
-        }
+        // 调度器可能读取数据库，在后台线程调用；AsyncTask 依次执行，连续的修改不会乱序
+        final Context context = getApplicationContext();
+        final long noteId = mWorkingNote.getNoteId();
+        final long alertDate = set ? date : 0;
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                ReminderScheduler.onAlertChanged(context, noteId, alertDate);
+                return null;
+            }
+        }.execute();
     } else {
         // 笔记为空，无法设置提醒
         Log.e(TAG, "提醒设置错误");
@@ -673,158 +744,215 @@ public void onClockAlertChanged(long date, boolean set) {
     }
 }
 
-// 小部件更新回调
+// 小部件更新回调，保存在后台进行时在后台线程调用
 public void onWidgetChanged() {
-    updateWidget();
+    runOnUiThread(new Runnable() {
+        public void run() {
+            updateWidget();
+        }
+    });
 }
 
-// 编辑文本删除回调
+// 编辑文本删除回调，把条目的文本合并到前一个条目
 public void onEditTextDelete(int index, String text) {
-    int childCount = mEditTextList.getChildCount();
-    if (childCount == 1) {  // 至少保留一个条目
+    if (mListItems.size() == 1 || index >= mListItems.size()) {  // 至少保留一个条目
         return;
     }
 
-    // 更新后续条目的索引
-    for (int i = index + 1; i < childCount; i++) {
-        ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                .setIndex(i - 1);
-    }
-
-    mEditTextList.removeViewAt(index);  // 移除指定条目
-    NoteEditText edit = null;
-    if(index == 0) {
-        edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                R.id.et_edit_text);
-    } else {
-        edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                R.id.et_edit_text);
+    mListItems.remove(index);  // 移除指定条目，后面条目的位置由列表在绑定时更新
+    int position = index == 0 ? 0 : index - 1;
+    WorkingNote.ListItem item = mListItems.get(position);
+    mFocusPosition = position;
+    mFocusSelection = item.getText().length();
+    item.setText(item.getText() + text);
+    mCheckListAdapter.notifyDataSetChanged();
+    showListItem(position);
+    if (mSaver != null) {
+        mSaver.requestSave();
     }
-    // 将删除的文本追加到前一个或后一个条目
-    int length = edit.length();
-    edit.append(text);
-    edit.requestFocus();
-    edit.setSelection(length);
 }
 
-// 编辑文本回车回调
+// 编辑文本回车回调，在指定位置插入新条目
 public void onEditTextEnter(int index, String text) {
-    if(index > mEditTextList.getChildCount()) {
-        Log.e(TAG, "索引超出mEditTextList边界，不应该发生");
+    if(index > mListItems.size()) {
+        Log.e(TAG, "索引超出清单条目边界，不应该发生");
+        index = mListItems.size();
     }
 
-    // 在指定位置插入新条目
-    View view = getListItem(text, index);
-    mEditTextList.addView(view, index);
-    NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-    edit.requestFocus();
-    edit.setSelection(0);
-    // 更新后续条目的索引
-    for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-        ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                .setIndex(i);
+    mListItems.add(index, new WorkingNote.ListItem(text, false));
+    mFocusPosition = index;
+    mFocusSelection = 0;
+    mCheckListAdapter.notifyDataSetChanged();
+    showListItem(index);
+}
+
+// 条目不在可见范围内时滚动列表显示它
+private void showListItem(int position) {
+    if (position < mCheckList.getFirstVisiblePosition()
+            || position > mCheckList.getLastVisiblePosition()) {
+        mCheckList.setSelection(position);
     }
 }
 
 // 切换到清单模式
-private void switchToListMode(String text) {
-    mEditTextList.removeAllViews();
-    String[] items = text.split("\n");
-    int index = 0;
-    // 为每行文本创建一个清单条目
-    for (String item : items) {
-        if(!TextUtils.isEmpty(item)) {
-            mEditTextList.addView(getListItem(item, index));
-            index++;
-        }
-    }
-    // 添加一个空条目用于输入
-    mEditTextList.addView(getListItem("", index));
-    mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
+private void switchToListMode(List<WorkingNote.ListItem> items) {
+    mListItems = new ArrayList<WorkingNote.ListItem>(items.size() + 1);
+    mListItems.addAll(items);
+    mListItems.add(new WorkingNote.ListItem("", false));  // 添加一个空条目用于输入
+    // 和以前一样聚焦到最后的空条目
+    mFocusPosition = mListItems.size() - 1;
+    mFocusSelection = 0;
+    mCheckListAdapter.notifyDataSetChanged();
+    mCheckList.setSelection(mFocusPosition);
 
     // 切换视图可见性
     mNoteEditor.setVisibility(View.GONE);
-    mEditTextList.setVisibility(View.VISIBLE);
+    mNoteScrollView.setVisibility(View.GONE);
+    mCheckList.setVisibility(View.VISIBLE);
 }
 
-// 获取高亮查询结果的Spannable
-private Spannable getHighlightQueryResult(String fullText, String userQuery) {
-    SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
-    if (!TextUtils.isEmpty(userQuery)) {
-        mPattern = Pattern.compile(userQuery);
-        Matcher m = mPattern.matcher(fullText);
-        int start = 0;
-        // 高亮所有匹配的文本
-        while (m.find(start)) {
-            spannable.setSpan(
-                    new BackgroundColorSpan(this.getResources().getColor(
-                            R.color.user_query_highlight)), m.start(), m.end(),
-                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-            start = m.end();
+/**
+ * 清单条目列表的适配器，条目视图只为可见的位置创建，滚出屏幕后绑定到新的条目
+ */
+private class CheckListAdapter extends BaseAdapter {
+    public int getCount() {
+        return mListItems == null ? 0 : mListItems.size();
+    }
+
+    public Object getItem(int position) {
+        return mListItems.get(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            convertView = newListItemView(parent);
         }
+        bindListItem((ListItemHolder) convertView.getTag(), mListItems.get(position), position);
+        return convertView;
     }
-    return spannable;
 }
 
-// 获取清单条目视图
-private View getListItem(String item, int index) {
-    View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-    final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-    edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-    CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
+// 创建清单条目视图，监听器只设置一次，通过 holder 写回当前绑定的条目
+private View newListItemView(ViewGroup parent) {
+    View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, parent, false);
+    final ListItemHolder holder = new ListItemHolder();
+    holder.edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
+    holder.checkBox = (CheckBox) view.findViewById(R.id.cb_edit_item);
     // 复选框状态改变监听
-    cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+    holder.checkBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-            if (isChecked) {
-                edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            } else {
-                edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+            setStrikeThrough(holder.edit, isChecked);
+            if (holder.binding) {
+                return;
+            }
+            holder.item.setChecked(isChecked);
+            if (mSaver != null) {
+                mSaver.requestSave();
             }
         }
     });
+    holder.edit.setOnTextViewChangeListener(this);
+    holder.edit.addTextChangedListener(new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
 
-    // 处理已检查/未检查标记
-    if (item.startsWith(TAG_CHECKED)) {
-        cb.setChecked(true);
+        public void afterTextChanged(Editable s) {
+            if (holder.binding) {
+                return;
+            }
+            holder.item.setText(s.toString());
+            if (mSaver != null) {
+                mSaver.requestSave();
+            }
+        }
+    });
+    view.setTag(holder);
+    return view;
+}
+
+// 把条目绑定到视图，视图已经显示同一个条目时不重设文本，以免布局变化时丢失光标
+private void bindListItem(ListItemHolder holder, WorkingNote.ListItem item, int position) {
+    holder.binding = true;
+    if (holder.fontSizeId != mFontSizeId) {
+        holder.fontSizeId = mFontSizeId;
+        holder.edit.setTextAppearance(this,
+                TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+    }
+    if (holder.item != item || !item.getText().equals(holder.edit.getText().toString())) {
+        holder.edit.setText(getHighlightQueryResult(item.getText(), mUserQuery));
+    }
+    holder.item = item;
+    holder.edit.setIndex(position);
+    holder.checkBox.setChecked(item.isChecked());
+    setStrikeThrough(holder.edit, item.isChecked());
+    holder.checkBox.setVisibility(holder.edit.hasFocus() || item.getText().length() > 0
+            ? View.VISIBLE : View.GONE);
+    holder.binding = false;
+    if (position == mFocusPosition) {
+        mFocusPosition = -1;
+        holder.edit.requestFocus();
+        holder.edit.setSelection(Math.min(mFocusSelection, holder.edit.length()));
+    }
+}
+
+// 已勾选的条目显示删除线
+private static void setStrikeThrough(NoteEditText edit, boolean checked) {
+    if (checked) {
         edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-        item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-    } else if (item.startsWith(TAG_UNCHECKED)) {
-        cb.setChecked(false);
+    } else {
         edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-        item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
     }
+}
 
-    edit.setOnTextViewChangeListener(this);
-    edit.setIndex(index);
-    edit.setText(getHighlightQueryResult(item, mUserQuery));
-    return view;
+// 获取高亮查询结果的Spannable
+private Spannable getHighlightQueryResult(String fullText, String userQuery) {
+    if (TextUtils.isEmpty(userQuery)) {
+        return new SpannableString(fullText == null ? "" : fullText);
+    }
+    // 查询不变时复用同一个高亮器，不必为每个清单条目重新构建
+    if (mHighlighter == null || !mHighlighter.getQuery().equals(userQuery)) {
+        mHighlighter = new QueryHighlighter(userQuery,
+                getResources().getColor(R.color.user_query_highlight));
+    }
+    // 高亮所有匹配的文本
+    return mHighlighter.highlight(fullText);
 }
 
 // 文本变化回调
 public void onTextChange(int index, boolean hasText) {
-    if (index >= mEditTextList.getChildCount()) {
+    View view = mCheckList.getChildAt(index - mCheckList.getFirstVisiblePosition());
+    if (view == null) {
         Log.e(TAG, "错误的索引，不应该发生");
         return;
     }
     // 根据是否有文本显示/隐藏复选框
-    if(hasText) {
-        mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
-    } else {
-        mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
-    }
+    ((ListItemHolder) view.getTag()).checkBox.setVisibility(hasText ? View.VISIBLE : View.GONE);
 }
 
 // 清单模式改变回调
 public void onCheckListModeChanged(int oldMode, int newMode) {
     if (newMode == TextNote.MODE_CHECK_LIST) {
-        switchToListMode(mNoteEditor.getText().toString());
+        switchToListMode(WorkingNote.parseCheckList(mNoteEditor.getText().toString()));
     } else {
-        if (!getWorkingText()) {
-            mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
-                    ""));
+        // 由清单条目生成完整的文本，转回普通模式后以文本保存
+        boolean hasChecked = getWorkingText();
+        String text = mWorkingNote.getContent();
+        if (!hasChecked) {
+            text = text.replace(TAG_UNCHECKED + " ", "");
         }
-        mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
-        mEditTextList.setVisibility(View.GONE);
+        mWorkingNote.setWorkingText(text);
+        mNoteEditor.setText(getHighlightQueryResult(text, mUserQuery));
+        mCheckList.setVisibility(View.GONE);
+        mListItems = null;
+        mCheckListAdapter.notifyDataSetChanged();
+        mNoteScrollView.setVisibility(View.VISIBLE);
         mNoteEditor.setVisibility(View.VISIBLE);
     }
 }
@@ -833,45 +961,64 @@ public void onCheckListModeChanged(int oldMode, int newMode) {
 private boolean getWorkingText() {
     boolean hasChecked = false;
     if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-        StringBuilder sb = new StringBuilder();
-        // 遍历所有清单条目，构建文本
-        for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-            View view = mEditTextList.getChildAt(i);
-            NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-            if (!TextUtils.isEmpty(edit.getText())) {
-                if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                    sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                    hasChecked = true;
-                } else {
-                    sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                }
+        ArrayList<WorkingNote.ListItem> items = new ArrayList<WorkingNote.ListItem>();
+        // 条目视图的编辑和勾选已经写回条目，空条目不保存
+        for (WorkingNote.ListItem item : mListItems) {
+            if (!TextUtils.isEmpty(item.getText())) {
+                hasChecked |= item.isChecked();
+                items.add(item);
             }
         }
-        mWorkingNote.setWorkingText(sb.toString());
+        // 只有改动过的条目会被写入数据库
+        mWorkingNote.setCheckListItems(items);
     } else {
         mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
     }
     return hasChecked;
 }
 
-// 保存笔记
+// 保存笔记，取出界面上的内容后交给后台写入，不等待写入完成
 private boolean saveNote() {
-    getWorkingText();
-    boolean saved = mWorkingNote.saveNote();
+    mSaver.save();
+    boolean saved = mWorkingNote.isWorthSaving();
     if (saved) {
         setResult(RESULT_OK);  // 设置结果代码
     }
     return saved;
 }
 
+// 编辑时延迟保存，连续输入只在停顿后保存一次
+private final TextWatcher mAutoSaveWatcher = new TextWatcher() {
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    public void afterTextChanged(Editable s) {
+        if (mSaver != null) {
+            mSaver.requestSave();
+        }
+    }
+};
+
 // 发送笔记快捷方式到桌面
 private void sendToDesktop() {
-    // 对于新笔记，先保存
+    // 对于新笔记，在后台保存完成、得到ID之后再发送，不等待写入
     if (!mWorkingNote.existInDatabase()) {
-        saveNote();
+        mSaver.saveAndThen(new Runnable() {
+            public void run() {
+                sendShortcut();
+            }
+        });
+        return;
     }
+    sendShortcut();
+}
 
+private void sendShortcut() {
     if (mWorkingNote.getNoteId() > 0) {
+        setResult(RESULT_OK);
         Intent sender = new Intent();
         Intent shortcutIntent = new Intent(this, NoteEditActivity.class);
         shortcutIntent.setAction(Intent.ACTION_VIEW);
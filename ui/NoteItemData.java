@@ -4,10 +4,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
 
-import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.DataUtils;
 
 /**
  * 笔记项数据封装类，用于表示单个笔记或文件夹的数据
@@ -23,12 +21,31 @@ public class NoteItemData {
         NoteColumns.MODIFIED_DATE,        // 修改日期
         NoteColumns.NOTES_COUNT,          // 包含的笔记数量(针对文件夹)
         NoteColumns.PARENT_ID,            // 父文件夹ID
-        NoteColumns.SNIPPET,              // 内容摘要
+        NoteColumns.DISPLAY_SNIPPET,      // 内容摘要(第一行，已去除复选框标记)
         NoteColumns.TYPE,                 // 类型(笔记/文件夹/系统)
         NoteColumns.WIDGET_ID,            // 小部件ID
         NoteColumns.WIDGET_TYPE,          // 小部件类型
+        NoteColumns.CALL_PHONE_NUMBER,    // 电话号码(针对通话记录)
+        NoteColumns.VERSION,              // 版本号，用于比较列表中的行是否发生变化
+        NoteColumns.CHECK_LIST_TOTAL,     // 清单条目总数
+        NoteColumns.CHECK_LIST_DONE,      // 已勾选的清单条目数
     };
 
+    /**
+     * 获取查询指定文件夹时使用的列投影，在 PROJECTION 之后追加该文件夹中的笔记总数。
+     * 笔记总数取自触发器维护的文件夹行的 NOTES_COUNT（包括子文件夹），减去文件夹中的
+     * 文件夹数，只读取一行和文件夹的索引范围，与文件夹中的笔记数无关
+     */
+    static String [] getProjection(long folderId) {
+        String [] projection = new String[PROJECTION.length + 1];
+        System.arraycopy(PROJECTION, 0, projection, 0, PROJECTION.length);
+        projection[FOLDER_NOTES_COUNT_COLUMN] = "(SELECT " + NoteColumns.NOTES_COUNT
+                + " FROM note WHERE " + NoteColumns.ID + "=" + folderId + ")-(SELECT COUNT(*)"
+                + " FROM note WHERE " + NoteColumns.PARENT_ID + "=" + folderId + " AND "
+                + NoteColumns.TYPE + ">" + Notes.TYPE_NOTE + ") AS folder_notes_count";
+        return projection;
+    }
+
     // 列索引常量
     private static final int ID_COLUMN                    = 0;
     private static final int ALERTED_DATE_COLUMN          = 1;
@@ -42,6 +59,10 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int CALL_PHONE_NUMBER_COLUMN     = 12;
+    private static final int CHECK_LIST_TOTAL_COLUMN      = 14;
+    private static final int CHECK_LIST_DONE_COLUMN       = 15;
+    private static final int FOLDER_NOTES_COUNT_COLUMN    = 16;
 
     // 笔记数据字段
     private long mId;                // 笔记ID
@@ -58,6 +79,8 @@ public class NoteItemData {
     private int mWidgetType;         // 小部件类型
     private String mName;            // 联系人姓名(针对通话记录)
     private String mPhoneNumber;     // 电话号码(针对通话记录)
+    private int mCheckListTotal;     // 清单条目总数
+    private int mCheckListDone;      // 已勾选的清单条目数
 
     // 位置状态标志
     private boolean mIsLastItem;              // 是否是列表最后一项
@@ -72,6 +95,41 @@ public class NoteItemData {
      * @param cursor 数据游标
      */
     public NoteItemData(Context context, Cursor cursor) {
+        load(cursor);
+    }
+
+    /**
+     * 复制一份数据，列表项绑定的对象会被复用，需要长期持有时使用副本
+     */
+    public NoteItemData(NoteItemData other) {
+        mId = other.mId;
+        mAlertDate = other.mAlertDate;
+        mBgColorId = other.mBgColorId;
+        mCreatedDate = other.mCreatedDate;
+        mHasAttachment = other.mHasAttachment;
+        mModifiedDate = other.mModifiedDate;
+        mNotesCount = other.mNotesCount;
+        mParentId = other.mParentId;
+        mSnippet = other.mSnippet;
+        mType = other.mType;
+        mWidgetId = other.mWidgetId;
+        mWidgetType = other.mWidgetType;
+        mName = other.mName;
+        mPhoneNumber = other.mPhoneNumber;
+        mCheckListTotal = other.mCheckListTotal;
+        mCheckListDone = other.mCheckListDone;
+        mIsLastItem = other.mIsLastItem;
+        mIsFirstItem = other.mIsFirstItem;
+        mIsOnlyOneItem = other.mIsOnlyOneItem;
+        mIsOneNoteFollowingFolder = other.mIsOneNoteFollowingFolder;
+        mIsMultiNotesFollowingFolder = other.mIsMultiNotesFollowingFolder;
+    }
+
+    /**
+     * 从游标当前行重新读取数据，列表项复用同一个对象，绑定时不再分配新的对象
+     * @param cursor 数据游标
+     */
+    public void load(Cursor cursor) {
         // 从游标读取基本数据
         mId = cursor.getLong(ID_COLUMN);
         mAlertDate = cursor.getLong(ALERTED_DATE_COLUMN);
@@ -82,30 +140,22 @@ public class NoteItemData {
         mNotesCount = cursor.getInt(NOTES_COUNT_COLUMN);
         mParentId = cursor.getLong(PARENT_ID_COLUMN);
         mSnippet = cursor.getString(SNIPPET_COLUMN);
-        // 去除内容摘要中的复选框标记
-        mSnippet = mSnippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
-                NoteEditActivity.TAG_UNCHECKED, "");
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
+        mCheckListTotal = cursor.getInt(CHECK_LIST_TOTAL_COLUMN);
+        mCheckListDone = cursor.getInt(CHECK_LIST_DONE_COLUMN);
 
         // 初始化通话记录相关数据
+        // 电话号码由列表查询一并返回，联系人姓名由适配器在后台批量解析后填入
         mPhoneNumber = "";
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            // 如果是通话记录文件夹下的笔记，获取电话号码
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
-            if (!TextUtils.isEmpty(mPhoneNumber)) {
-                // 根据电话号码获取联系人姓名
-                mName = Contact.getContact(context, mPhoneNumber);
-                if (mName == null) {
-                    mName = mPhoneNumber;
-                }
+            mPhoneNumber = cursor.getString(CALL_PHONE_NUMBER_COLUMN);
+            if (mPhoneNumber == null) {
+                mPhoneNumber = "";
             }
         }
-
-        if (mName == null) {
-            mName = "";
-        }
+        mName = mPhoneNumber;
         // 检查并设置位置状态
         checkPostion(cursor);
     }
@@ -167,6 +217,14 @@ public class NoteItemData {
         return mName;
     }
 
+    public void setCallName(String name) {
+        mName = name;
+    }
+
+    public String getPhoneNumber() {
+        return mPhoneNumber;
+    }
+
     public boolean isCallRecord() {
         return (mParentId == Notes.ID_CALL_RECORD_FOLDER && !TextUtils.isEmpty(mPhoneNumber));
     }
@@ -228,6 +286,14 @@ public class NoteItemData {
         return (mAlertDate > 0);
     }
 
+    public int getCheckListTotal() {
+        return mCheckListTotal;
+    }
+
+    public int getCheckListDone() {
+        return mCheckListDone;
+    }
+
     /**
      * 静态方法：从游标获取笔记类型
      * @param cursor 数据游标
@@ -236,4 +302,23 @@ public class NoteItemData {
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN);
     }
+
+    /**
+     * 获取列表所在文件夹的笔记总数，每一行的值都相同
+     */
+    public static int getFolderNotesCount(Cursor cursor) {
+        return cursor.getInt(FOLDER_NOTES_COUNT_COLUMN);
+    }
+
+    public static long getNoteId(Cursor cursor) {
+        return cursor.getLong(ID_COLUMN);
+    }
+
+    public static int getWidgetId(Cursor cursor) {
+        return cursor.getInt(WIDGET_ID_COLUMN);
+    }
+
+    public static int getWidgetType(Cursor cursor) {
+        return cursor.getInt(WIDGET_TYPE_COLUMN);
+    }
 }
@@ -0,0 +1,118 @@
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import net.micode.notes.R;
+
+/**
+ * 笔记列表项显示文本的缓存，绑定列表项时直接取用，滚动时不再重复格式化
+ * 相对时间按分钟分桶缓存，每分钟整体失效一次；文件夹的笔记数按数量缓存；
+ * 清单笔记的标题附带已勾选数和条目总数，按笔记ID缓存，条数有上限，切换列表时清空
+ */
+class NoteItemTextCache {
+    private static final long BUCKET = DateUtils.MINUTE_IN_MILLIS; // 相对时间的精度
+    private static final int MAX_TIME_ENTRIES = 512;               // 相对时间最多缓存的条数
+    private static final int MAX_TITLE_ENTRIES = 512;              // 清单标题最多缓存的条数
+
+    private final Context mContext;
+    private final LongSparseArray<CharSequence> mRelativeTimes; // 按修改时间所在的分钟缓存
+    private final SparseArray<String> mFolderCounts;            // 按笔记数缓存的 "(n)" 文本
+    private final LongSparseArray<FolderTitle> mFolderTitles;   // 按文件夹ID缓存的标题
+    private final LongSparseArray<FolderTitle> mCheckListTitles; // 按笔记ID缓存的清单标题
+    private long mNowBucket;                                    // 缓存的相对时间所对应的分钟
+
+    /**
+     * 文件夹或清单笔记的标题，名称或数目变化后重新生成
+     */
+    private static final class FolderTitle {
+        String name;
+        int count;
+        int total;
+        String title;
+    }
+
+    NoteItemTextCache(Context context) {
+        mContext = context;
+        mRelativeTimes = new LongSparseArray<CharSequence>();
+        mFolderCounts = new SparseArray<String>();
+        mFolderTitles = new LongSparseArray<FolderTitle>();
+        mCheckListTitles = new LongSparseArray<FolderTitle>();
+    }
+
+    /**
+     * 获取 time 相对于当前时间的显示文本，同一分钟内修改的笔记共用一个字符串
+     */
+    CharSequence getRelativeTime(long time) {
+        long nowBucket = System.currentTimeMillis() / BUCKET;
+        if (nowBucket != mNowBucket || mRelativeTimes.size() >= MAX_TIME_ENTRIES) {
+            // 过了一分钟，所有相对时间都需要重新计算
+            mRelativeTimes.clear();
+            mNowBucket = nowBucket;
+        }
+        long bucket = time / BUCKET;
+        CharSequence text = mRelativeTimes.get(bucket);
+        if (text == null) {
+            text = DateUtils.getRelativeTimeSpanString(bucket * BUCKET, mNowBucket * BUCKET, BUCKET);
+            mRelativeTimes.put(bucket, text);
+        }
+        return text;
+    }
+
+    /**
+     * 获取文件夹的标题，即名称加上其中的笔记数
+     */
+    String getFolderTitle(long folderId, String name, int count) {
+        FolderTitle title = mFolderTitles.get(folderId);
+        if (title == null) {
+            title = new FolderTitle();
+            mFolderTitles.put(folderId, title);
+        } else if (title.count == count && title.name != null && title.name.equals(name)) {
+            return title.title;
+        }
+        title.name = name;
+        title.count = count;
+        title.title = name + getFolderCount(count);
+        return title.title;
+    }
+
+    /**
+     * 获取清单笔记的标题，即摘要加上已勾选数和条目总数
+     */
+    String getCheckListTitle(long noteId, String snippet, int done, int total) {
+        FolderTitle title = mCheckListTitles.get(noteId);
+        if (title == null) {
+            if (mCheckListTitles.size() >= MAX_TITLE_ENTRIES) {
+                mCheckListTitles.clear(); // 只缓存最近显示过的清单
+            }
+            title = new FolderTitle();
+            mCheckListTitles.put(noteId, title);
+        } else if (title.count == done && title.total == total && title.name != null
+                && title.name.equals(snippet)) {
+            return title.title;
+        }
+        title.name = snippet;
+        title.count = done;
+        title.total = total;
+        title.title = mContext.getString(R.string.format_check_list_title, snippet, done, total);
+        return title.title;
+    }
+
+    /**
+     * 列表换了游标时调用，之前的清单笔记不一定还会显示
+     */
+    void clearCheckListTitles() {
+        mCheckListTitles.clear();
+    }
+
+    private String getFolderCount(int count) {
+        String text = mFolderCounts.get(count);
+        if (text == null) {
+            text = mContext.getString(R.string.format_folder_files_count, count);
+            mFolderCounts.put(count, text);
+        }
+        return text;
+    }
+}
@@ -3,6 +3,7 @@ package net.micode.notes.ui;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
@@ -53,8 +54,8 @@ import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
-import net.micode.notes.widget.NoteWidgetProvider_2x;
-import net.micode.notes.widget.NoteWidgetProvider_4x;
+import net.micode.notes.widget.NoteWidgetProvider;
+import net.micode.notes.widget.NoteWidgetUpdateScheduler;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -101,12 +102,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     public static final int NOTES_LISTVIEW_SCROLL_RATE = 30; // 列表滚动速率
     private NoteItemData mFocusNoteDataItem;    // 当前焦点笔记数据项
 
-    // 查询条件
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
+    // 查询条件，都以父文件夹开头，按 note_parent_id_index 查找且不需要排序。
+    // 通话记录文件夹也在根文件夹下，写在父文件夹条件之内，OR 不会使查询退化为扫描整个索引
+    public static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
+    public static final String ROOT_FOLDER_SELECTION = NoteColumns.PARENT_ID + "=? AND ("
+            + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM + " OR (" + NoteColumns.ID + "="
+            + Notes.ID_CALL_RECORD_FOLDER + " AND " + NoteColumns.NOTES_COUNT + ">0))";
 
     // 请求码
     private final static int REQUEST_CODE_OPEN_NODE = 102; // 打开笔记请求码
@@ -117,6 +118,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         super.onCreate(savedInstanceState);
         setContentView(R.layout.note_list);
         initResources(); // 初始化资源
+        // 订阅笔记变更事件，由小部件和闹钟各自处理与它们相关的修改
+        NoteWidgetProvider.registerChangeListener(this);
+        AlarmReceiver.registerChangeListener(this);
 
         // 用户第一次使用应用时插入介绍内容
         setAppInfoFromRawRes();
@@ -206,6 +210,15 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mNotesListView.setOnItemLongClickListener(this); // 列表项长按监听
         mNotesListAdapter = new NotesListAdapter(this); // 初始化适配器
         mNotesListView.setAdapter(mNotesListAdapter);
+        mNotesListAdapter.setOnRowsChangedListener(new NotesListAdapter.OnRowsChangedListener() {
+            public void onRowsChanged(int[] positions) {
+                rebindVisibleRows(positions); // 只重新绑定内容变化的行
+            }
+
+            public void onRowsMoved(int[] removed, int[] inserted) {
+                keepFirstVisibleRow(removed, inserted); // 刷新列表，第一个可见的行不跳动
+            }
+        });
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this); // 新建笔记按钮点击监听
         mAddNewNote.setOnTouchListener(new NewNoteOnTouchListener()); // 新建笔记按钮触摸监听
@@ -407,10 +420,69 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     private void startAsyncNotesListQuery() {
         String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
                 : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+        // 只查询第一页，后续页由 PagedNotesCursor 在滚动时预取
+        NotesListQuery query = new NotesListQuery(NoteItemData.getProjection(mCurrentFolderId),
+                selection, new String[] { String.valueOf(mCurrentFolderId) });
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, query,
+                PagedNotesCursor.buildPageUri(Notes.CONTENT_NOTE_LIST_URI, null),
+                query.projection, query.selection, query.selectionArgs, null);
+    }
+
+    /**
+     * 重新绑定可见范围内指定位置的列表项，不可见的行在滚动到时自然会重新绑定
+     */
+    private void rebindVisibleRows(int[] positions) {
+        int first = mNotesListView.getFirstVisiblePosition();
+        int headers = mNotesListView.getHeaderViewsCount();
+        for (int position : positions) {
+            int index = position + headers - first;
+            if (index >= 0 && index < mNotesListView.getChildCount()) {
+                mNotesListAdapter.getView(position, mNotesListView.getChildAt(index),
+                        mNotesListView);
+            }
+        }
+    }
+
+    /**
+     * 行被删除、插入或移动后刷新列表，并把原来第一个可见的行留在原处；
+     * 列表位于顶部时保持在顶部，新插入到最前面的笔记直接可见
+     */
+    private void keepFirstVisibleRow(int[] removed, int[] inserted) {
+        int headers = mNotesListView.getHeaderViewsCount();
+        int first = mNotesListView.getFirstVisiblePosition() - headers;
+        View child = mNotesListView.getChildAt(0);
+        int top = child == null ? 0 : child.getTop();
+        mNotesListAdapter.notifyDataSetChanged();
+        if (first <= 0) {
+            return;
+        }
+        int position = first;
+        for (int old : removed) {
+            if (old < first) {
+                position--;
+            }
+        }
+        for (int row : inserted) {
+            if (row <= position) {
+                position++;
+            }
+        }
+        mNotesListView.setSelectionFromTop(position + headers, top);
+    }
+
+    /**
+     * 笔记列表的查询条件，用于在第一页返回后继续分页查询
+     */
+    private static final class NotesListQuery {
+        final String[] projection;
+        final String selection;
+        final String[] selectionArgs;
+
+        NotesListQuery(String[] projection, String selection, String[] selectionArgs) {
+            this.projection = projection;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+        }
     }
 
     /**
@@ -425,6 +497,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
+                    if (cursor != null) {
+                        NotesListQuery query = (NotesListQuery) cookie;
+                        cursor = new PagedNotesCursor(mContentResolver, Notes.CONTENT_NOTE_LIST_URI,
+                                query.projection, query.selection, query.selectionArgs, cursor);
+                    }
                     mNotesListAdapter.changeCursor(cursor); // 更新笔记列表适配器
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
@@ -449,9 +526,14 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         final FoldersListAdapter adapter = new FoldersListAdapter(this, cursor);
         builder.setAdapter(adapter, new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int which) {
-                // 批量移动到选定文件夹
-                DataUtils.batchMoveToFolder(mContentResolver,
-                        mNotesListAdapter.getSelectedItemIds(), adapter.getItemId(which));
+                // 批量移动到选定文件夹，全选时由 NotesProvider 解析当前文件夹中的笔记
+                if (mNotesListAdapter.isSelectAllMode()) {
+                    DataUtils.bulkMoveAllToFolder(mContentResolver, mCurrentFolderId,
+                            mNotesListAdapter.getSelectionExceptionIds(), adapter.getItemId(which));
+                } else {
+                    DataUtils.bulkMoveToFolder(mContentResolver,
+                            mNotesListAdapter.getSelectedIds(), adapter.getItemId(which));
+                }
                 Toast.makeText(
                         NotesListActivity.this,
                         getString(R.string.format_move_notes_to_folder,
@@ -478,20 +560,30 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
      * 批量删除笔记
      */
     private void batchDelete() {
+        final boolean selectAll = mNotesListAdapter.isSelectAllMode();
+        final long folderId = mCurrentFolderId;
+        // 选中状态在主线程读取，后台任务不访问适配器和它的游标
+        final long[] ids = selectAll ? mNotesListAdapter.getSelectionExceptionIds()
+                : mNotesListAdapter.getSelectedIds();
+        final boolean syncMode = isSyncMode();
         new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
             protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
-                if (!isSyncMode()) {
-                    // 非同步模式直接删除笔记
-                    if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
-                    } else {
+                // 受影响的小部件由 NotesProvider 在同一个事务中查出并返回
+                HashSet<AppWidgetAttribute> widgets;
+                if (!syncMode) {
+                    // 非同步模式直接删除笔记，全选时由 NotesProvider 解析要删除的笔记
+                    widgets = selectAll
+                            ? DataUtils.bulkDeleteAllInFolder(mContentResolver, folderId, ids)
+                            : DataUtils.bulkDeleteNotes(mContentResolver, ids);
+                    if (widgets == null) {
                         Log.e(TAG, "Delete notes error, should not happens");
                     }
                 } else {
                     // 同步模式下将笔记移动到回收站
-                    if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
+                    widgets = selectAll
+                            ? DataUtils.bulkMoveAllToTrash(mContentResolver, folderId, ids)
+                            : DataUtils.bulkMoveToTrash(mContentResolver, ids);
+                    if (widgets == null) {
                         Log.e(TAG, "Move notes to trash folder error, should not happens");
                     }
                 }
@@ -730,26 +822,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     /**
-     * 更新小部件
+     * 更新小部件，批量操作涉及的所有小部件合并为每种类型一个广播
      */
     private void updateWidget(int appWidgetId, int appWidgetType) {
-        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-        // 根据小部件类型设置对应的广播接收器
-        if (appWidgetType == Notes.TYPE_WIDGET_2X) {
-            intent.setClass(this, NoteWidgetProvider_2x.class);
-        } else if (appWidgetType == Notes.TYPE_WIDGET_4X) {
-            intent.setClass(this, NoteWidgetProvider_4x.class);
-        } else {
-            Log.e(TAG, "Unspported widget type");
-            return;
-        }
-
-        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[] {
-            appWidgetId
-        });
-
-        sendBroadcast(intent); // 发送广播更新小部件
-        setResult(RESULT_OK, intent);
+        NoteWidgetUpdateScheduler.markDirty(this, appWidgetId, appWidgetType);
+        setResult(RESULT_OK);
     }
 
     /**
@@ -884,15 +961,45 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
      */
     private void exportNoteToText() {
         final BackupUtils backup = BackupUtils.getInstance(NotesListActivity.this);
-        new AsyncTask<Void, Void, Integer>() {
+        // 显示导出进度，取消对话框时取消导出
+        final ProgressDialog progress = new ProgressDialog(NotesListActivity.this);
+        progress.setTitle(R.string.menu_export_text);
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setCancelable(true);
+        progress.setCanceledOnTouchOutside(false);
+        progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                backup.cancelExport();
+            }
+        });
+        new AsyncTask<Void, Integer, Integer>() {
+            @Override
+            protected void onPreExecute() {
+                progress.show();
+            }
+
             @Override
             protected Integer doInBackground(Void... unused) {
-                return backup.exportToText(); // 在后台执行导出
+                // 在后台执行导出
+                return backup.exportToText(new BackupUtils.ExportListener() {
+                    public void onProgress(int exported, int total) {
+                        publishProgress(exported, total);
+                    }
+                });
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                progress.setMax(values[1]);
+                progress.setProgress(values[0]);
             }
 
             @Override
             protected void onPostExecute(Integer result) {
-                // 根据导出结果显示不同的对话框
+                if (progress.isShowing()) {
+                    progress.dismiss();
+                }
+                // 根据导出结果显示不同的对话框，取消导出时不提示
                 if (result == BackupUtils.STATE_SD_CARD_UNMOUONTED) {
                     showAlertDialog(R.string.failed_sdcard_export, 
                                    R.string.error_sdcard_unmounted);
@@ -941,7 +1048,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
      */
     private class OnListItemClickListener implements OnItemClickListener {
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            if (view instanceof NotesListItem) {
+            if (view instanceof NotesListItem && !((NotesListItem) view).isPlaceholder()) {
                 NoteItemData item = ((NotesListItem) view).getItemData();
                 
                 // 如果处于多选模式，处理选中状态
@@ -1007,8 +1114,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
      * 列表项长按事件处理
      */
     public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
-        if (view instanceof NotesListItem) {
-            mFocusNoteDataItem = ((NotesListItem) view).getItemData();
+        if (view instanceof NotesListItem && !((NotesListItem) view).isPlaceholder()) {
+            // 列表项的数据对象会被复用，保存一份副本供之后的菜单和对话框使用
+            mFocusNoteDataItem = new NoteItemData(((NotesListItem) view).getItemData());
             
             // 笔记长按进入多选模式
             if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE && !mNotesListAdapter.isInChoiceMode()) {
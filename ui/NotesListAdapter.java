@@ -2,17 +2,20 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
+import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * 笔记列表适配器，继承自CursorAdapter
@@ -21,9 +24,28 @@ import java.util.Iterator;
 public class NotesListAdapter extends CursorAdapter {
     private static final String TAG = "NotesListAdapter";
     private Context mContext;                   // 上下文对象
-    private HashMap<Integer, Boolean> mSelectedIndex; // 记录选中项的position和选中状态
+    // 选中状态按笔记ID记录：mSelectAll 为 false 时 mSelectionExceptions 是选中的笔记，
+    // 为 true 时是未选中的笔记，这样全选和反选都不需要遍历列表
+    private boolean mSelectAll;
+    private LongSparseArray<Object> mSelectionExceptions;
     private int mNotesCount;                   // 笔记总数
     private boolean mChoiceMode;               // 是否处于选择模式
+    private HashMap<String, String> mCallNames;  // 已解析的电话号码与联系人姓名
+    private HashSet<String> mPendingNumbers;     // 等待解析姓名的电话号码
+    private HashSet<String> mResolvingNumbers;   // 正在后台解析的电话号码
+    private boolean mCallNameLookupScheduled;    // 是否已安排一次批量解析
+    private Handler mHandler;
+    private OnRowsChangedListener mOnRowsChangedListener;
+    private NoteItemTextCache mTextCache;        // 列表项显示文本的缓存
+
+    /**
+     * 只有部分行发生变化时的回调，由列表重新绑定这些行，或者在刷新时保持可见的位置
+     */
+    public interface OnRowsChangedListener {
+        void onRowsChanged(int[] positions);
+
+        void onRowsMoved(int[] removed, int[] inserted);
+    }
 
     /**
      * 小部件属性类
@@ -38,9 +60,14 @@ public class NotesListAdapter extends CursorAdapter {
      */
     public NotesListAdapter(Context context) {
         super(context, null); // 初始cursor为null，稍后通过changeCursor设置
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        mSelectionExceptions = new LongSparseArray<Object>();
         mContext = context;
         mNotesCount = 0;
+        mCallNames = new HashMap<String, String>();
+        mPendingNumbers = new HashSet<String>();
+        mResolvingNumbers = new HashSet<String>();
+        mHandler = new Handler();
+        mTextCache = new NoteItemTextCache(context);
     }
 
     /**
@@ -57,23 +84,104 @@ public class NotesListAdapter extends CursorAdapter {
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         if (view instanceof NotesListItem) {
-            // 从cursor创建NoteItemData并绑定到NotesListItem
-            NoteItemData itemData = new NoteItemData(context, cursor);
-            ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+            NotesListItem item = (NotesListItem) view;
+            if (cursor instanceof PagedNotesCursor && !((PagedNotesCursor) cursor).isRowLoaded()) {
+                // 所在页还在后台读取，先显示占位内容，读取完成后会重新绑定
+                item.bindPlaceholder();
+                return;
+            }
+            // 复用列表项上一次绑定的NoteItemData，从cursor重新读取后绑定
+            NoteItemData itemData = item.getItemData();
+            if (itemData == null) {
+                itemData = new NoteItemData(context, cursor);
+            } else {
+                itemData.load(cursor);
+            }
+            if (itemData.isCallRecord()) {
+                bindCallName(itemData);
+            }
+            item.bind(context, itemData, mTextCache, mChoiceMode,
+                    itemData.getType() == Notes.TYPE_NOTE && isSelectedId(itemData.getId()));
         }
     }
 
+    /**
+     * 填入通话记录的联系人姓名，尚未解析的号码先显示号码本身，并加入下一次批量解析
+     */
+    private void bindCallName(NoteItemData itemData) {
+        String number = itemData.getPhoneNumber();
+        String name = mCallNames.get(number);
+        if (name != null) {
+            itemData.setCallName(name);
+            return;
+        }
+        if (mResolvingNumbers.contains(number) || !mPendingNumbers.add(number)) {
+            return;
+        }
+        if (!mCallNameLookupScheduled) {
+            mCallNameLookupScheduled = true;
+            // 等当前这一屏绑定完成后再统一解析
+            mHandler.post(new Runnable() {
+                public void run() {
+                    startCallNameLookup();
+                }
+            });
+        }
+    }
+
+    /**
+     * 在后台线程批量解析等待中的电话号码，完成后刷新可见项
+     */
+    private void startCallNameLookup() {
+        mCallNameLookupScheduled = false;
+        if (mPendingNumbers.isEmpty()) {
+            return;
+        }
+        final HashSet<String> numbers = new HashSet<String>(mPendingNumbers);
+        mPendingNumbers.clear();
+        mResolvingNumbers.addAll(numbers);
+        new AsyncTask<Void, Void, HashMap<String, String>>() {
+            @Override
+            protected HashMap<String, String> doInBackground(Void... unused) {
+                HashMap<String, String> names = Contact.getContacts(mContext, numbers);
+                for (String number : numbers) {
+                    if (names.get(number) == null) {
+                        names.put(number, number);
+                    }
+                }
+                return names;
+            }
+
+            @Override
+            protected void onPostExecute(HashMap<String, String> names) {
+                mCallNames.putAll(names);
+                mResolvingNumbers.removeAll(names.keySet());
+                notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
     /**
      * 设置选中项
      * @param position 列表位置
      * @param checked 是否选中
      */
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
+        setCheckedId(getItemId(position), checked);
         notifyDataSetChanged(); // 数据变化通知更新视图
     }
 
+    /**
+     * 按笔记ID设置选中状态
+     */
+    private void setCheckedId(long id, boolean checked) {
+        if (checked != mSelectAll) {
+            mSelectionExceptions.put(id, Boolean.TRUE);
+        } else {
+            mSelectionExceptions.delete(id);
+        }
+    }
+
     /**
      * 是否处于选择模式
      */
@@ -85,83 +193,92 @@ public class NotesListAdapter extends CursorAdapter {
      * 设置选择模式
      */
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear(); // 清除之前的选择状态
+        clearSelection(false); // 清除之前的选择状态
         mChoiceMode = mode;
     }
 
+    private void clearSelection(boolean selectAll) {
+        mSelectAll = selectAll;
+        mSelectionExceptions.clear();
+    }
+
     /**
      * 全选/取消全选
      */
     public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        // 遍历所有笔记项设置选中状态
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
-                }
-            }
-        }
+        clearSelection(checked);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 反选
+     */
+    public void invertSelection() {
+        mSelectAll = !mSelectAll;
+        notifyDataSetChanged();
     }
 
     /**
      * 获取选中项的ID集合
      */
     public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id); // 添加选中项的ID到集合
-                }
-            }
+        long[] ids = getSelectedIds();
+        HashSet<Long> itemSet = new HashSet<Long>(ids.length);
+        for (long id : ids) {
+            itemSet.add(id); // 添加选中项的ID到集合
         }
         return itemSet;
     }
 
     /**
-     * 获取选中项关联的小部件属性集合
-     */
-    public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    // 注意：这里不能关闭cursor，只有适配器可以关闭它
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
+     * 获取选中项的ID数组，不访问游标。全选状态下选中的笔记可能还没有加载，
+     * 应把 getSelectionExceptionIds() 和当前文件夹交给 NotesProvider 解析
+     */
+    public long[] getSelectedIds() {
+        if (mSelectAll) {
+            throw new IllegalStateException("Selected ids of select-all are resolved by NotesProvider");
+        }
+        int size = mSelectionExceptions.size();
+        long[] ids = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            long id = mSelectionExceptions.keyAt(i);
+            if (id == Notes.ID_ROOT_FOLDER) {
+                Log.d(TAG, "Wrong item id, should not happen");
+            } else {
+                ids[count++] = id;
             }
         }
-        return itemSet;
+        return count == size ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * 是否处于全选状态，此时 getSelectionExceptionIds() 是取消选中的笔记
+     */
+    public boolean isSelectAllMode() {
+        return mSelectAll;
+    }
+
+    /**
+     * 全选状态下取消选中的笔记ID，与当前文件夹一起交给 NotesProvider，不需要读取整个列表
+     */
+    public long[] getSelectionExceptionIds() {
+        int size = mSelectionExceptions.size();
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = mSelectionExceptions.keyAt(i);
+        }
+        return ids;
     }
 
     /**
      * 获取选中项数量
      */
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
+        if (mSelectAll) {
+            return Math.max(mNotesCount - mSelectionExceptions.size(), 0);
         }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++; // 统计选中项数量
-            }
-        }
-        return count;
+        return mSelectionExceptions.size();
     }
 
     /**
@@ -176,10 +293,11 @@ public class NotesListAdapter extends CursorAdapter {
      * 检查指定位置是否被选中
      */
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
-        }
-        return mSelectedIndex.get(position);
+        return isSelectedId(getItemId(position));
+    }
+
+    private boolean isSelectedId(long id) {
+        return (mSelectionExceptions.indexOfKey(id) >= 0) != mSelectAll;
     }
 
     /**
@@ -197,25 +315,65 @@ public class NotesListAdapter extends CursorAdapter {
     @Override
     public void changeCursor(Cursor cursor) {
         super.changeCursor(cursor);
+        mTextCache.clearCheckListTitles();
+        if (cursor instanceof PagedNotesCursor) {
+            PagedNotesCursor pagedCursor = (PagedNotesCursor) cursor;
+            // 新的一页加载完成后刷新列表
+            pagedCursor.setOnPageLoadedListener(new PagedNotesCursor.OnPageLoadedListener() {
+                public void onPageLoaded(PagedNotesCursor c) {
+                    if (c == getCursor()) {
+                        notifyDataSetChanged();
+                    }
+                }
+            });
+            // 数据变化时只重新绑定变化的行，行有增减或移动时由列表保持可见的位置
+            pagedCursor.setOnRowsChangedListener(new PagedNotesCursor.OnRowsChangedListener() {
+                public void onRowsChanged(PagedNotesCursor c, int[] positions) {
+                    if (c != getCursor()) {
+                        return;
+                    }
+                    if (mOnRowsChangedListener != null) {
+                        mOnRowsChangedListener.onRowsChanged(positions);
+                    } else {
+                        notifyDataSetChanged();
+                    }
+                }
+
+                public void onRowsMoved(PagedNotesCursor c, int[] removed, int[] inserted) {
+                    if (c != getCursor()) {
+                        return;
+                    }
+                    calcNotesCount();
+                    if (mOnRowsChangedListener != null) {
+                        mOnRowsChangedListener.onRowsMoved(removed, inserted);
+                    } else {
+                        notifyDataSetChanged();
+                    }
+                }
+
+                public void onReloaded(PagedNotesCursor c) {
+                    if (c == getCursor()) {
+                        calcNotesCount();
+                        notifyDataSetChanged();
+                    }
+                }
+            });
+        }
         calcNotesCount(); // 重新计算笔记数量
     }
 
+    public void setOnRowsChangedListener(OnRowsChangedListener listener) {
+        mOnRowsChangedListener = listener;
+    }
+
     /**
-     * 计算笔记数量
+     * 计算笔记数量，由列表查询一并返回，不需要遍历游标
      */
     private void calcNotesCount() {
         mNotesCount = 0;
-        // 遍历cursor统计笔记数量
-        for (int i = 0; i < getCount(); i++) {
-            Cursor c = (Cursor) getItem(i);
-            if (c != null) {
-                if (NoteItemData.getNoteType(c) == Notes.TYPE_NOTE) {
-                    mNotesCount++; // 只统计笔记类型，不包含文件夹
-                }
-            } else {
-                Log.e(TAG, "Invalid cursor");
-                return;
-            }
+        Cursor c = getCursor();
+        if (c != null && c.moveToFirst()) {
+            mNotesCount = NoteItemData.getFolderNotesCount(c);
         }
     }
 }
@@ -1,7 +1,6 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
-import android.text.format.DateUtils;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.ImageView;
@@ -10,7 +9,7 @@ import android.widget.TextView;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
-import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.NoteItemBgResources;
 
 /**
@@ -24,6 +23,12 @@ public class NotesListItem extends LinearLayout {
     private TextView mCallName;     // 通话记录联系人姓名
     private NoteItemData mItemData; // 绑定的数据项
     private CheckBox mCheckBox;     // 选择框(用于多选模式)
+    private boolean mPlaceholder;   // 是否显示的是占位内容
+
+    // 当前已设置的样式和资源，没有变化时不重复设置，避免每次绑定都重新加载资源
+    private int mTitleAppearance;
+    private int mAlertRes;
+    private int mBackgroundRes;
 
     public NotesListItem(Context context) {
         super(context);
@@ -39,12 +44,15 @@ public class NotesListItem extends LinearLayout {
 
     /**
      * 绑定数据到视图
+     * 显示用的摘要已由数据库去除清单标记并截取第一行，时间、文件夹标题和清单标题取自 textCache
      * @param context 上下文
      * @param data 笔记数据项
+     * @param textCache 显示文本的缓存
      * @param choiceMode 是否处于选择模式
      * @param checked 是否被选中
      */
-    public void bind(Context context, NoteItemData data, boolean choiceMode, boolean checked) {
+    public void bind(Context context, NoteItemData data, NoteItemTextCache textCache,
+            boolean choiceMode, boolean checked) {
         // 处理选择框可见性
         if (choiceMode && data.getType() == Notes.TYPE_NOTE) {
             mCheckBox.setVisibility(View.VISIBLE);
@@ -54,88 +62,131 @@ public class NotesListItem extends LinearLayout {
         }
 
         mItemData = data; // 保存数据引用
-        
+        mPlaceholder = false;
+
         // 根据数据类型设置不同显示样式
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
             // 通话记录文件夹
             mCallName.setVisibility(View.GONE);
-            mAlert.setVisibility(View.VISIBLE);
-            mTitle.setTextAppearance(context, R.style.TextAppearancePrimaryItem);
-            mTitle.setText(context.getString(R.string.call_record_folder_name)
-                    + context.getString(R.string.format_folder_files_count, data.getNotesCount()));
-            mAlert.setImageResource(R.drawable.call_record);
+            setTitleAppearance(context, R.style.TextAppearancePrimaryItem);
+            mTitle.setText(textCache.getFolderTitle(data.getId(),
+                    context.getString(R.string.call_record_folder_name), data.getNotesCount()));
+            setAlert(R.drawable.call_record);
         } else if (data.getParentId() == Notes.ID_CALL_RECORD_FOLDER) {
             // 通话记录笔记
             mCallName.setVisibility(View.VISIBLE);
             mCallName.setText(data.getCallName()); // 显示联系人姓名
-            mTitle.setTextAppearance(context,R.style.TextAppearanceSecondaryItem);
-            mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet())); // 格式化内容预览
-            // 设置提醒图标
-            if (data.hasAlert()) {
-                mAlert.setImageResource(R.drawable.clock);
-                mAlert.setVisibility(View.VISIBLE);
-            } else {
-                mAlert.setVisibility(View.GONE);
-            }
+            setTitleAppearance(context, R.style.TextAppearanceSecondaryItem);
+            mTitle.setText(data.getSnippet());
+            setAlert(data.hasAlert() ? R.drawable.clock : 0); // 设置提醒图标
         } else {
             // 普通笔记或文件夹
             mCallName.setVisibility(View.GONE);
-            mTitle.setTextAppearance(context, R.style.TextAppearancePrimaryItem);
+            setTitleAppearance(context, R.style.TextAppearancePrimaryItem);
 
             if (data.getType() == Notes.TYPE_FOLDER) {
                 // 文件夹显示
-                mTitle.setText(data.getSnippet()
-                        + context.getString(R.string.format_folder_files_count,
-                                data.getNotesCount()));
-                mAlert.setVisibility(View.GONE);
+                mTitle.setText(textCache.getFolderTitle(data.getId(), data.getSnippet(),
+                        data.getNotesCount()));
+                setAlert(0);
             } else {
-                // 普通笔记显示
-                mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));
-                // 设置提醒图标
-                if (data.hasAlert()) {
-                    mAlert.setImageResource(R.drawable.clock);
-                    mAlert.setVisibility(View.VISIBLE);
+                // 普通笔记显示，清单笔记附带勾选进度，进度由数据库随清单条目维护
+                if (data.getCheckListTotal() > 0) {
+                    mTitle.setText(textCache.getCheckListTitle(data.getId(), data.getSnippet(),
+                            data.getCheckListDone(), data.getCheckListTotal()));
                 } else {
-                    mAlert.setVisibility(View.GONE);
+                    mTitle.setText(data.getSnippet());
                 }
+                setAlert(data.hasAlert() ? R.drawable.clock : 0); // 设置提醒图标
             }
         }
         // 设置相对时间显示
-        mTime.setText(DateUtils.getRelativeTimeSpanString(data.getModifiedDate()));
+        mTime.setText(textCache.getRelativeTime(data.getModifiedDate()));
 
         // 设置背景
         setBackground(data);
     }
 
+    /**
+     * 显示占位内容，用于所在页还在后台读取的行，读取完成后会重新绑定
+     */
+    public void bindPlaceholder() {
+        mPlaceholder = true;
+        mCheckBox.setVisibility(View.GONE);
+        mCallName.setVisibility(View.GONE);
+        setAlert(0);
+        mTitle.setText(null);
+        mTime.setText(null);
+        int resId = NoteItemBgResources.getNoteBgNormalRes(ResourceParser.BG_DEFAULT_COLOR);
+        if (mBackgroundRes != resId) {
+            setBackgroundResource(resId);
+            mBackgroundRes = resId;
+        }
+    }
+
+    /**
+     * 是否显示的是占位内容，占位的列表项不响应点击
+     */
+    public boolean isPlaceholder() {
+        return mPlaceholder;
+    }
+
+    private void setTitleAppearance(Context context, int appearance) {
+        if (mTitleAppearance != appearance) {
+            mTitle.setTextAppearance(context, appearance);
+            mTitleAppearance = appearance;
+        }
+    }
+
+    /**
+     * 设置提醒图标，resId 为 0 时隐藏
+     */
+    private void setAlert(int resId) {
+        if (resId == 0) {
+            mAlert.setVisibility(View.GONE);
+            return;
+        }
+        if (mAlertRes != resId) {
+            mAlert.setImageResource(resId);
+            mAlertRes = resId;
+        }
+        mAlert.setVisibility(View.VISIBLE);
+    }
+
     /**
      * 根据数据项设置背景
      * @param data 笔记数据项
      */
     private void setBackground(NoteItemData data) {
         int id = data.getBgColorId();
+        int resId;
         if (data.getType() == Notes.TYPE_NOTE) {
             // 根据笔记在列表中的位置设置不同背景
             if (data.isSingle() || data.isOneFollowingFolder()) {
                 // 单一项或文件夹后的唯一项
-                setBackgroundResource(NoteItemBgResources.getNoteBgSingleRes(id));
+                resId = NoteItemBgResources.getNoteBgSingleRes(id);
             } else if (data.isLast()) {
                 // 最后一项
-                setBackgroundResource(NoteItemBgResources.getNoteBgLastRes(id));
+                resId = NoteItemBgResources.getNoteBgLastRes(id);
             } else if (data.isFirst() || data.isMultiFollowingFolder()) {
                 // 第一项或文件夹后的多项
-                setBackgroundResource(NoteItemBgResources.getNoteBgFirstRes(id));
+                resId = NoteItemBgResources.getNoteBgFirstRes(id);
             } else {
                 // 普通中间项
-                setBackgroundResource(NoteItemBgResources.getNoteBgNormalRes(id));
+                resId = NoteItemBgResources.getNoteBgNormalRes(id);
             }
         } else {
             // 文件夹背景
-            setBackgroundResource(NoteItemBgResources.getFolderBgRes());
+            resId = NoteItemBgResources.getFolderBgRes();
+        }
+        if (mBackgroundRes != resId) {
+            setBackgroundResource(resId);
+            mBackgroundRes = resId;
         }
     }
 
     /**
-     * 获取绑定的数据项
+     * 获取绑定的数据项，该对象会在重新绑定时被复用
      */
     public NoteItemData getItemData() {
         return mItemData;
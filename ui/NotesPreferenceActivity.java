@@ -44,6 +44,10 @@ public class NotesPreferenceActivity extends PreferenceActivity {
     public static final String PREFERENCE_LAST_SYNC_TIME = "pref_last_sync_time";
     // 背景颜色设置键
     public static final String PREFERENCE_SET_BG_COLOR_KEY = "pref_key_bg_random_appear";
+    // 合并提醒的时间窗口键，单位毫秒
+    public static final String PREFERENCE_ALERT_WINDOW = "pref_key_alert_window";
+    // 默认的合并提醒时间窗口，提醒时间精确到分钟，同一分钟的提醒合并为一次
+    public static final long DEFAULT_ALERT_WINDOW = 60 * 1000;
     // 同步账户偏好键
     private static final String PREFERENCE_SYNC_ACCOUNT_KEY = "pref_sync_account_key";
     // 账户授权过滤器键
@@ -387,6 +391,26 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         return settings.getLong(PREFERENCE_LAST_SYNC_TIME, 0);
     }
 
+    /**
+     * 获取合并提醒的时间窗口，提醒最多推迟这么久，以便和其他闹钟合并；到期的提醒一起提醒
+     */
+    public static long getAlertWindow(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return Math.max(settings.getLong(PREFERENCE_ALERT_WINDOW, DEFAULT_ALERT_WINDOW), 1);
+    }
+
+    /**
+     * 设置合并提醒的时间窗口
+     */
+    public static void setAlertWindow(Context context, long window) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putLong(PREFERENCE_ALERT_WINDOW, window);
+        editor.commit();
+    }
+
     /**
      * GTask同步服务广播接收器
      */
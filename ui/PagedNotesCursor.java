@@ -0,0 +1,1038 @@
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesChangeBus;
+import net.micode.notes.data.NotesChangeBus.ChangeEvent;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分页读取笔记列表的游标
+ * 按 (type, modified_date, _id) 键集逐页查询 {@link Notes#CONTENT_NOTE_LIST_URI}，
+ * 在后台线程预取前后两个方向上相邻的页，内存中最多保留 MAX_RESIDENT_PAGES 页，第一页始终保留。
+ * 被淘汰的页再次访问时按记录的键集在后台重新读取，读取完成前该页的行是占位行
+ * （{@link #isRowLoaded()} 为 false，各列均为 null），不在主线程查询。
+ * 每一页覆盖键集上的一个区间 (前一页最后的键, 本页最后的键]，已加载的页都记录了每一行的键，
+ * 数据变化时只查询 {@link NotesChangeBus} 通知的那些笔记，按ID在各页中删除、插入或移动这些行，
+ * 其余页的键和位置随之平移，不从第一页重新读取；页的行数因此不再固定，过大时拆分，为空时合并
+ */
+public class PagedNotesCursor extends AbstractCursor {
+    private static final String TAG = "PagedNotesCursor";
+
+    public static final int PAGE_SIZE = 100;           // 每页行数
+    private static final int MAX_PAGE_SIZE = PAGE_SIZE * 2; // 插入的行使一页超过该行数时拆分
+    private static final int MAX_RESIDENT_PAGES = 4;   // 内存中最多保留的页数
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2; // 距离末尾多少行时开始预取
+    // 一次变化的笔记超过该数量时不再逐行比较，重新读取
+    private static final int MAX_DIFF_NOTES = PAGE_SIZE * MAX_RESIDENT_PAGES;
+
+    // 所有分页游标共用的后台线程，预取和刷新按顺序执行
+    private static final ExecutorService sPrefetchExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 新的一页加载完成时的回调，在主线程调用
+     */
+    public interface OnPageLoadedListener {
+        void onPageLoaded(PagedNotesCursor cursor);
+    }
+
+    /**
+     * 数据变化后的回调，在主线程调用
+     */
+    public interface OnRowsChangedListener {
+        /**
+         * 行的顺序没有变化，只有 positions 中的行内容发生了变化
+         */
+        void onRowsChanged(PagedNotesCursor cursor, int[] positions);
+
+        /**
+         * 有行被删除、插入或移动。removed 是被删除的行原来的位置，inserted 是插入的行现在的位置，
+         * 均按升序排列，移动的行同时出现在两者中
+         */
+        void onRowsMoved(PagedNotesCursor cursor, int[] removed, int[] inserted);
+
+        /**
+         * 变化的笔记未知，已经重新读取，需要刷新整个列表
+         */
+        void onReloaded(PagedNotesCursor cursor);
+    }
+
+    /**
+     * 一页中每一行的键和用于比较的指纹；驻留内存时还有这一页的数据
+     */
+    private static final class Page {
+        final long[] ids;
+        final int[] types;
+        final long[] dates;
+        final long[] fingerprints;
+        Cursor cursor;       // 被淘汰后为 null，只在主线程访问
+        boolean loading;     // 是否已提交后台读取
+        boolean missing;     // 是否显示过占位行，读取完成后需要重新绑定
+
+        Page(int count) {
+            ids = new long[count];
+            types = new int[count];
+            dates = new long[count];
+            fingerprints = new long[count];
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        long[] keyAt(int row) {
+            return new long[] { types[row], dates[row], ids[row] };
+        }
+
+        void copyRow(int row, Page to, int toRow) {
+            to.ids[toRow] = ids[row];
+            to.types[toRow] = types[row];
+            to.dates[toRow] = dates[row];
+            to.fingerprints[toRow] = fingerprints[row];
+        }
+
+        Page subPage(int from, int to) {
+            Page page = new Page(to - from);
+            for (int row = from; row < to; row++) {
+                copyRow(row, page, row - from);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * 后台线程按ID比较的结果
+     */
+    private static final class PageDiff {
+        ArrayList<Page> pages;
+        ArrayList<long[]> pageKeys;
+        boolean consistent = true; // 重新读取的页与推算的行不一致时为 false，需要整体重新读取
+        boolean moved;             // 行的顺序是否变化
+        int[] removed;
+        int[] inserted;
+        int[] changed;
+
+        void close() {
+            if (pages == null) {
+                return;
+            }
+            for (Page page : pages) {
+                if (page.cursor != null) {
+                    page.cursor.close();
+                    page.cursor = null;
+                }
+            }
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String[] mColumnNames;
+    private final int mTypeColumn;
+    private final int mModifiedDateColumn;
+    private final int mIdColumn;
+    private final int mVersionColumn;
+    private final int mNotesCountColumn;
+    private final int mCheckListTotalColumn;
+    private final int mCheckListDoneColumn;
+    private final Handler mHandler;
+
+    private ArrayList<Page> mPages;            // 已加载的页，包括被淘汰的页
+    private ArrayList<long[]> mPageKeys;       // 每一页之前一行的键，第0页为null；未读到末尾时多一个下一页的键
+    private int[] mPageStarts;                 // 每一页第一行的位置，最后一项为总行数
+    private int mCount;                        // 已知的行数
+    private boolean mReachedEnd;               // 是否已经读到最后一页
+    private boolean mLoadingNext;              // 是否正在后台读取下一页
+    private int mGeneration;                   // 页的划分每变化一次加一，用于丢弃过时的后台结果
+    private boolean mRefreshing;               // 是否正在后台刷新
+    private boolean mRefreshPending;           // 刷新期间数据又发生了变化
+    private HashSet<Long> mChangedIds;         // 等待刷新的笔记ID
+    private boolean mAnyChanged;               // 变化的笔记未知，需要整体重新读取
+    private Cursor mCurrentPage;               // 当前位置所在的页
+    private OnPageLoadedListener mOnPageLoadedListener;
+    private OnRowsChangedListener mOnRowsChangedListener;
+
+    private final NotesChangeBus.OnNotesChangedListener mChangeListener =
+            new NotesChangeBus.OnNotesChangedListener() {
+        public void onNotesChanged(ChangeEvent event) {
+            if (isRelevant(event)) {
+                if (event.isAnyNote()) {
+                    mAnyChanged = true;
+                } else {
+                    mChangedIds.addAll(event.getNoteIds());
+                }
+                onChange(false);
+            }
+        }
+    };
+
+    /**
+     * @param firstPage 以 buildPageUri(uri, null) 查询得到的第一页
+     */
+    public PagedNotesCursor(ContentResolver resolver, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, Cursor firstPage) {
+        mResolver = resolver;
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mColumnNames = firstPage.getColumnNames();
+        mTypeColumn = firstPage.getColumnIndexOrThrow(NoteColumns.TYPE);
+        mModifiedDateColumn = firstPage.getColumnIndexOrThrow(NoteColumns.MODIFIED_DATE);
+        mIdColumn = firstPage.getColumnIndexOrThrow(NoteColumns.ID);
+        mVersionColumn = firstPage.getColumnIndex(NoteColumns.VERSION);
+        mNotesCountColumn = firstPage.getColumnIndex(NoteColumns.NOTES_COUNT);
+        mCheckListTotalColumn = firstPage.getColumnIndex(NoteColumns.CHECK_LIST_TOTAL);
+        mCheckListDoneColumn = firstPage.getColumnIndex(NoteColumns.CHECK_LIST_DONE);
+        mHandler = new Handler(Looper.getMainLooper());
+        mChangedIds = new HashSet<Long>();
+        resetPages(toPage(firstPage));
+        NotesChangeBus.register(mChangeListener);
+    }
+
+    /**
+     * 构建读取 after 之后一页的 URI，after 为 null 时读取第一页
+     */
+    public static Uri buildPageUri(Uri uri, long[] after) {
+        return buildPageUri(uri, after, PAGE_SIZE);
+    }
+
+    private static Uri buildPageUri(Uri uri, long[] after, int limit) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(Notes.PARAM_PAGE_LIMIT, String.valueOf(limit));
+        if (after != null) {
+            builder.appendQueryParameter(Notes.PARAM_AFTER_TYPE, String.valueOf(after[0]))
+                    .appendQueryParameter(Notes.PARAM_AFTER_MODIFIED_DATE, String.valueOf(after[1]))
+                    .appendQueryParameter(Notes.PARAM_AFTER_ID, String.valueOf(after[2]));
+        }
+        return builder.build();
+    }
+
+    public void setOnPageLoadedListener(OnPageLoadedListener listener) {
+        mOnPageLoadedListener = listener;
+    }
+
+    public void setOnRowsChangedListener(OnRowsChangedListener listener) {
+        mOnRowsChangedListener = listener;
+    }
+
+    /**
+     * 是否已经读到最后一页，此时 getCount() 就是结果的总行数
+     */
+    public boolean isFullyLoaded() {
+        return mReachedEnd;
+    }
+
+    /**
+     * 丢弃所有页，从 firstPage 重新开始
+     */
+    private void resetPages(Page firstPage) {
+        closePages();
+        mPages = new ArrayList<Page>();
+        mPageKeys = new ArrayList<long[]>();
+        mPageKeys.add(null);
+        mReachedEnd = false;
+        mLoadingNext = false;
+        appendPage(firstPage);
+    }
+
+    /**
+     * 把新读取的下一页加入缓存，更新行数和下一页的键集
+     */
+    private void appendPage(Page page) {
+        mPages.add(page);
+        if (page.size() < PAGE_SIZE) {
+            mReachedEnd = true;
+        } else {
+            mPageKeys.add(page.keyAt(page.size() - 1));
+        }
+        mGeneration++;
+        updatePageStarts();
+        evictPages(getCurrentPageIndex());
+    }
+
+    /**
+     * 页的划分变化后重新计算每一页的起始位置和总行数
+     */
+    private void updatePageStarts() {
+        mPageStarts = new int[mPages.size() + 1];
+        for (int i = 0; i < mPages.size(); i++) {
+            mPageStarts[i + 1] = mPageStarts[i] + mPages.get(i).size();
+        }
+        mCount = mPageStarts[mPages.size()];
+    }
+
+    /**
+     * position 所在的页，跳过空页
+     */
+    private int findPage(int position) {
+        int low = 0;
+        int high = mPages.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mPageStarts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private int getCurrentPageIndex() {
+        return findPage(Math.max(getPosition(), 0));
+    }
+
+    /**
+     * 淘汰离 index 最远的页，直到驻留的页数不超过上限；第一页不淘汰，列表回到顶部时不必等待。
+     * 被淘汰的页只释放数据，保留每一行的键
+     */
+    private void evictPages(int index) {
+        while (true) {
+            int resident = 0;
+            int farthest = -1;
+            for (int i = 0; i < mPages.size(); i++) {
+                if (mPages.get(i).cursor == null) {
+                    continue;
+                }
+                resident++;
+                if (i != 0 && (farthest == -1
+                        || Math.abs(i - index) > Math.abs(farthest - index))) {
+                    farthest = i;
+                }
+            }
+            if (resident <= MAX_RESIDENT_PAGES || farthest == -1) {
+                return;
+            }
+            Page page = mPages.get(farthest);
+            if (page.cursor == mCurrentPage) {
+                mCurrentPage = null;
+                mPos = -1; // 下次访问时重新定位
+            }
+            page.cursor.close();
+            page.cursor = null;
+        }
+    }
+
+    private Page loadPage(long[] after, int limit) {
+        Cursor cursor = mResolver.query(buildPageUri(mUri, after, limit), mProjection,
+                mSelection, mSelectionArgs, null);
+        return cursor == null ? null : toPage(cursor);
+    }
+
+    /**
+     * 读取一页中每一行的键和指纹，同时在当前线程填充 CursorWindow
+     */
+    private Page toPage(Cursor cursor) {
+        Page page = new Page(cursor.getCount());
+        for (int i = 0; i < page.size() && cursor.moveToPosition(i); i++) {
+            page.ids[i] = cursor.getLong(mIdColumn);
+            page.types[i] = cursor.getInt(mTypeColumn);
+            page.dates[i] = cursor.getLong(mModifiedDateColumn);
+            long fingerprint = page.dates[i];
+            if (mVersionColumn != -1) {
+                fingerprint = fingerprint * 31 + cursor.getLong(mVersionColumn);
+            }
+            if (mNotesCountColumn != -1) {
+                fingerprint = fingerprint * 31 + cursor.getLong(mNotesCountColumn);
+            }
+            if (mCheckListTotalColumn != -1 && mCheckListDoneColumn != -1) {
+                // 清单条目的勾选进度由触发器维护，不改变修改时间和版本号
+                fingerprint = (fingerprint * 31 + cursor.getLong(mCheckListTotalColumn)) * 31
+                        + cursor.getLong(mCheckListDoneColumn);
+            }
+            page.fingerprints[i] = fingerprint;
+        }
+        page.cursor = cursor;
+        return page;
+    }
+
+    /**
+     * 列表的排序 type DESC, modified_date DESC, _id ASC 下 a 行与键 b 的先后
+     */
+    private static int compareKeys(Page a, int row, long[] b) {
+        return compareKeys(a.types[row], a.dates[row], a.ids[row], b[0], b[1], b[2]);
+    }
+
+    private static int compareKeys(long typeA, long dateA, long idA, long typeB, long dateB,
+            long idB) {
+        if (typeA != typeB) {
+            return typeA > typeB ? -1 : 1;
+        }
+        if (dateA != dateB) {
+            return dateA > dateB ? -1 : 1;
+        }
+        return idA < idB ? -1 : (idA == idB ? 0 : 1);
+    }
+
+    /**
+     * 在后台线程读取指定页，完成后在主线程加入缓存。读取按提交的顺序执行，
+     * 可以同时提交多页，例如来回滚动时前后两个方向的页；index 为已加载的页数时读取下一页
+     */
+    private void prefetchPage(int index) {
+        if (mRefreshing || index < 0 || index > mPages.size()) {
+            return;
+        }
+        if (index == mPages.size()) {
+            prefetchNextPage();
+            return;
+        }
+        final Page page = mPages.get(index);
+        if (page.cursor != null || page.loading) {
+            return;
+        }
+        page.loading = true;
+        final long[] after = mPageKeys.get(index);
+        final int limit = page.size();
+        sPrefetchExecutor.execute(new Runnable() {
+            public void run() {
+                final Page loaded = loadPage(after, limit);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        page.loading = false;
+                        if (loaded == null) {
+                            return;
+                        }
+                        int index = isClosed() ? -1 : mPages.indexOf(page);
+                        if (index == -1 || !Arrays.equals(loaded.ids, page.ids)) {
+                            // 游标已关闭、页已被替换，或者数据已变化而刷新还没有完成，丢弃结果
+                            loaded.cursor.close();
+                            return;
+                        }
+                        mPages.set(index, loaded);
+                        evictPages(getCurrentPageIndex());
+                        restoreCurrentPage(); // 当前位置可能正是占位行
+                        if (page.missing && mOnPageLoadedListener != null) {
+                            // 需要用读取到的行替换占位行
+                            mOnPageLoadedListener.onPageLoaded(PagedNotesCursor.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void prefetchNextPage() {
+        if (mReachedEnd || mLoadingNext) {
+            return;
+        }
+        mLoadingNext = true;
+        final int generation = mGeneration;
+        final long[] after = mPageKeys.get(mPages.size());
+        sPrefetchExecutor.execute(new Runnable() {
+            public void run() {
+                final Page page = loadPage(after, PAGE_SIZE);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation != mGeneration) {
+                            if (page != null) {
+                                page.cursor.close(); // 游标已重置或页的划分已变化，丢弃结果
+                            }
+                            return;
+                        }
+                        mLoadingNext = false;
+                        if (page == null) {
+                            return;
+                        }
+                        if (isClosed()) {
+                            page.cursor.close();
+                            return;
+                        }
+                        appendPage(page);
+                        restoreCurrentPage();
+                        if (page.size() > 0 && mOnPageLoadedListener != null) {
+                            mOnPageLoadedListener.onPageLoaded(PagedNotesCursor.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 新建、删除笔记以及改变所在文件夹或排序的修改都可能影响列表的行，
+     * 其余的修改只有涉及驻留内存的行时才需要刷新，被淘汰的页再次读取时自然是最新的
+     */
+    private boolean isRelevant(ChangeEvent event) {
+        if (isClosed()) {
+            return false;
+        }
+        if (event.getOp() != NotesChangeBus.OP_UPDATE || event.isAnyNote()
+                || event.touchesAny(NoteColumns.PARENT_ID, NoteColumns.TYPE,
+                        NoteColumns.MODIFIED_DATE, NoteColumns.NOTES_COUNT)) {
+            return true;
+        }
+        for (Page page : mPages) {
+            if (page.cursor == null) {
+                continue;
+            }
+            for (long id : page.ids) {
+                if (event.containsNote(id)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 数据变化时不再同步重新查询，而是在后台刷新并比较新旧结果
+     */
+    @Override
+    protected void onChange(boolean selfChange) {
+        if (isClosed()) {
+            return;
+        }
+        if (mRefreshing) {
+            mRefreshPending = true;
+            return;
+        }
+        refresh();
+    }
+
+    /**
+     * 在后台按ID比较变化的笔记。变化的笔记未知或者过多时从第一页开始重新读取
+     */
+    private void refresh() {
+        mRefreshing = true;
+        mRefreshPending = false;
+        final int generation = mGeneration;
+        if (mAnyChanged || mChangedIds.size() > MAX_DIFF_NOTES) {
+            mAnyChanged = false;
+            mChangedIds.clear();
+            final int loadedRows = mCount;
+            final int currentIndex = getCurrentPageIndex();
+            sPrefetchExecutor.execute(new Runnable() {
+                public void run() {
+                    reloadPages(generation, loadedRows, currentIndex);
+                }
+            });
+            return;
+        }
+
+        final HashSet<Long> changedIds = mChangedIds;
+        mChangedIds = new HashSet<Long>();
+        final ArrayList<Page> oldPages = new ArrayList<Page>(mPages);
+        final ArrayList<long[]> oldKeys = new ArrayList<long[]>(mPageKeys);
+        final boolean[] resident = new boolean[oldPages.size()];
+        for (int i = 0; i < resident.length; i++) {
+            resident[i] = oldPages.get(i).cursor != null;
+        }
+        final boolean reachedEnd = mReachedEnd;
+        sPrefetchExecutor.execute(new Runnable() {
+            public void run() {
+                final PageDiff diff = diffPages(oldPages, oldKeys, resident, reachedEnd,
+                        changedIds);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        applyDiff(generation, changedIds, diff);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 在后台线程读取变化的笔记现在的键，从各页删除这些笔记原来的行，再按键插入到所在区间的页中。
+     * 其余行的键没有变化，各页的区间也不变，因此只需重新读取驻留的页来核对并取得最新的数据
+     */
+    private PageDiff diffPages(ArrayList<Page> oldPages, ArrayList<long[]> oldKeys,
+            boolean[] resident, boolean reachedEnd, HashSet<Long> changedIds) {
+        PageDiff diff = new PageDiff();
+        Page changed = loadChangedRows(changedIds);
+        if (changed == null) {
+            diff.consistent = false;
+            return diff;
+        }
+        changed.cursor.close();
+        changed.cursor = null;
+
+        // 逐页删除和插入变化的行，last 页之后的区间尚未加载，落在其中的行忽略
+        int last = oldPages.size() - 1;
+        Page[] merged = new Page[oldPages.size()];
+        int next = 0;
+        for (int i = 0; i <= last; i++) {
+            long[] upper = i + 1 < oldKeys.size() ? oldKeys.get(i + 1) : null;
+            int end = next;
+            while (end < changed.size() && (upper == null || compareKeys(changed, end, upper) <= 0)) {
+                end++;
+            }
+            merged[i] = mergeRows(oldPages.get(i), changed, next, end, changedIds);
+            next = end;
+        }
+
+        // 拆分过大的页，空页并入后一页的区间，最后一页为空时并入前一页
+        diff.pages = new ArrayList<Page>(merged.length + 1);
+        diff.pageKeys = new ArrayList<long[]>(oldKeys.size() + 1);
+        ArrayList<Page> reload = new ArrayList<Page>();
+        long[] carried = null;
+        boolean carrying = false;
+        for (int i = 0; i <= last; i++) {
+            Page page = merged[i];
+            long[] before = carrying ? carried : oldKeys.get(i);
+            carrying = false;
+            if (page.size() == 0 && (i < last || !diff.pages.isEmpty())) {
+                if (i < last) {
+                    carried = before;
+                    carrying = true;
+                }
+                continue;
+            }
+            int from = 0;
+            while (page.size() - from > MAX_PAGE_SIZE) {
+                Page part = page.subPage(from, from + PAGE_SIZE);
+                addPage(diff, part, before, resident[i], reload);
+                before = part.keyAt(PAGE_SIZE - 1);
+                from += PAGE_SIZE;
+            }
+            addPage(diff, from == 0 ? page : page.subPage(from, page.size()), before, resident[i],
+                    reload);
+        }
+        if (!reachedEnd) {
+            diff.pageKeys.add(oldKeys.get(oldKeys.size() - 1));
+        }
+
+        // 重新读取原来驻留的页，行必须与推算的一致
+        ArrayList<Page> loadedPages = new ArrayList<Page>(reload.size());
+        for (int i = 0; i < diff.pages.size(); i++) {
+            Page page = diff.pages.get(i);
+            if (!reload.contains(page)) {
+                continue;
+            }
+            Page loaded = loadPage(diff.pageKeys.get(i), page.size());
+            if (loaded == null || !Arrays.equals(loaded.ids, page.ids)) {
+                if (loaded != null) {
+                    loaded.cursor.close();
+                }
+                for (Page opened : loadedPages) {
+                    opened.cursor.close(); // 其余页的游标仍属于主线程，不能关闭
+                }
+                diff.pages = null;
+                diff.consistent = false;
+                return diff;
+            }
+            diff.pages.set(i, loaded);
+            loadedPages.add(loaded);
+        }
+
+        compareRows(diff, oldPages, changedIds);
+        return diff;
+    }
+
+    /**
+     * 读取变化的笔记中仍在列表中的行，按列表的顺序排列
+     */
+    private Page loadChangedRows(HashSet<Long> changedIds) {
+        if (changedIds.isEmpty()) {
+            return new Page(0);
+        }
+        StringBuilder sb = new StringBuilder(NoteColumns.ID + " IN (");
+        boolean first = true;
+        for (Long id : changedIds) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(id);
+            first = false;
+        }
+        sb.append(')');
+        String selection = mSelection == null ? sb.toString()
+                : "(" + mSelection + ") AND " + sb.toString();
+        Cursor cursor = mResolver.query(buildPageUri(mUri, null, changedIds.size()), mProjection,
+                selection, mSelectionArgs, null);
+        return cursor == null ? null : toPage(cursor);
+    }
+
+    /**
+     * 从 page 中去掉变化的笔记，再按顺序并入 changed 中 [from, to) 的行
+     */
+    private static Page mergeRows(Page page, Page changed, int from, int to,
+            HashSet<Long> changedIds) {
+        int kept = 0;
+        for (long id : page.ids) {
+            if (!changedIds.contains(id)) {
+                kept++;
+            }
+        }
+        if (kept == page.size() && from == to) {
+            return page;
+        }
+        Page merged = new Page(kept + to - from);
+        int row = 0;
+        int inserted = from;
+        for (int i = 0; i < page.size(); i++) {
+            if (changedIds.contains(page.ids[i])) {
+                continue;
+            }
+            while (inserted < to && compareKeys(changed, inserted, page.keyAt(i)) < 0) {
+                changed.copyRow(inserted++, merged, row++);
+            }
+            page.copyRow(i, merged, row++);
+        }
+        while (inserted < to) {
+            changed.copyRow(inserted++, merged, row++);
+        }
+        return merged;
+    }
+
+    private static void addPage(PageDiff diff, Page page, long[] before, boolean resident,
+            ArrayList<Page> reload) {
+        diff.pages.add(page);
+        diff.pageKeys.add(before);
+        if (resident) {
+            reload.add(page);
+        }
+    }
+
+    /**
+     * 比较新旧两组页：行的顺序变化时给出删除和插入的位置，否则给出指纹变化的行
+     */
+    private static void compareRows(PageDiff diff, ArrayList<Page> oldPages,
+            HashSet<Long> changedIds) {
+        Page oldRows = flatten(oldPages);
+        Page newRows = flatten(diff.pages);
+        diff.moved = !Arrays.equals(oldRows.ids, newRows.ids);
+        if (diff.moved) {
+            diff.removed = findRows(oldRows, changedIds);
+            diff.inserted = findRows(newRows, changedIds);
+            return;
+        }
+        int[] positions = new int[newRows.size()];
+        int count = 0;
+        for (int i = 0; i < newRows.size(); i++) {
+            if (newRows.fingerprints[i] != oldRows.fingerprints[i]) {
+                positions[count++] = i;
+            }
+        }
+        diff.changed = Arrays.copyOf(positions, count);
+    }
+
+    private static Page flatten(ArrayList<Page> pages) {
+        int count = 0;
+        for (Page page : pages) {
+            count += page.size();
+        }
+        Page rows = new Page(count);
+        int start = 0;
+        for (Page page : pages) {
+            System.arraycopy(page.ids, 0, rows.ids, start, page.size());
+            System.arraycopy(page.fingerprints, 0, rows.fingerprints, start, page.size());
+            start += page.size();
+        }
+        return rows;
+    }
+
+    private static int[] findRows(Page rows, HashSet<Long> ids) {
+        int[] positions = new int[Math.min(rows.size(), ids.size())];
+        int count = 0;
+        for (int i = 0; i < rows.size() && count < positions.length; i++) {
+            if (ids.contains(rows.ids[i])) {
+                positions[count++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * 在主线程换上比较后的页，只通知变化的行
+     */
+    private void applyDiff(int generation, HashSet<Long> changedIds, PageDiff diff) {
+        mRefreshing = false;
+        if (isClosed()) {
+            diff.close();
+            return;
+        }
+        if (generation != mGeneration) {
+            // 比较期间又加载了下一页，按新的划分重新比较
+            diff.close();
+            mChangedIds.addAll(changedIds);
+            refresh();
+            return;
+        }
+        if (!diff.consistent) {
+            // 列表的变化没有全部通过事件得知，从第一页重新读取
+            mAnyChanged = true;
+            refresh();
+            return;
+        }
+
+        HashSet<Page> kept = new HashSet<Page>(diff.pages);
+        for (Page page : mPages) {
+            if (page.cursor != null && !kept.contains(page)) {
+                if (page.cursor == mCurrentPage) {
+                    mCurrentPage = null;
+                }
+                page.cursor.close();
+                page.cursor = null;
+            }
+        }
+        mPages = diff.pages;
+        mPageKeys = diff.pageKeys;
+        mLoadingNext = false;
+        mGeneration++;
+        updatePageStarts();
+        evictPages(getCurrentPageIndex());
+        restoreCurrentPage();
+
+        if (mOnRowsChangedListener != null) {
+            if (diff.moved) {
+                mOnRowsChangedListener.onRowsMoved(this, diff.removed, diff.inserted);
+            } else if (diff.changed.length > 0) {
+                mOnRowsChangedListener.onRowsChanged(this, diff.changed);
+            }
+        }
+        if (mRefreshPending) {
+            refresh();
+        }
+    }
+
+    /**
+     * 在后台线程从第一页开始重新读取，至少读到原来加载的行数，只保留 currentIndex 附近的页
+     */
+    private void reloadPages(final int generation, int loadedRows, int currentIndex) {
+        final ArrayList<Page> pages = new ArrayList<Page>();
+        final ArrayList<long[]> pageKeys = new ArrayList<long[]>();
+        int count = 0;
+        boolean reachedEnd = false;
+        boolean failed = false;
+        pageKeys.add(null);
+        int first = Math.max(0, currentIndex - MAX_RESIDENT_PAGES / 2);
+        do {
+            Page page = loadPage(pageKeys.get(pages.size()), PAGE_SIZE);
+            if (page == null) {
+                failed = true;
+                break;
+            }
+            if (pages.size() != 0 && (pages.size() < first
+                    || pages.size() >= first + MAX_RESIDENT_PAGES)) {
+                page.cursor.close();
+                page.cursor = null;
+            }
+            pages.add(page);
+            count += page.size();
+            if (page.size() < PAGE_SIZE) {
+                reachedEnd = true;
+            } else {
+                pageKeys.add(page.keyAt(page.size() - 1));
+            }
+        } while (!reachedEnd && count < loadedRows);
+
+        final boolean newReachedEnd = reachedEnd;
+        final boolean newFailed = failed;
+        mHandler.post(new Runnable() {
+            public void run() {
+                mRefreshing = false;
+                if (isClosed() || newFailed || generation != mGeneration) {
+                    for (Page page : pages) {
+                        if (page.cursor != null) {
+                            page.cursor.close();
+                        }
+                    }
+                    if (!isClosed() && !newFailed) {
+                        mAnyChanged = true; // 读取期间页的划分又变化了
+                        refresh();
+                    }
+                    return;
+                }
+                closePages();
+                mPages = pages;
+                mPageKeys = pageKeys;
+                mReachedEnd = newReachedEnd;
+                mLoadingNext = false;
+                mGeneration++;
+                updatePageStarts();
+                restoreCurrentPage();
+                if (mOnRowsChangedListener != null) {
+                    mOnRowsChangedListener.onReloaded(PagedNotesCursor.this);
+                }
+                if (mRefreshPending) {
+                    refresh();
+                }
+            }
+        });
+    }
+
+    /**
+     * 页被替换后，让当前位置指向新的页
+     */
+    private void restoreCurrentPage() {
+        if (mPos < 0 || mPos >= mCount) {
+            mCurrentPage = null;
+            mPos = -1;
+            return;
+        }
+        int index = findPage(mPos);
+        Cursor cursor = mPages.get(index).cursor;
+        if (cursor != null && cursor.moveToPosition(mPos - mPageStarts[index])) {
+            mCurrentPage = cursor;
+        } else {
+            mCurrentPage = null;
+            mPos = -1;
+        }
+    }
+
+    /**
+     * 当前行是否已经读取；所在页还在后台读取时为占位行，各列均为 null，
+     * 读取完成后通过 {@link OnPageLoadedListener} 通知重新绑定
+     */
+    public boolean isRowLoaded() {
+        return mCurrentPage != null;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int index = findPage(newPosition);
+        Page page = mPages.get(index);
+        if (page.cursor == null) {
+            // 页已被淘汰，先返回占位行，在后台重新读取，不阻塞滚动
+            Log.d(TAG, "Page " + index + " is not resident, load it in background");
+            page.missing = true;
+            prefetchPage(index);
+            mCurrentPage = null;
+            prefetchAround(newPosition);
+            return true;
+        }
+        mCurrentPage = page.cursor;
+        prefetchAround(newPosition);
+        return mCurrentPage.moveToPosition(newPosition - mPageStarts[index]);
+    }
+
+    /**
+     * 预取 position 附近的页：接近已加载部分的末尾时读取下一页，
+     * 靠近当前页的开头或结尾时分别读取前一页或后一页，向上和向下滚动都不必等待
+     */
+    private void prefetchAround(int position) {
+        int index = findPage(position);
+        int offset = position - mPageStarts[index];
+        if (!mReachedEnd && position >= mCount - PREFETCH_DISTANCE) {
+            prefetchPage(mPages.size());
+        }
+        if (offset < PREFETCH_DISTANCE) {
+            prefetchPage(index - 1);
+        }
+        if (offset >= mPages.get(index).size() - PREFETCH_DISTANCE) {
+            prefetchPage(index + 1);
+        }
+    }
+
+    @Override
+    public boolean requery() {
+        Page firstPage = loadPage(null, PAGE_SIZE);
+        if (firstPage == null) {
+            return false;
+        }
+        resetPages(firstPage);
+        return super.requery();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        NotesChangeBus.unregister(mChangeListener);
+        closePages();
+    }
+
+    private void closePages() {
+        if (mPages != null) {
+            for (Page page : mPages) {
+                if (page.cursor != null) {
+                    page.cursor.close();
+                    page.cursor = null;
+                }
+            }
+            mPages.clear();
+        }
+        mCurrentPage = null;
+        mPos = -1;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (mCurrentPage == null) {
+            return null;
+        }
+        return mCurrentPage.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        if (mCurrentPage == null) {
+            return 0;
+        }
+        return mCurrentPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        if (mCurrentPage == null) {
+            return 0;
+        }
+        return mCurrentPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (mCurrentPage == null) {
+            return 0;
+        }
+        return mCurrentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        if (mCurrentPage == null) {
+            return 0;
+        }
+        return mCurrentPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        if (mCurrentPage == null) {
+            return 0;
+        }
+        return mCurrentPage.getDouble(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        if (mCurrentPage == null) {
+            return FIELD_TYPE_NULL;
+        }
+        return mCurrentPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        if (mCurrentPage == null) {
+            return true;
+        }
+        return mCurrentPage.isNull(column);
+    }
+}
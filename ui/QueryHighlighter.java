@@ -0,0 +1,205 @@
+package net.micode.notes.ui;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.Arrays;
+
+/**
+ * 搜索关键词高亮器
+ * 用户的查询按空白拆分为多个关键词，构建一次不区分大小写的 Aho-Corasick 自动机，
+ * 之后每段文本只需线性扫描一遍即可找出所有关键词。关键词按字面匹配，
+ * 不再被当作正则表达式，"(" "*" "[" 之类的输入不会出错。
+ * 重叠或相邻的匹配合并为一个高亮区间，同一个高亮器可用于正文和所有清单条目
+ */
+class QueryHighlighter {
+    private static final int ROOT = 0;
+
+    private final String mQuery;
+    private final int mColor;          // 高亮的背景颜色
+
+    private int mNodeCount;
+    private char[] mNodeChar;          // 进入该节点的字符
+    private int[] mFirstChild;         // 第一个子节点，-1表示没有
+    private int[] mNextSibling;        // 下一个兄弟节点，-1表示没有
+    private int[] mFail;               // 失配时跳转的节点
+    private int[] mMatchLength;        // 在该节点结束的最长关键词的长度，0表示没有
+    private final TransitionTable mTransitions;
+
+    /**
+     * @param query 用户的查询，可以包含多个以空白分隔的关键词
+     * @param color 高亮的背景颜色
+     */
+    QueryHighlighter(String query, int color) {
+        mQuery = query == null ? "" : query;
+        mColor = color;
+        int capacity = mQuery.length() + 1;
+        mNodeChar = new char[capacity];
+        mFirstChild = new int[capacity];
+        mNextSibling = new int[capacity];
+        mMatchLength = new int[capacity];
+        mFail = new int[capacity];
+        mTransitions = new TransitionTable(capacity);
+        newNode((char) 0);
+        for (String term : mQuery.trim().split("\\s+")) {
+            if (term.length() > 0) {
+                addTerm(term);
+            }
+        }
+        buildFailureLinks();
+    }
+
+    String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * 是否没有任何关键词
+     */
+    boolean isEmpty() {
+        return mFirstChild[ROOT] == -1;
+    }
+
+    /**
+     * 返回高亮了所有关键词的文本
+     */
+    Spannable highlight(String text) {
+        SpannableString spannable = new SpannableString(text == null ? "" : text);
+        if (text == null || isEmpty()) {
+            return spannable;
+        }
+        int state = ROOT;
+        int rangeStart = -1, rangeEnd = -1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int next = mTransitions.get(state, c);
+            while (next == -1 && state != ROOT) {
+                state = mFail[state];
+                next = mTransitions.get(state, c);
+            }
+            state = next == -1 ? ROOT : next;
+            int length = mMatchLength[state];
+            if (length == 0) {
+                continue;
+            }
+            int start = i + 1 - length;
+            if (rangeEnd >= start) {
+                // 与上一个区间重叠或相邻，合并
+                rangeStart = Math.min(rangeStart, start);
+            } else {
+                if (rangeEnd != -1) {
+                    setSpan(spannable, rangeStart, rangeEnd);
+                }
+                rangeStart = start;
+            }
+            rangeEnd = i + 1;
+        }
+        if (rangeEnd != -1) {
+            setSpan(spannable, rangeStart, rangeEnd);
+        }
+        return spannable;
+    }
+
+    private void setSpan(Spannable spannable, int start, int end) {
+        spannable.setSpan(new BackgroundColorSpan(mColor), start, end,
+                Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+    }
+
+    private int newNode(char c) {
+        int node = mNodeCount++;
+        mNodeChar[node] = c;
+        mFirstChild[node] = -1;
+        mNextSibling[node] = -1;
+        return node;
+    }
+
+    private void addTerm(String term) {
+        int node = ROOT;
+        for (int i = 0; i < term.length(); i++) {
+            char c = Character.toLowerCase(term.charAt(i));
+            int child = mTransitions.get(node, c);
+            if (child == -1) {
+                child = newNode(c);
+                mNextSibling[child] = mFirstChild[node];
+                mFirstChild[node] = child;
+                mTransitions.put(node, c, child);
+            }
+            node = child;
+        }
+        mMatchLength[node] = Math.max(mMatchLength[node], term.length());
+    }
+
+    /**
+     * 按广度优先计算每个节点的失配跳转，并把跳转目标上结束的关键词并入本节点
+     */
+    private void buildFailureLinks() {
+        int[] queue = new int[mNodeCount];
+        int head = 0, tail = 0;
+        for (int child = mFirstChild[ROOT]; child != -1; child = mNextSibling[child]) {
+            mFail[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int child = mFirstChild[node]; child != -1; child = mNextSibling[child]) {
+                char c = mNodeChar[child];
+                int fail = mFail[node];
+                int target = mTransitions.get(fail, c);
+                while (target == -1 && fail != ROOT) {
+                    fail = mFail[fail];
+                    target = mTransitions.get(fail, c);
+                }
+                mFail[child] = target == -1 ? ROOT : target;
+                mMatchLength[child] = Math.max(mMatchLength[child], mMatchLength[mFail[child]]);
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * (节点, 字符) 到子节点的映射，开放寻址的哈希表，查找时不分配对象
+     */
+    private static final class TransitionTable {
+        private final long[] mKeys;
+        private final int[] mValues;
+        private final int mMask;
+
+        TransitionTable(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) * 2) * 2;
+            mKeys = new long[size];
+            mValues = new int[size];
+            mMask = size - 1;
+            Arrays.fill(mKeys, -1L);
+        }
+
+        private static long key(int node, char c) {
+            return ((long) node << 16) | c;
+        }
+
+        private int indexOf(long key) {
+            int index = (int) (key ^ (key >>> 29)) * 0x9E3779B9;
+            return (index ^ (index >>> 16)) & mMask;
+        }
+
+        int get(int node, char c) {
+            long key = key(node, c);
+            for (int i = indexOf(key); mKeys[i] != -1L; i = (i + 1) & mMask) {
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(int node, char c, int child) {
+            long key = key(node, c);
+            int i = indexOf(key);
+            while (mKeys[i] != -1L && mKeys[i] != key) {
+                i = (i + 1) & mMask;
+            }
+            mKeys[i] = key;
+            mValues[i] = child;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package net.micode.notes.ui;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.Arrays;
+
+/**
+ * 笔记提醒的调度器
+ * 按提醒时间的索引读出最近的至多 LOAD_LIMIT 个提醒放入最小堆，堆中剩余的提醒用完时
+ * 再按 (提醒时间, ID) 从上次读到的位置继续读取下一批。
+ * 提醒按到期时间合并：只向 AlarmManager 注册一个闹钟，不早于最早的提醒时间触发，
+ * 系统可以在提醒窗口内推迟闹钟以便和其他闹钟合并，触发时所有已经到期的提醒一起提醒，
+ * 不会提前提醒。闹钟触发或提醒时间改变时增量更新堆并重新注册。
+ * 所有方法都可能读取数据库，不要在主线程调用
+ */
+public class ReminderScheduler {
+    private static final String TAG = "ReminderScheduler";
+
+    // 提醒窗口，提醒时间在 [开始, 结束) 内的笔记一起提醒。闹钟只携带开始时间，
+    // 结束时间是闹钟实际触发的时间，由 AlarmReceiver 加入，窗口内的提醒都已到期
+    public static final String EXTRA_WINDOW_START = "net.micode.notes.alert_window_start";
+    public static final String EXTRA_WINDOW_END = "net.micode.notes.alert_window_end";
+
+    // 每次从数据库读取的提醒数
+    private static final int LOAD_LIMIT = 64;
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.ALERTED_DATE
+    };
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_ALERTED_DATE = 1;
+
+    private static ReminderHeap sHeap;          // 未触发的提醒，null表示还没有从数据库读取
+    private static boolean sLoadedAll;          // 数据库中的提醒是否都已读入
+    private static long sLoadedDate;            // 最后读入的提醒的时间和笔记ID，
+    private static long sLoadedId;              // 比它早的提醒都在堆中
+    private static long sArmedStart;            // 已注册的闹钟的触发时间，0表示没有注册
+
+    private ReminderScheduler() {
+    }
+
+    /**
+     * 重新从数据库读取提醒并注册最早的窗口，用于开机后
+     */
+    public static synchronized void rebuild(Context context) {
+        sHeap = null;
+        sArmedStart = 0;
+        ensureLoaded(context);
+        arm(context);
+    }
+
+    /**
+     * 笔记的提醒时间改变时调用，会读取数据库，不要在主线程调用
+     * @param noteId 笔记ID
+     * @param alertDate 新的提醒时间，0表示取消提醒
+     */
+    public static synchronized void onAlertChanged(Context context, long noteId, long alertDate) {
+        ensureLoaded(context);
+        sHeap.remove(noteId);
+        // 以前的版本为每个笔记注册一个闹钟，升级后可能还留着
+        cancelNoteAlarm(context, noteId);
+        if (alertDate > System.currentTimeMillis()
+                && (sLoadedAll || compare(alertDate, noteId, sLoadedDate, sLoadedId) <= 0)) {
+            // 比已读入的位置晚的提醒以后会从数据库读到
+            sHeap.push(noteId, alertDate);
+        }
+        arm(context);
+    }
+
+    /**
+     * 一批笔记被删除或移入回收站时调用，一次性从堆中删除后只重新注册一次闹钟。
+     * 会读取数据库，不要在主线程调用
+     * @param noteIds 被删除的笔记ID
+     */
+    public static synchronized void onNotesRemoved(Context context, long[] noteIds) {
+        ensureLoaded(context);
+        for (long noteId : noteIds) {
+            // 堆中没有的笔记没有未触发的提醒，也就没有以前版本留下的闹钟；
+            // 但堆还没有读完时，提醒时间较晚的笔记可能还没有读入
+            if (sHeap.remove(noteId) || !sLoadedAll) {
+                cancelNoteAlarm(context, noteId);
+            }
+        }
+        arm(context);
+    }
+
+    /**
+     * 窗口的闹钟触发时调用，窗口内的提醒已经交给提醒界面，注册下一个窗口。
+     * 会读取数据库，不要在主线程调用
+     * @param windowEnd 窗口的结束时间，即闹钟触发的时间，之前的提醒都已到期
+     */
+    public static synchronized void onAlarmFired(Context context, long windowEnd) {
+        ensureLoaded(context);
+        while (sHeap.size() > 0 && sHeap.peekDate() < windowEnd) {
+            sHeap.remove(sHeap.peekId());
+        }
+        sArmedStart = 0;
+        arm(context);
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (sHeap == null) {
+            sHeap = new ReminderHeap();
+            sLoadedAll = false;
+            sLoadedDate = System.currentTimeMillis();
+            sLoadedId = Long.MAX_VALUE;
+            load(context);
+        }
+    }
+
+    /**
+     * 从上次读到的位置按 (提醒时间, ID) 的顺序读取下一批提醒，查询走提醒时间的索引
+     */
+    private static void load(Context context) {
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_PAGE_LIMIT, String.valueOf(LOAD_LIMIT))
+                .build();
+        Cursor c = context.getContentResolver().query(uri, PROJECTION,
+                "(" + NoteColumns.ALERTED_DATE + ">? OR (" + NoteColumns.ALERTED_DATE + "=? AND "
+                        + NoteColumns.ID + ">?)) AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER,
+                new String[] {
+                        String.valueOf(sLoadedDate), String.valueOf(sLoadedDate),
+                        String.valueOf(sLoadedId)
+                },
+                NoteColumns.ALERTED_DATE + " ASC," + NoteColumns.ID + " ASC");
+        if (c == null) {
+            Log.e(TAG, "Load reminders failed");
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                sLoadedId = c.getLong(COLUMN_ID);
+                sLoadedDate = c.getLong(COLUMN_ALERTED_DATE);
+                sHeap.push(sLoadedId, sLoadedDate);
+            }
+            sLoadedAll = c.getCount() < LOAD_LIMIT;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 把闹钟注册到堆中最早的提醒，触发时间没有变化时不必重新注册。
+     * 闹钟不会早于最早的提醒触发，提醒窗口是系统可以推迟它的最长时间
+     */
+    private static void arm(Context context) {
+        if (sHeap.size() == 0 && !sLoadedAll) {
+            load(context);
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (sHeap.size() == 0) {
+            if (sArmedStart != 0) {
+                alarmManager.cancel(getWindowIntent(context, sArmedStart));
+                sArmedStart = 0;
+            }
+            return;
+        }
+        long start = sHeap.peekDate();
+        if (start == sArmedStart) {
+            return;
+        }
+        // 同一个闹钟，重新注册时替换掉之前的窗口
+        PendingIntent operation = getWindowIntent(context, start);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setWindow(AlarmManager.RTC_WAKEUP, start,
+                    NotesPreferenceActivity.getAlertWindow(context), operation);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, start, operation);
+        }
+        sArmedStart = start;
+    }
+
+    private static PendingIntent getWindowIntent(Context context, long start) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.putExtra(EXTRA_WINDOW_START, start);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static void cancelNoteAlarm(Context context, long noteId) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(PendingIntent.getBroadcast(context, 0, intent, 0));
+    }
+
+    private static int compare(long date1, long id1, long date2, long id2) {
+        if (date1 != date2) {
+            return date1 < date2 ? -1 : 1;
+        }
+        return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+    }
+
+    /**
+     * 按 (提醒时间, 笔记ID) 排序的最小堆，记录每个笔记在堆中的位置，可以按笔记ID删除
+     */
+    private static final class ReminderHeap {
+        private long[] mIds = new long[LOAD_LIMIT];
+        private long[] mDates = new long[LOAD_LIMIT];
+        private int mSize;
+        private final LongSparseArray<Integer> mPositions = new LongSparseArray<Integer>();
+
+        int size() {
+            return mSize;
+        }
+
+        void push(long noteId, long alertDate) {
+            if (mPositions.get(noteId) != null) {
+                remove(noteId);
+            }
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+                mDates = Arrays.copyOf(mDates, mSize * 2);
+            }
+            set(mSize, noteId, alertDate);
+            siftUp(mSize++);
+        }
+
+        boolean remove(long noteId) {
+            Integer position = mPositions.get(noteId);
+            if (position == null) {
+                return false;
+            }
+            mPositions.remove(noteId);
+            int last = --mSize;
+            if (position != last) {
+                set(position, mIds[last], mDates[last]);
+                siftDown(position);
+                siftUp(position);
+            }
+            return true;
+        }
+
+        long peekId() {
+            return mIds[0];
+        }
+
+        long peekDate() {
+            return mDates[0];
+        }
+
+        private void set(int position, long noteId, long alertDate) {
+            mIds[position] = noteId;
+            mDates[position] = alertDate;
+            mPositions.put(noteId, position);
+        }
+
+        private boolean less(int i, int j) {
+            return compare(mDates[i], mIds[i], mDates[j], mIds[j]) < 0;
+        }
+
+        private void swap(int i, int j) {
+            long id = mIds[i], date = mDates[i];
+            set(i, mIds[j], mDates[j]);
+            set(j, id, date);
+        }
+
+        private void siftUp(int position) {
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (!less(position, parent)) {
+                    break;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position) {
+            while (true) {
+                int smallest = position;
+                int left = position * 2 + 1;
+                if (left < mSize && less(left, smallest)) {
+                    smallest = left;
+                }
+                if (left + 1 < mSize && less(left + 1, smallest)) {
+                    smallest = left + 1;
+                }
+                if (smallest == position) {
+                    break;
+                }
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+    }
+}
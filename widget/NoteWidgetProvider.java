@@ -7,12 +7,17 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.RemoteViews;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesChangeBus;
+import net.micode.notes.data.NotesChangeBus.ChangeEvent;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NoteEditActivity;
 import net.micode.notes.ui.NotesListActivity;
@@ -20,49 +25,172 @@ import net.micode.notes.ui.NotesListActivity;
 /**
  * 笔记小工具的抽象基类提供者
  * 处理笔记小工具的基本功能，包括更新和删除
+ * 一次查询读出所有待更新小工具的笔记，只有显示内容变化了的小工具才重新推送界面
  */
 public abstract class NoteWidgetProvider extends AppWidgetProvider {
+    // 小工具最多显示的摘要长度，避免把整篇笔记读入游标
+    private static final int SNIPPET_MAX_LEN = 512;
+
     // 用于从数据库查询笔记信息的字段
     public static final String[] PROJECTION = new String[]{
             NoteColumns.ID,           // 笔记ID
             NoteColumns.BG_COLOR_ID,  // 背景颜色ID
-            NoteColumns.SNIPPET       // 内容摘要
+            "SUBSTR(" + NoteColumns.SNIPPET + ",1," + SNIPPET_MAX_LEN + ") AS "
+                    + NoteColumns.SNIPPET, // 内容摘要（只取小工具能显示的长度）
+            NoteColumns.WIDGET_ID,    // 小工具ID
+            NoteColumns.VERSION       // 笔记版本
     };
 
     // 字段索引
     public static final int COLUMN_ID = 0;          // ID列索引
     public static final int COLUMN_BG_COLOR_ID = 1; // 背景颜色列索引
     public static final int COLUMN_SNIPPET = 2;     // 内容摘要列索引
+    public static final int COLUMN_WIDGET_ID = 3;   // 小工具ID列索引
+    public static final int COLUMN_VERSION = 4;     // 版本列索引
 
     private static final String TAG = "NoteWidgetProvider"; // 日志标签
 
+    // 小工具显示内容所依赖的列，只有修改了这些列才需要刷新小工具
+    private static final String[] WIDGET_COLUMNS = new String[]{
+            NoteColumns.SNIPPET,
+            NoteColumns.BG_COLOR_ID,
+            NoteColumns.PARENT_ID,   // 移入回收站后小工具不再显示该笔记
+            NoteColumns.WIDGET_ID
+    };
+
+    private static NotesChangeBus.OnNotesChangedListener sChangeListener;
+
+    // 各小工具上次推送的显示内容，按小工具ID保存（小工具ID在所有类型中唯一）
+    private static final SparseArray<WidgetFingerprint> sFingerprints =
+            new SparseArray<WidgetFingerprint>();
+
+    /**
+     * 小工具显示内容的指纹，由笔记ID、摘要、背景和版本决定
+     */
+    private static final class WidgetFingerprint {
+        final long noteId;
+        final String snippet;
+        final int bgId;
+        final long version;
+        final boolean privacyMode;
+
+        WidgetFingerprint(long noteId, String snippet, int bgId, long version,
+                boolean privacyMode) {
+            this.noteId = noteId;
+            this.snippet = snippet;
+            this.bgId = bgId;
+            this.version = version;
+            this.privacyMode = privacyMode;
+        }
+
+        boolean sameAs(WidgetFingerprint other) {
+            return other != null && noteId == other.noteId && bgId == other.bgId
+                    && version == other.version && privacyMode == other.privacyMode
+                    && TextUtils.equals(snippet, other.snippet);
+        }
+    }
+
+    /**
+     * 订阅笔记变更事件，只刷新内容发生变化的笔记所在的小工具，可重复调用
+     * 删除笔记时相关小工具由发起删除的界面负责刷新（删除后已查不到小工具ID）
+     */
+    public static synchronized void registerChangeListener(Context context) {
+        if (sChangeListener != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        sChangeListener = new NotesChangeBus.OnNotesChangedListener() {
+            public void onNotesChanged(ChangeEvent event) {
+                if (event.getOp() == NotesChangeBus.OP_UPDATE
+                        && event.touchesAny(WIDGET_COLUMNS)) {
+                    updateWidgets(appContext, event.getNoteIdSelection());
+                }
+            }
+        };
+        NotesChangeBus.register(sChangeListener);
+    }
+
+    /**
+     * 在后台查询 noteSelection 所选笔记关联的小工具，交给调度器合并发送更新广播
+     */
+    private static void updateWidgets(final Context context, final String noteSelection) {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                String selection = NoteColumns.WIDGET_ID + "<>" + AppWidgetManager.INVALID_APPWIDGET_ID;
+                if (noteSelection != null) {
+                    selection += " AND " + noteSelection;
+                }
+                Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                        new String[]{NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE},
+                        selection, null, null);
+                if (c == null) {
+                    return null;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        if (c.getInt(1) == Notes.TYPE_WIDGET_2X
+                                || c.getInt(1) == Notes.TYPE_WIDGET_4X) {
+                            NoteWidgetUpdateScheduler.markDirty(context, c.getInt(0), c.getInt(1));
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                return null;
+            }
+        }.execute();
+    }
+
     /**
      * 当小工具被删除时调用
-     * 清除与被删除小工具关联的笔记中的widget ID
+     * 用一条语句清除与被删除小工具关联的笔记中的widget ID
      */
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
+        synchronized (sFingerprints) {
+            for (int widgetId : appWidgetIds) {
+                sFingerprints.remove(widgetId);
+            }
+        }
+        String selection = getWidgetIdSelection(appWidgetIds);
+        if (selection == null) {
+            return;
+        }
         ContentValues values = new ContentValues();
         values.put(NoteColumns.WIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
-        for (int i = 0; i < appWidgetIds.length; i++) {
-            context.getContentResolver().update(Notes.CONTENT_NOTE_URI,
-                    values,
-                    NoteColumns.WIDGET_ID + "=?",
-                    new String[]{String.valueOf(appWidgetIds[i])});
+        context.getContentResolver().update(Notes.CONTENT_NOTE_URI, values, selection, null);
+    }
+
+    /**
+     * 生成 "widget_id IN (...)" 条件，没有有效的小工具ID时返回null
+     */
+    private static String getWidgetIdSelection(int[] appWidgetIds) {
+        StringBuilder sb = new StringBuilder(NoteColumns.WIDGET_ID).append(" IN (");
+        boolean empty = true;
+        for (int widgetId : appWidgetIds) {
+            if (widgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
+                if (!empty) {
+                    sb.append(',');
+                }
+                sb.append(widgetId);
+                empty = false;
+            }
         }
+        return empty ? null : sb.append(')').toString();
     }
 
     /**
-     * 获取指定widget ID关联的笔记信息
+     * 一次查询获取所有指定小工具关联的笔记信息
      * @param context 上下文
-     * @param widgetId 小工具ID
+     * @param widgetSelection 小工具ID条件
      * @return 包含笔记信息的Cursor对象
      */
-    private Cursor getNoteWidgetInfo(Context context, int widgetId) {
+    private Cursor getNoteWidgetInfo(Context context, String widgetSelection) {
         return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
                 PROJECTION,
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[]{String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER)},
+                widgetSelection + " AND " + NoteColumns.PARENT_ID + "<>?",
+                new String[]{String.valueOf(Notes.ID_TRASH_FOLER)},
                 null);
     }
 
@@ -85,63 +213,92 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
      */
     private void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds,
             boolean privacyMode) {
-        for (int i = 0; i < appWidgetIds.length; i++) {
-            if (appWidgetIds[i] != AppWidgetManager.INVALID_APPWIDGET_ID) {
-                int bgId = ResourceParser.getDefaultBgId(context); // 默认背景ID
-                String snippet = ""; // 内容摘要
-                Intent intent = new Intent(context, NoteEditActivity.class);
-                intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, appWidgetIds[i]);
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
-
-                // 查询数据库获取笔记信息
-                Cursor c = getNoteWidgetInfo(context, appWidgetIds[i]);
-                if (c != null && c.moveToFirst()) {
-                    if (c.getCount() > 1) {
-                        Log.e(TAG, "发现多个笔记使用相同的小工具ID:" + appWidgetIds[i]);
-                        c.close();
-                        return;
+        String widgetSelection = getWidgetIdSelection(appWidgetIds);
+        if (widgetSelection == null) {
+            return;
+        }
+
+        // 查询数据库获取所有小工具的笔记信息
+        SparseArray<WidgetFingerprint> notes = new SparseArray<WidgetFingerprint>();
+        Cursor c = getNoteWidgetInfo(context, widgetSelection);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    int widgetId = c.getInt(COLUMN_WIDGET_ID);
+                    if (notes.get(widgetId) != null) {
+                        // 只影响这一个小工具，其他小工具照常更新
+                        Log.e(TAG, "发现多个笔记使用相同的小工具ID:" + widgetId);
+                        continue;
                     }
-                    snippet = c.getString(COLUMN_SNIPPET); // 获取内容摘要
-                    bgId = c.getInt(COLUMN_BG_COLOR_ID);  // 获取背景颜色
-                    intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID)); // 设置笔记ID
-                    intent.setAction(Intent.ACTION_VIEW); // 设置为查看模式
-                } else {
-                    // 如果没有找到关联的笔记
-                    snippet = context.getResources().getString(R.string.widget_havenot_content);
-                    intent.setAction(Intent.ACTION_INSERT_OR_EDIT); // 设置为新建/编辑模式
+                    notes.put(widgetId, new WidgetFingerprint(c.getLong(COLUMN_ID),
+                            c.getString(COLUMN_SNIPPET), c.getInt(COLUMN_BG_COLOR_ID),
+                            c.getLong(COLUMN_VERSION), privacyMode));
                 }
+            } finally {
+                c.close();
+            }
+        }
 
-                if (c != null) {
-                    c.close();
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            if (appWidgetIds[i] == AppWidgetManager.INVALID_APPWIDGET_ID) {
+                continue;
+            }
+            WidgetFingerprint note = notes.get(appWidgetIds[i]);
+            if (note == null) {
+                // 如果没有找到关联的笔记
+                note = new WidgetFingerprint(0,
+                        context.getResources().getString(R.string.widget_havenot_content),
+                        ResourceParser.getDefaultBgId(context), 0, privacyMode);
+            }
+            synchronized (sFingerprints) {
+                if (note.sameAs(sFingerprints.get(appWidgetIds[i]))) {
+                    continue; // 显示内容没有变化，不必重新推送
                 }
+                sFingerprints.put(appWidgetIds[i], note);
+            }
+            appWidgetManager.updateAppWidget(appWidgetIds[i],
+                    buildRemoteViews(context, appWidgetIds[i], note));
+        }
+    }
 
-                // 创建RemoteViews对象
-                RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
-                rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId)); // 设置背景
-                intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId); // 传递背景ID
-
-                // 创建PendingIntent
-                PendingIntent pendingIntent = null;
-                if (privacyMode) {
-                    // 隐私模式下显示提示信息
-                    rv.setTextViewText(R.id.widget_text,
-                            context.getString(R.string.widget_under_visit_mode));
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], new Intent(
-                            context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
-                } else {
-                    // 正常模式下显示笔记内容
-                    rv.setTextViewText(R.id.widget_text, snippet);
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], intent,
-                            PendingIntent.FLAG_UPDATE_CURRENT);
-                }
+    /**
+     * 为小工具生成界面
+     */
+    private RemoteViews buildRemoteViews(Context context, int widgetId, WidgetFingerprint note) {
+        Intent intent = new Intent(context, NoteEditActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, widgetId);
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
+        if (note.noteId > 0) {
+            intent.putExtra(Intent.EXTRA_UID, note.noteId); // 设置笔记ID
+            intent.setAction(Intent.ACTION_VIEW); // 设置为查看模式
+        } else {
+            intent.setAction(Intent.ACTION_INSERT_OR_EDIT); // 设置为新建/编辑模式
+        }
 
-                // 设置点击事件
-                rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent);
-                // 更新小工具
-                appWidgetManager.updateAppWidget(appWidgetIds[i], rv);
-            }
+        // 创建RemoteViews对象
+        RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
+        rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(note.bgId)); // 设置背景
+        intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, note.bgId); // 传递背景ID
+
+        // 创建PendingIntent
+        PendingIntent pendingIntent = null;
+        if (note.privacyMode) {
+            // 隐私模式下显示提示信息
+            rv.setTextViewText(R.id.widget_text,
+                    context.getString(R.string.widget_under_visit_mode));
+            pendingIntent = PendingIntent.getActivity(context, widgetId, new Intent(
+                    context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        } else {
+            // 正常模式下显示笔记内容
+            rv.setTextViewText(R.id.widget_text, note.snippet);
+            pendingIntent = PendingIntent.getActivity(context, widgetId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
         }
+
+        // 设置点击事件
+        rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent);
+        return rv;
     }
 
     /**
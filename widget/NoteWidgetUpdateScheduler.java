@@ -0,0 +1,106 @@
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import net.micode.notes.data.Notes;
+
+/**
+ * 小工具更新的调度器
+ * 需要刷新的小工具先记为待更新，每个间隔内至多发送一次更新广播，
+ * 2x 和 4x 小工具各发送一个广播，携带该类型所有待更新的小工具ID。
+ * 连续保存或批量删除时不会对同一个小工具重复发送广播
+ */
+public class NoteWidgetUpdateScheduler {
+    private static final String TAG = "NoteWidgetUpdateScheduler";
+
+    // 两次发送更新广播之间的最短间隔
+    private static final long FLUSH_INTERVAL = 500;
+
+    private static final Object sLock = new Object();
+    private static final SparseIntArray sDirtyWidgets = new SparseIntArray(); // 小工具ID到类型
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static Context sContext;
+    private static boolean sFlushPending;
+    private static long sLastFlushTime;
+
+    private static final Runnable sFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private NoteWidgetUpdateScheduler() {
+    }
+
+    /**
+     * 把小工具记为待更新，可以在任意线程调用
+     * @param context 上下文
+     * @param widgetId 小工具ID
+     * @param widgetType 小工具类型
+     */
+    public static void markDirty(Context context, int widgetId, int widgetType) {
+        if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            return;
+        }
+        if (widgetType != Notes.TYPE_WIDGET_2X && widgetType != Notes.TYPE_WIDGET_4X) {
+            Log.e(TAG, "Unsupported widget type:" + widgetType);
+            return;
+        }
+        synchronized (sLock) {
+            if (sContext == null) {
+                sContext = context.getApplicationContext();
+            }
+            sDirtyWidgets.put(widgetId, widgetType);
+            if (!sFlushPending) {
+                sFlushPending = true;
+                long delay = sLastFlushTime + FLUSH_INTERVAL - SystemClock.uptimeMillis();
+                sHandler.postDelayed(sFlush, Math.max(delay, 0));
+            }
+        }
+    }
+
+    /**
+     * 按类型发送待更新小工具的广播
+     */
+    private static void flush() {
+        int[] widgets2x, widgets4x;
+        int count2x = 0, count4x = 0;
+        Context context;
+        synchronized (sLock) {
+            sFlushPending = false;
+            sLastFlushTime = SystemClock.uptimeMillis();
+            context = sContext;
+            widgets2x = new int[sDirtyWidgets.size()];
+            widgets4x = new int[sDirtyWidgets.size()];
+            for (int i = 0; i < sDirtyWidgets.size(); i++) {
+                if (sDirtyWidgets.valueAt(i) == Notes.TYPE_WIDGET_2X) {
+                    widgets2x[count2x++] = sDirtyWidgets.keyAt(i);
+                } else {
+                    widgets4x[count4x++] = sDirtyWidgets.keyAt(i);
+                }
+            }
+            sDirtyWidgets.clear();
+        }
+        sendUpdate(context, NoteWidgetProvider_2x.class, widgets2x, count2x);
+        sendUpdate(context, NoteWidgetProvider_4x.class, widgets4x, count4x);
+    }
+
+    private static void sendUpdate(Context context, Class<?> provider, int[] widgetIds, int count) {
+        if (count == 0) {
+            return;
+        }
+        int[] ids = new int[count];
+        System.arraycopy(widgetIds, 0, ids, 0, count);
+        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
+        intent.setClass(context, provider);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, ids);
+        context.sendBroadcast(intent);
+    }
+}